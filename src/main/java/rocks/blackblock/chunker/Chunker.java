@@ -1,18 +1,104 @@
 package rocks.blackblock.chunker;
 
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
 import net.minecraft.server.MinecraftServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import rocks.blackblock.chunker.governor.RenderGovernor;
+import rocks.blackblock.chunker.http.TileHttpServer;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 public class Chunker implements ModInitializer {
 	public static final Logger LOGGER = LoggerFactory.getLogger("chunker");
 	public static MinecraftServer SERVER = null;
+	private static TileHttpServer HTTP_SERVER = null;
 
 	@Override
 	public void onInitialize() {
-		ServerLifecycleEvents.SERVER_STARTED.register(server -> SERVER = server);
-		ServerLifecycleEvents.SERVER_STOPPING.register(server -> SERVER = null);
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			SERVER = server;
+			startHttpServer(server);
+		});
+
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			SERVER = null;
+
+			if (HTTP_SERVER != null) {
+				HTTP_SERVER.stop();
+				HTTP_SERVER = null;
+			}
+		});
+
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> Plane.releaseAll());
+		ServerWorldEvents.UNLOAD.register((server, world) -> Plane.release(world));
+
+		// Keep the cached chunk data of the shared planes up-to-date.
+		// Unloading doesn't change the contents, it only detaches the cached live chunk
+		ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+			Plane plane = Plane.getIfPresent(world);
+
+			if (plane != null) {
+				plane.invalidate(chunk.getPos().toLong());
+			}
+		});
+
+		// Let the background work adapt to the tick time
+		ServerTickEvents.START_SERVER_TICK.register(server -> RenderGovernor.getInstance().onTickStart());
+		ServerTickEvents.END_SERVER_TICK.register(server -> RenderGovernor.getInstance().onTickEnd());
+
+		ServerTickEvents.END_WORLD_TICK.register(world -> {
+			Plane plane = Plane.getIfPresent(world);
+
+			if (plane != null) {
+				plane.flushChanges();
+			}
+		});
+	}
+
+	/**
+	 * Serve tiles over HTTP if the `chunker.http.port` system property is set,
+	 * on the address in `chunker.http.bind` or else on the loopback address only
+	 *
+	 * @since   0.5.0
+	 */
+	private static void startHttpServer(MinecraftServer server) {
+
+		String port = System.getProperty(TileHttpServer.PORT_PROPERTY);
+		String bind = System.getProperty(TileHttpServer.BIND_PROPERTY);
+		String layers = System.getProperty(TileHttpServer.LAYERS_PROPERTY);
+
+		if (port == null || port.isBlank()) {
+			return;
+		}
+
+		try {
+			InetSocketAddress address;
+
+			if (bind == null || bind.isBlank()) {
+				address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim()));
+			} else {
+				address = new InetSocketAddress(bind.trim(), Integer.parseInt(port.trim()));
+			}
+
+			HTTP_SERVER = new TileHttpServer(new TileGenerator(server), address);
+
+			if (layers != null && !layers.isBlank()) {
+				HTTP_SERVER.setLayers(Arrays.stream(layers.split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList());
+			}
+
+			HTTP_SERVER.start();
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.error("Failed to start the tile server on port {}", port, e);
+			HTTP_SERVER = null;
+		}
 	}
 }
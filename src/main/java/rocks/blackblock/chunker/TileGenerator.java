@@ -1,37 +1,55 @@
 package rocks.blackblock.chunker;
 
-import net.minecraft.block.BlockState;
-import net.minecraft.block.Blocks;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import net.minecraft.block.MapColor;
-import net.minecraft.fluid.FluidState;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.world.ServerWorld;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.ChunkPos;
-import net.minecraft.util.math.Direction;
-import net.minecraft.world.BlockView;
-import net.minecraft.world.Heightmap;
-import net.minecraft.world.World;
-import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkStatus;
-import rocks.blackblock.chunker.chunk.ChunkFetcher;
-
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
-import java.awt.image.DirectColorModel;
-import java.awt.image.Raster;
-import java.io.ByteArrayOutputStream;
+import rocks.blackblock.chunker.chunk.Lump;
+import rocks.blackblock.chunker.chunk.SurfaceSummary;
+import rocks.blackblock.chunker.render.PixelFormat;
+import rocks.blackblock.chunker.render.PngEncoder;
+import rocks.blackblock.chunker.render.RenderLayer;
+import rocks.blackblock.chunker.render.SurfaceLayer;
+import rocks.blackblock.chunker.tile.EncodedTile;
+import rocks.blackblock.chunker.tile.PrerenderJob;
+import rocks.blackblock.chunker.tile.TileKey;
+import rocks.blackblock.chunker.tile.TilePyramid;
+import rocks.blackblock.chunker.tile.TileSet;
+import rocks.blackblock.chunker.world.LumpArea;
+import rocks.blackblock.chunker.world.Plane;
+import rocks.blackblock.chunker.world.SummaryArea;
+
 import java.io.IOException;
-import java.util.WeakHashMap;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TileGenerator {
     private final MinecraftServer server;
 
+    private PngEncoder pngEncoder = PngEncoder.getDefault();
+
     public TileGenerator(MinecraftServer server) {
         this.server = server;
     }
 
+    /**
+     * Set the PNG compression level of the tiles
+     *
+     * @param   level   The Deflater level, from 0 (none) to 9 (best)
+     *
+     * @since   0.5.0
+     */
+    public void setCompressionLevel(int level) {
+        this.pngEncoder = new PngEncoder(level);
+    }
+
     private ServerWorld getWorldForName(String worldName) {
         for (ServerWorld world : server.getWorlds()) {
             if (world.getRegistryKey().getValue().toString().equals(worldName)) {
@@ -53,7 +71,8 @@ public class TileGenerator {
         }
     }
 
-    private static final WeakHashMap<ServerWorld, ChunkFetcher> diggers = new WeakHashMap<>();
+    // The tile sets of every plane, by layer name
+    private static final Map<Plane, Map<String, TileSet>> tileSets = new ConcurrentHashMap<>();
 
     public byte[] getTile(String worldName, int x, int z, int zoom) throws IOException {
 
@@ -63,180 +82,820 @@ public class TileGenerator {
             return null;
         }
 
+        // Zooming in is not supported, zoom levels below 0 are zoomed out
         if (zoom > 0) {
             return null;
         }
 
-        int zoomShift = -zoom;
+        return getTileSet(world).getTile(zoom, x, z, pngEncoder);
+    }
 
-        ChunkFetcher.Session digger = diggers.computeIfAbsent(world, _world -> new ChunkFetcher(server, _world)).new Session();
+    /**
+     * Get the encoded tile asynchronously.
+     * Unlike {@link #getTile}, unloaded chunks are read from disk,
+     * and the calling thread never waits for the render.
+     *
+     * @param   worldName   The name of the world
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @return  A future resolving to the PNG image, or to null if the tile does not exist
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<byte[]> getTileAsync(String worldName, int x, int z, int zoom) {
+        return getTileAsync(worldName, SurfaceLayer.INSTANCE, x, z, zoom);
+    }
 
-        if (digger.testTileExists(x, z, zoomShift)) {
-            int[] colors = getColorsFromWorld(world, x, z, zoomShift, digger);
-            DataBufferInt buf = new DataBufferInt(colors, colors.length);
-            // ABGR -> RGBA
-            int[] masks = new int[]{0xff, 0xff00, 0xff0000, 0xff000000};
-            BufferedImage bufImg = new BufferedImage(new DirectColorModel(32, masks[0], masks[1], masks[2], masks[3]),
-                    Raster.createPackedRaster(buf, TILE_SIZE, TILE_SIZE, TILE_SIZE, masks, null), false, null);
+    /**
+     * Get the encoded tile of the given layer asynchronously
+     *
+     * @param   worldName   The name of the world
+     * @param   layer       The layer to render
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @return  A future resolving to the PNG image, or to null if the tile does not exist
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<byte[]> getTileAsync(String worldName, RenderLayer layer, int x, int z, int zoom) {
+        return getEncodedTileAsync(worldName, layer, x, z, zoom).thenApply(tile -> tile == null ? null : tile.getData());
+    }
 
-            // TODO: experiment with writing PNG manually?
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(bufImg, "png", baos);
+    /**
+     * Get a block of adjacent level-0 tiles asynchronously,
+     * like the tiles of a client's viewport.
+     * The tiles that have to be rendered are rendered together, in blocks.
+     * At most {@link TilePyramid#MAX_BATCH_TILES} tiles can be requested at once.
+     *
+     * @param   worldName   The name of the world
+     * @param   minX        The X coordinate of the western tiles
+     * @param   minZ        The Z coordinate of the northern tiles
+     * @param   maxX        The X coordinate of the eastern tiles
+     * @param   maxZ        The Z coordinate of the southern tiles
+     *
+     * @return  A future resolving to the existing tiles, by packed tile key (see {@link TileKey})
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<Long2ObjectMap<EncodedTile>> getTilesAsync(String worldName, int minX, int minZ, int maxX, int maxZ) {
+        return getTilesAsync(worldName, SurfaceLayer.INSTANCE, minX, minZ, maxX, maxZ);
+    }
 
-            return baos.toByteArray();
-        } else {
+    /**
+     * Get a block of adjacent level-0 tiles of the given layer asynchronously
+     *
+     * @param   worldName   The name of the world
+     * @param   layer       The layer to render
+     * @param   minX        The X coordinate of the western tiles
+     * @param   minZ        The Z coordinate of the northern tiles
+     * @param   maxX        The X coordinate of the eastern tiles
+     * @param   maxZ        The Z coordinate of the southern tiles
+     *
+     * @return  A future resolving to the existing tiles, by packed tile key (see {@link TileKey})
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<Long2ObjectMap<EncodedTile>> getTilesAsync(String worldName, RenderLayer layer, int minX, int minZ, int maxX, int maxZ) {
+
+        ServerWorld world = getWorldForName(worldName);
+
+        if (world == null) {
+            return CompletableFuture.completedFuture(Long2ObjectMaps.emptyMap());
+        }
+
+        return getTileSet(world, layer).getEncodedTilesAsync(Math.min(minX, maxX), Math.min(minZ, maxZ), Math.max(minX, maxX), Math.max(minZ, maxZ), pngEncoder);
+    }
+
+    /**
+     * Get the encoded tile together with its version asynchronously
+     *
+     * @param   worldName   The name of the world
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<EncodedTile> getEncodedTileAsync(String worldName, int x, int z, int zoom) {
+        return getEncodedTileAsync(worldName, SurfaceLayer.INSTANCE, x, z, zoom);
+    }
+
+    /**
+     * Get the encoded tile of the given layer together with its version asynchronously
+     *
+     * @param   worldName   The name of the world
+     * @param   layer       The layer to render
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @since   0.5.0
+     */
+    public CompletableFuture<EncodedTile> getEncodedTileAsync(String worldName, RenderLayer layer, int x, int z, int zoom) {
+
+        ServerWorld world = getWorldForName(worldName);
+
+        if (world == null || zoom > 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return getTileSet(world, layer).getEncodedTileAsync(zoom, x, z, pngEncoder);
+    }
+
+    /**
+     * Get the encoded tile together with its version,
+     * served from memory whenever possible
+     *
+     * @param   worldName   The name of the world
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @since   0.5.0
+     */
+    public EncodedTile getEncodedTile(String worldName, int x, int z, int zoom) {
+
+        ServerWorld world = getWorldForName(worldName);
+
+        if (world == null || zoom > 0) {
             return null;
         }
+
+        return getTileSet(world).getEncodedTile(zoom, x, z, pngEncoder);
+    }
+
+    /**
+     * Get the current entity tag of a tile without rendering it,
+     * so unchanged tiles can be answered with "not modified"
+     *
+     * @param   worldName   The name of the world
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @since   0.5.0
+     */
+    public String getTileETag(String worldName, int x, int z, int zoom) {
+        return getTileETag(worldName, SurfaceLayer.INSTANCE, x, z, zoom);
+    }
+
+    /**
+     * Get the current entity tag of a tile of the given layer without rendering it
+     *
+     * @param   worldName   The name of the world
+     * @param   layer       The layer of the tile
+     * @param   x           The X coordinate of the tile
+     * @param   z           The Z coordinate of the tile
+     * @param   zoom        The zoom level (0 or less)
+     *
+     * @since   0.5.0
+     */
+    public String getTileETag(String worldName, RenderLayer layer, int x, int z, int zoom) {
+
+        ServerWorld world = getWorldForName(worldName);
+
+        if (world == null || zoom > 0) {
+            return null;
+        }
+
+        return getTileSet(world, layer).getETag(zoom, x, z);
+    }
+
+    /**
+     * Start rendering every tile of the given world in the background.
+     * A job that was interrupted before (by a restart or by cancelling it)
+     * continues where it left off.
+     *
+     * @param   worldName     The name of the world
+     * @param   parallelism   The maximum amount of tiles to render at the same time
+     *
+     * @return  The running job, or null if the world does not exist
+     *
+     * @since   0.5.0
+     */
+    public PrerenderJob startPrerender(String worldName, int parallelism) {
+        return startPrerender(worldName, SurfaceLayer.INSTANCE, parallelism);
+    }
+
+    /**
+     * Start rendering every tile of the given layer of the given world in the background
+     *
+     * @param   worldName     The name of the world
+     * @param   layer         The layer to render
+     * @param   parallelism   The maximum amount of tiles to render at the same time
+     *
+     * @return  The running job, or null if the world does not exist
+     *
+     * @since   0.5.0
+     */
+    public PrerenderJob startPrerender(String worldName, RenderLayer layer, int parallelism) {
+
+        ServerWorld world = getWorldForName(worldName);
+
+        if (world == null) {
+            return null;
+        }
+
+        PrerenderJob job = new PrerenderJob(getTileSet(world, layer), pngEncoder, parallelism);
+        job.start();
+
+        return job;
+    }
+
+    /**
+     * Get the tile set of the given world,
+     * which holds its rendered & stored tiles at every zoom level
+     *
+     * @param   world   The world to get the tiles of
+     *
+     * @since   0.5.0
+     */
+    public TileSet getTileSet(ServerWorld world) {
+        return getTileSet(world, SurfaceLayer.INSTANCE);
+    }
+
+    /**
+     * Get the tile set of the given layer of the given world.
+     * Layers with the same name share their tile set.
+     *
+     * @param   world   The world to get the tiles of
+     * @param   layer   The layer to get the tiles of
+     *
+     * @since   0.5.0
+     */
+    public TileSet getTileSet(ServerWorld world, RenderLayer layer) {
+
+        // Forget the tiles of unloaded worlds
+        tileSets.keySet().removeIf(Plane::isReleased);
+
+        Plane plane = Plane.from(world);
+
+        // Don't keep the tiles of a world that already unloaded
+        if (plane.isReleased()) {
+            return new TileSet(plane, layer);
+        }
+
+        return tileSets.computeIfAbsent(plane, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(layer.getName(), name -> new TileSet(plane, layer));
+    }
+
+    /**
+     * Get the tile pyramid of the given world,
+     * which holds its rendered tiles at every zoom level
+     *
+     * @param   world   The world to get the pyramid of
+     *
+     * @since   0.5.0
+     */
+    public TilePyramid getPyramid(ServerWorld world) {
+        return getTileSet(world).getPyramid();
+    }
+
+    /**
+     * Render the colors of a tile into the given buffer.
+     * Only chunks that are loaded or preloaded are rendered,
+     * the pixels of the other chunks are made transparent.
+     *
+     * @param   world    The world to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public void getColorsFromWorld(ServerWorld world, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        renderTile(Plane.from(world), tileX, tileZ, target, null, offset, stride, format);
+    }
+
+    /**
+     * Render the colors of a tile into the given buffer,
+     * rendering its chunk columns in parallel on the given pool.
+     *
+     * @param   world    The world to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     * @param   pool     The pool to render on
+     *
+     * @since   0.5.0
+     */
+    public void getColorsFromWorld(ServerWorld world, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format, ForkJoinPool pool) {
+        renderTile(Plane.from(world), tileX, tileZ, target, offset, stride, format, pool);
+    }
+
+    /**
+     * Render the colors of a tile into the given buffer.
+     *
+     * @param   world    The world to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public void getColorsFromWorld(ServerWorld world, int tileX, int tileZ, IntBuffer target, int offset, int stride, PixelFormat format) {
+        if (target.hasArray()) {
+            renderTile(Plane.from(world), tileX, tileZ, target.array(), null, target.arrayOffset() + offset, stride, format);
+        } else {
+            renderTile(Plane.from(world), tileX, tileZ, null, target, offset, stride, format);
+        }
     }
 
-    // TODO: zoomed out
-    private int[] getColorsFromWorld(ServerWorld world, int tileX, int tileZ, int zoomShift, ChunkFetcher.Session digger) {
-        BlockSearcher searcher = new BlockSearcher(world);
+    /**
+     * Render the colors of a tile at zoom level 0 into the given buffer.
+     * Only chunks that are loaded or preloaded are rendered,
+     * the pixels of the other chunks are made transparent.
+     *
+     * @param   plane    The plane to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(Plane plane, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        renderTile(plane, SurfaceLayer.INSTANCE, tileX, tileZ, target, offset, stride, format);
+    }
 
-        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
-        int chunkOriginX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
-        int chunkOriginZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_CHUNK_SHIFT - zoomShift);
-        int[] colors = new int[TILE_SIZE * TILE_SIZE];
-        boolean hasCeiling = world.getDimension().hasCeiling();
+    /**
+     * Render the colors of a layer of a tile at zoom level 0 into the given buffer.
+     * Only chunks that are loaded or preloaded are rendered,
+     * the pixels of the other chunks are made transparent.
+     *
+     * @param   plane    The plane to render
+     * @param   layer    The layer to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(Plane plane, RenderLayer layer, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
 
         for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
-            Chunk chunkBefore = digger.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ - 1);
-            ChunkPos chunkPosBefore = new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ - 1);
-            Heightmap chunkBeforeHeightmap = null;
-            if (chunkBefore != null) {
-                chunkBeforeHeightmap = chunkBefore.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+            renderColumn(plane, layer, null, tileX, tileZ, chunkOffX, target, null, offset, stride, format);
+        }
+    }
+
+    /**
+     * Render the colors of a tile at zoom level 0 into the given buffer,
+     * rendering its 16 chunk columns in parallel on the given pool.
+     * Shading only depends on the chunk north of each chunk,
+     * so the columns are independent of each other.
+     *
+     * @param   plane    The plane to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     * @param   pool     The pool to render the columns on
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(Plane plane, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format, ForkJoinPool pool) {
+        renderTile(plane, SurfaceLayer.INSTANCE, tileX, tileZ, target, offset, stride, format, pool);
+    }
+
+    /**
+     * Render the colors of a layer of a tile at zoom level 0 into the given buffer,
+     * rendering its 16 chunk columns in parallel on the given pool.
+     * The lumps are collected on the calling thread first, so the workers never have to get
+     * a loaded chunk themselves: off the server thread that waits for the server thread,
+     * which might be the very thread waiting for the pool.
+     *
+     * @param   plane    The plane to render
+     * @param   layer    The layer to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     * @param   pool     The pool to render the columns on
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(Plane plane, RenderLayer layer, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format, ForkJoinPool pool) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int chunkOriginX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int chunkOriginZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        // Include the row north of the tile for shading
+        LumpArea area = plane.getArea(chunkOriginX, chunkOriginZ - 1, chunkOriginX + chunkSize - 1, chunkOriginZ + chunkSize - 1);
+
+        pool.invoke(new ColumnRenderTask(area, layer, tileX, tileZ, target, offset, stride, format, 0, chunkSize));
+    }
+
+    /**
+     * Render the colors of a tile at zoom level 0 into the given buffer,
+     * using only the lumps of the given (preloaded) area.
+     * The area should include the chunk row north of the tile.
+     *
+     * @param   area     The preloaded lumps
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(LumpArea area, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        renderTile(area, SurfaceLayer.INSTANCE, tileX, tileZ, target, offset, stride, format);
+    }
+
+    /**
+     * Render the colors of a layer of a tile at zoom level 0 into the given buffer,
+     * using only the lumps of the given (preloaded) area.
+     * The area should include the chunk row north of the tile.
+     *
+     * @param   area     The preloaded lumps
+     * @param   layer    The layer to render
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(LumpArea area, RenderLayer layer, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
+            renderColumn(area.getPlane(), layer, area, tileX, tileZ, chunkOffX, target, null, offset, stride, format);
+        }
+    }
+
+    private static void renderTile(Plane plane, int tileX, int tileZ, int[] array, IntBuffer buffer, int offset, int stride, PixelFormat format) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
+            renderColumn(plane, SurfaceLayer.INSTANCE, null, tileX, tileZ, chunkOffX, array, buffer, offset, stride, format);
+        }
+    }
+
+    /**
+     * Render a single column of chunks of a tile, from north to south.
+     * Lumps come from the given area, or else from the plane.
+     * Rendering into an IntBuffer is only supported for the surface layer.
+     *
+     * @since   0.5.0
+     */
+    private static void renderColumn(Plane plane, RenderLayer layer, LumpArea area, int tileX, int tileZ, int chunkOffX, int[] array, IntBuffer buffer, int offset, int stride, PixelFormat format) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int chunkX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_CHUNK_SHIFT) + chunkOffX;
+        int chunkOriginZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        // The chunk north of the tile is only used for shading
+        Lump north = area != null ? area.getLump(chunkX, chunkOriginZ - 1) : plane.getLump(chunkX, chunkOriginZ - 1);
+
+        for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
+            Lump lump = area != null ? area.getLump(chunkX, chunkOriginZ + chunkOffZ) : plane.getLump(chunkX, chunkOriginZ + chunkOffZ);
+            int chunkOffset = offset + (chunkOffZ * 16) * stride + (chunkOffX * 16);
+
+            if (lump == null || !lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+                clearChunk(array, buffer, chunkOffset, stride);
+            } else if (array != null) {
+                layer.render(lump, north, null, array, chunkOffset, stride, format);
+            } else {
+                lump.getColors(north, buffer, chunkOffset, stride, format);
             }
 
-            int[] lastHeights = new int[chunkSize];
+            north = lump;
+        }
+    }
+
+    /**
+     * Render a block of adjacent tiles at zoom level 0 in one pass.
+     * Every chunk column runs from the north border of the block to its south edge,
+     * carrying the heights used for shading over from tile to tile,
+     * so the chunk row north of a tile is only searched for the top row of tiles.
+     * The area should include all the chunks of the tiles and the row north of them.
+     *
+     * @param   area        The preloaded lumps
+     * @param   minTileX    The X coordinate of the western tiles
+     * @param   minTileZ    The Z coordinate of the northern tiles
+     * @param   tilesWide   The amount of tiles from west to east
+     * @param   tilesHigh   The amount of tiles from north to south
+     * @param   targets     The buffers of the tiles (TILE_SIZE x TILE_SIZE each),
+     *                      row by row: the tile at (x, z) is at index z * tilesWide + x
+     * @param   format      The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTiles(LumpArea area, int minTileX, int minTileZ, int tilesWide, int tilesHigh, int[][] targets, PixelFormat format) {
+        renderTiles(area, SurfaceLayer.INSTANCE, minTileX, minTileZ, tilesWide, tilesHigh, targets, format);
+    }
 
-            for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
-                Chunk chunk = digger.getChunkView(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
-                ChunkPos chunkPos = new ChunkPos(chunkOriginX + chunkOffX, chunkOriginZ + chunkOffZ);
-                if (chunk == null || !chunk.getStatus().isAtLeast(ChunkStatus.FULL)) {
-                    continue;
-                }
-                Heightmap chunkHeightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
-
-                for (int xOff = 0; xOff < 16; xOff++) {
-                    // TODO: check isEmpty???
-                    if (chunkBefore != null && chunkOffZ == 0) {
-                        // Get first line, to calculate proper shade
-                        if (hasCeiling) {
-                            searcher.searchForBlockCeil(chunkBefore, xOff, 15, chunkPosBefore.getStartX(), chunkPosBefore.getStartZ());
-                        } else {
-                            searcher.searchForBlock(chunkBefore, chunkBeforeHeightmap, xOff, 15, chunkPosBefore.getStartX(), chunkPosBefore.getStartZ());
-                        }
-                        lastHeights[xOff] = searcher.height;
-                    }
+    /**
+     * Render a layer of a block of adjacent tiles at zoom level 0 in one pass.
+     * See {@link #renderTiles(LumpArea, int, int, int, int, int[][], PixelFormat)}.
+     *
+     * @param   area        The preloaded lumps
+     * @param   layer       The layer to render
+     * @param   minTileX    The X coordinate of the western tiles
+     * @param   minTileZ    The Z coordinate of the northern tiles
+     * @param   tilesWide   The amount of tiles from west to east
+     * @param   tilesHigh   The amount of tiles from north to south
+     * @param   targets     The buffers of the tiles (TILE_SIZE x TILE_SIZE each),
+     *                      row by row: the tile at (x, z) is at index z * tilesWide + x
+     * @param   format      The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTiles(LumpArea area, RenderLayer layer, int minTileX, int minTileZ, int tilesWide, int tilesHigh, int[][] targets, PixelFormat format) {
+        boolean shadedByNorth = layer.isShadedByNorth();
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int minChunkX = TileGenerator.rightShiftButReversible(minTileX, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int minChunkZ = TileGenerator.rightShiftButReversible(minTileZ, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int[] lastHeights = new int[16];
+
+        for (int chunkOffX = 0; chunkOffX < tilesWide * chunkSize; chunkOffX++) {
+            int chunkX = minChunkX + chunkOffX;
+            int tileColumn = chunkOffX / chunkSize;
+            int pixelX = (chunkOffX % chunkSize) * 16;
+
+            // Only the northern border row is searched separately
+            Lump north = area.getLump(chunkX, minChunkZ - 1);
+
+            if (!shadedByNorth || north == null || !north.getRowHeights(15, lastHeights)) {
+                Arrays.fill(lastHeights, Lump.UNKNOWN_HEIGHT);
+            }
+
+            for (int chunkOffZ = 0; chunkOffZ < tilesHigh * chunkSize; chunkOffZ++) {
+                int[] target = targets[(chunkOffZ / chunkSize) * tilesWide + tileColumn];
+                int chunkOffset = (chunkOffZ % chunkSize) * 16 * TILE_SIZE + pixelX;
+                Lump lump = area.getLump(chunkX, minChunkZ + chunkOffZ);
 
-                    for (int zOff = 0; zOff < 16; zOff++) {
-                        if (hasCeiling) {
-                            searcher.searchForBlockCeil(chunk, xOff, zOff, chunkPos.getStartX(), chunkPos.getStartZ());
-                        } else {
-                            searcher.searchForBlock(chunk, chunkHeightmap, xOff, zOff, chunkPos.getStartX(), chunkPos.getStartZ());
-                        }
-
-                        if (searcher.height > 0 && !searcher.blockState.getFluidState().isEmpty()) {
-                            searcher.calcWaterDepth(chunk);
-                        }
-
-                        MapColor matColor = searcher.blockState.getMapColor(world, searcher.pos);
-
-                        int shade;
-
-                        if (matColor == MapColor.WATER_BLUE) {
-                            double shadeTest = (double) searcher.waterDepth * 0.1D + (double) (xOff + zOff & 1) * 0.2D;
-                            shade = 1;
-                            if (shadeTest < 0.5D) {
-                                shade = 2;
-                            }
-
-                            if (shadeTest > 0.9D) {
-                                shade = 0;
-                            }
-                        } else {
-                            double shadeTest = (searcher.height - lastHeights[xOff]) * 4.0D / 5.0D + ((double) (xOff + zOff & 1) - 0.5D) * 0.4D;
-                            shade = 1;
-                            if (shadeTest > 0.6D) {
-                                shade = 2;
-                            }
-                            if (shadeTest < -0.6D) {
-                                shade = 0;
-                            }
-                        }
-
-                        lastHeights[xOff] = searcher.height;
-                        colors[(zOff + (chunkOffZ * 16)) * TILE_SIZE + (xOff + (chunkOffX * 16))] = getRenderColor(matColor, shade);
+                if (lump == null) {
+                    clearChunk(target, null, chunkOffset, TILE_SIZE);
+
+                    // The chunk south of it is shaded like one without a north neighbour
+                    Arrays.fill(lastHeights, Lump.UNKNOWN_HEIGHT);
+                } else if (!lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+                    clearChunk(target, null, chunkOffset, TILE_SIZE);
+
+                    if (shadedByNorth) {
+                        lump.getRowHeights(15, lastHeights);
                     }
+                } else {
+                    layer.render(lump, null, lastHeights, target, chunkOffset, TILE_SIZE, format);
                 }
             }
         }
-
-        return colors;
     }
 
-    private static final class BlockSearcher {
-        public final BlockPos.Mutable pos = new BlockPos.Mutable();
-        private final BlockPos.Mutable depthTestPos = new BlockPos.Mutable();
-        public BlockState blockState;
-        public int height;
-        public int waterDepth;
-        private final ServerWorld world;
+    /**
+     * Render the surface colors of a tile at zoom level 0 into the given buffer
+     * from the surface summaries of its chunks, without searching any block.
+     * The area should include the chunk row north of the tile.
+     *
+     * @param   area     The preloaded summaries
+     * @param   tileX    The X coordinate of the tile
+     * @param   tileZ    The Z coordinate of the tile
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTile(SummaryArea area, int tileX, int tileZ, int[] target, int offset, int stride, PixelFormat format) {
+        int chunkSize = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int chunkOriginX = TileGenerator.rightShiftButReversible(tileX, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int chunkOriginZ = TileGenerator.rightShiftButReversible(tileZ, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        for (int chunkOffX = 0; chunkOffX < chunkSize; chunkOffX++) {
+            int chunkX = chunkOriginX + chunkOffX;
+            SurfaceSummary north = area.getSummary(chunkX, chunkOriginZ - 1);
+
+            for (int chunkOffZ = 0; chunkOffZ < chunkSize; chunkOffZ++) {
+                SurfaceSummary summary = area.getSummary(chunkX, chunkOriginZ + chunkOffZ);
+                int chunkOffset = offset + (chunkOffZ * 16) * stride + (chunkOffX * 16);
+
+                if (summary == null) {
+                    clearChunk(target, null, chunkOffset, stride);
+                } else {
+                    summary.render(north, target, chunkOffset, stride, format);
+                }
 
-        public BlockSearcher(ServerWorld world) {
-            this.world = world;
+                north = summary;
+            }
         }
+    }
 
-        void searchForBlock(BlockView chunk, Heightmap surfaceHeightmap, int x, int z, int chunkStartX, int chunkStartZ) {
-            height = surfaceHeightmap.get(x & 15, z & 15);
-            pos.set(chunkStartX + x, height, chunkStartZ + z);
-            if (height <= 1) {
-                blockState = Blocks.BEDROCK.getDefaultState();
-            } else {
-                do {
-                    pos.setY(--height);
-                    blockState = chunk.getBlockState(pos);
-                } while (blockState.getMapColor(world, pos) == MapColor.CLEAR && height > 0);
+    /**
+     * Render the surface colors of a block of adjacent tiles at zoom level 0
+     * from the surface summaries of their chunks.
+     * The area should include all the chunks of the tiles and the row north of them.
+     *
+     * @param   area        The preloaded summaries
+     * @param   minTileX    The X coordinate of the western tiles
+     * @param   minTileZ    The Z coordinate of the northern tiles
+     * @param   tilesWide   The amount of tiles from west to east
+     * @param   tilesHigh   The amount of tiles from north to south
+     * @param   targets     The buffers of the tiles (TILE_SIZE x TILE_SIZE each),
+     *                      row by row: the tile at (x, z) is at index z * tilesWide + x
+     * @param   format      The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderTiles(SummaryArea area, int minTileX, int minTileZ, int tilesWide, int tilesHigh, int[][] targets, PixelFormat format) {
+        for (int tileOffZ = 0; tileOffZ < tilesHigh; tileOffZ++) {
+            for (int tileOffX = 0; tileOffX < tilesWide; tileOffX++) {
+                renderTile(area, minTileX + tileOffX, minTileZ + tileOffZ, targets[tileOffZ * tilesWide + tileOffX], 0, TILE_SIZE, format);
             }
         }
+    }
+
+    /**
+     * Render the colors of a single chunk into the given buffer,
+     * shaded using the chunk north of it.
+     * The pixels of a missing chunk are made transparent.
+     *
+     * @param   plane    The plane to render
+     * @param   chunkX   The X coordinate of the chunk
+     * @param   chunkZ   The Z coordinate of the chunk
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderChunk(Plane plane, int chunkX, int chunkZ, int[] target, int offset, int stride, PixelFormat format) {
+        renderChunk(plane, SurfaceLayer.INSTANCE, chunkX, chunkZ, target, offset, stride, format);
+    }
+
+    /**
+     * Render a layer of a single chunk into the given buffer.
+     * The pixels of a missing chunk are made transparent.
+     *
+     * @param   plane    The plane to render
+     * @param   layer    The layer to render
+     * @param   chunkX   The X coordinate of the chunk
+     * @param   chunkZ   The Z coordinate of the chunk
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderChunk(Plane plane, RenderLayer layer, int chunkX, int chunkZ, int[] target, int offset, int stride, PixelFormat format) {
+        Lump lump = plane.getLump(chunkX, chunkZ);
+
+        if (lump == null || !lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+            clearChunk(target, null, offset, stride);
+        } else {
+            Lump north = layer.isShadedByNorth() ? plane.getLump(chunkX, chunkZ - 1) : null;
+            layer.render(lump, north, null, target, offset, stride, format);
+        }
+    }
 
-        void calcWaterDepth(BlockView chunk) {
-            int heightTemp = height - 1;
-            waterDepth = 0;
-            depthTestPos.set(pos);
+    /**
+     * Render a layer of a single chunk into the given buffer,
+     * using only the lumps of the given (preloaded) area.
+     * The area should include the chunk north of it.
+     * The pixels of a missing chunk are made transparent.
+     *
+     * @param   area     The preloaded lumps
+     * @param   layer    The layer to render
+     * @param   chunkX   The X coordinate of the chunk
+     * @param   chunkZ   The Z coordinate of the chunk
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderChunk(LumpArea area, RenderLayer layer, int chunkX, int chunkZ, int[] target, int offset, int stride, PixelFormat format) {
+        Lump lump = area.getLump(chunkX, chunkZ);
+
+        if (lump == null || !lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+            clearChunk(target, null, offset, stride);
+        } else {
+            Lump north = layer.isShadedByNorth() ? area.getLump(chunkX, chunkZ - 1) : null;
+            layer.render(lump, north, null, target, offset, stride, format);
+        }
+    }
 
-            BlockState depthTestBlock;
-            do {
-                depthTestPos.setY(heightTemp--);
-                depthTestBlock = chunk.getBlockState(depthTestPos);
-                ++waterDepth;
-            } while (heightTemp > 0 && !depthTestBlock.getFluidState().isEmpty());
+    /**
+     * Render the surface colors of a single chunk into the given buffer
+     * from the preloaded surface summaries.
+     * The area should include the chunk north of it.
+     * The pixels of a missing chunk are made transparent.
+     *
+     * @param   area     The preloaded summaries
+     * @param   chunkX   The X coordinate of the chunk
+     * @param   chunkZ   The Z coordinate of the chunk
+     * @param   target   The buffer to render into
+     * @param   offset   The index of the north-west pixel in the buffer
+     * @param   stride   The distance between 2 rows in the buffer
+     * @param   format   The pixel format to write
+     *
+     * @since   0.5.0
+     */
+    public static void renderChunk(SummaryArea area, int chunkX, int chunkZ, int[] target, int offset, int stride, PixelFormat format) {
+        SurfaceSummary summary = area.getSummary(chunkX, chunkZ);
+
+        if (summary == null) {
+            clearChunk(target, null, offset, stride);
+        } else {
+            summary.render(area.getSummary(chunkX, chunkZ - 1), target, offset, stride, format);
+        }
+    }
 
-            blockState = TileGenerator.getFluidStateIfVisible(world, blockState, depthTestPos);
+    /**
+     * Renders a range of chunk columns of a tile from the given lumps,
+     * splitting it in halves until every task renders a single column.
+     * Every worker uses its own thread-local BlockSearcher.
+     *
+     * @since   0.5.0
+     */
+    private static class ColumnRenderTask extends RecursiveAction {
+        private final LumpArea area;
+        private final RenderLayer layer;
+        private final int tileX;
+        private final int tileZ;
+        private final int[] array;
+        private final int offset;
+        private final int stride;
+        private final PixelFormat format;
+        private final int fromColumn;
+        private final int toColumn;
+
+        private ColumnRenderTask(LumpArea area, RenderLayer layer, int tileX, int tileZ, int[] array, int offset, int stride, PixelFormat format, int fromColumn, int toColumn) {
+            this.area = area;
+            this.layer = layer;
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+            this.array = array;
+            this.offset = offset;
+            this.stride = stride;
+            this.format = format;
+            this.fromColumn = fromColumn;
+            this.toColumn = toColumn;
         }
 
-        void searchForBlockCeil(BlockView chunk, int x, int z, int chunkStartX, int chunkStartZ) {
-            height = 85;
-            boolean brokeThroughCeil = false;
-            pos.set(chunkStartX + x, height, chunkStartZ + z);
-            BlockState firstBlockState = chunk.getBlockState(pos);
-            blockState = firstBlockState;
-            if (blockState.isAir()) {
-                brokeThroughCeil = true;
+        @Override
+        protected void compute() {
+            if (toColumn - fromColumn == 1) {
+                renderColumn(area.getPlane(), layer, area, tileX, tileZ, fromColumn, array, null, offset, stride, format);
+                return;
             }
 
-            while ((!brokeThroughCeil || blockState.getMapColor(world, pos) == MapColor.CLEAR) && height > 0) {
-                pos.setY(--height);
-                blockState = chunk.getBlockState(pos);
-                if (blockState.isAir()) {
-                    brokeThroughCeil = true;
+            int middle = (fromColumn + toColumn) >>> 1;
+
+            invokeAll(
+                    new ColumnRenderTask(area, layer, tileX, tileZ, array, offset, stride, format, fromColumn, middle),
+                    new ColumnRenderTask(area, layer, tileX, tileZ, array, offset, stride, format, middle, toColumn)
+            );
+        }
+    }
+
+    /**
+     * Make the pixels of a single chunk transparent
+     *
+     * @since   0.5.0
+     */
+    private static void clearChunk(int[] array, IntBuffer buffer, int offset, int stride) {
+        for (int z = 0; z < 16; z++) {
+            int rowOffset = offset + z * stride;
+
+            for (int x = 0; x < 16; x++) {
+                if (array != null) {
+                    array[rowOffset + x] = 0;
+                } else {
+                    buffer.put(rowOffset + x, 0);
                 }
             }
-            if (!brokeThroughCeil) {
-                blockState = firstBlockState;
-                height = 85;
-                pos.setY(height);
-            }
         }
     }
 
@@ -264,10 +923,4 @@ public class TileGenerator {
         return -16777216 | l << 16 | k << 8 | j;
     }
 
-    // TODO: is this needed?
-    private static BlockState getFluidStateIfVisible(World world, BlockState state, BlockPos pos) {
-        FluidState fluidState = state.getFluidState();
-        return !fluidState.isEmpty() && !state.isSideSolidFullSquare(world, pos, Direction.UP) ? fluidState.getBlockState() : state;
-    }
-
 }
@@ -5,13 +5,19 @@ import net.minecraft.block.Blocks;
 import net.minecraft.block.MapColor;
 import net.minecraft.fluid.FluidState;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
 import rocks.blackblock.chunker.Chunker;
 import rocks.blackblock.chunker.world.Plane;
 
 public class BlockSearcher {
 
+    // Searchers reused by renders on the same thread
+    private static final ThreadLocal<BlockSearcher> THREAD_SEARCHERS = ThreadLocal.withInitial(() -> new BlockSearcher(null));
+
     private Plane plane;
     private Lump lump = null;
     private Heightmap heightmap = null;
@@ -31,6 +37,37 @@ public class BlockSearcher {
         this.plane = plane;
     }
 
+    /**
+     * Get the searcher of the current thread, reset to the given plane.
+     * Call {@link #reset(Plane)} with null when done,
+     * so the thread doesn't keep the last chunk around.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   plane   The plane to search in
+     */
+    public static BlockSearcher forThread(Plane plane) {
+        BlockSearcher searcher = THREAD_SEARCHERS.get();
+        searcher.reset(plane);
+        return searcher;
+    }
+
+    /**
+     * Forget the current lump & use the given plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   plane   The plane to search in
+     */
+    public void reset(Plane plane) {
+        this.plane = plane;
+        this.lump = null;
+        this.heightmap = null;
+        this.block_state = null;
+    }
+
     /**
      * Get the heightmap for the current chunk
      *
@@ -196,6 +233,63 @@ public class BlockSearcher {
         return true;
     }
 
+    /**
+     * Search for the first non-clear (map color) block at or below the given Y level.
+     * Empty chunk sections are skipped as a whole,
+     * without looking at their blocks.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   lump       The lump to search in
+     * @param   x          The X-coordinate of the block (Chunk-local)
+     * @param   z          The Z-coordinate of the block (Chunk-local)
+     * @param   top_y      The Y level to start at
+     * @param   bottom_y   The lowest Y level to look at
+     *
+     * @return  False if there is no such block
+     */
+    public boolean searchForBlockBelow(Lump lump, int x, int z, int top_y, int bottom_y) {
+
+        this.setLump(lump);
+
+        Chunk chunk = lump.getChunk();
+        ChunkSection[] sections = chunk.getSectionArray();
+        int local_x = x & 15;
+        int local_z = z & 15;
+        int min_y = Math.max(bottom_y, chunk.getBottomY());
+
+        this.height = Math.min(top_y, chunk.getBottomY() + chunk.getHeight() - 1);
+        this.pos.set(lump.convertLocalCoordinateToGlobal(x), this.height, lump.convertLocalCoordinateToGlobal(z));
+
+        while (this.height >= min_y) {
+            ChunkSection section = sections[chunk.getSectionIndex(this.height)];
+
+            if (section == null || section.isEmpty()) {
+                // Continue at the top of the section below
+                this.height = (ChunkSectionPos.getSectionCoord(this.height) << 4) - 1;
+                continue;
+            }
+
+            BlockState state = section.getBlockState(local_x, this.height & 15, local_z);
+
+            if (!state.isAir()) {
+                this.pos.setY(this.height);
+                this.block_state = state;
+
+                if (this.getCurrentMapColor() != MapColor.CLEAR) {
+                    return true;
+                }
+            }
+
+            this.height--;
+        }
+
+        this.block_state = null;
+
+        return false;
+    }
+
     /**
      * Calculate the depth of the water
      *
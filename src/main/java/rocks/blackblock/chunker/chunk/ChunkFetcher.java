@@ -2,7 +2,9 @@ package rocks.blackblock.chunker.chunk;
 
 import com.mojang.serialization.Codec;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import net.minecraft.block.Block;
@@ -27,24 +29,37 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.collection.LongLRUCache;
+import rocks.blackblock.chunker.governor.RenderGovernor;
 import rocks.blackblock.chunker.mixin.MinecraftServerAccessor;
 import rocks.blackblock.chunker.mixin.ThreadedAnvilChunkStorageMixin;
 
 import java.io.File;
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * This class is a fetcher of chunks. These can be loaded or unloaded.
  *
  * @since     0.1.0
- * @version   0.2.0
+ * @version   0.5.0
  */
 public class ChunkFetcher {
 
     private final LongSet validRegions = new LongOpenHashSet();
 
+    // The amount of region timestamp tables to keep:
+    // more than the 1056 regions a tile at the minimum zoom level depends on
+    private static final int REGION_TIMESTAMPS_CACHE_SIZE = 2048;
+
+    // The chunk timestamp tables of recently used region files
+    private final LongLRUCache<RegionTimestamps> regionTimestamps = new LongLRUCache<>(REGION_TIMESTAMPS_CACHE_SIZE);
+
     // The path to the region folder
     private final File regionFolder;
 
@@ -82,14 +97,176 @@ public class ChunkFetcher {
     }
 
     /**
-     * Thread-local session of a ChunkFetcher
+     * Get the folder containing the region files
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public File getRegionFolder() {
+        return this.regionFolder;
+    }
+
+    /**
+     * Get the folder of this world, which contains the region folder
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public File getWorldFolder() {
+        return this.regionFolder.getParentFile();
+    }
+
+    /**
+     * Get the world this fetcher gets chunks from
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public ServerWorld getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Get the last-saved timestamps (in seconds) of all 1024 chunks in a region file,
+     * indexed by `(chunk_x & 31) + (chunk_z & 31) * 32`.
+     * The table is cached until the region file is modified,
+     * which is checked at most once a second.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    region_x   The region X coordinate
+     * @param    region_z   The region Z coordinate
+     *
+     * @return   The timestamps, or null if the region file does not exist
+     */
+    @Nullable
+    public int[] getRegionTimestamps(int region_x, int region_z) {
+
+        long key = ChunkPos.toLong(region_x, region_z);
+        RegionTimestamps cached = this.regionTimestamps.get(key);
+        long now = System.currentTimeMillis();
+
+        // Don't check the file more than once a second
+        if (cached != null && now - cached.checked < 1000) {
+            return cached.timestamps;
+        }
+
+        File file = new File(this.regionFolder, "r." + region_x + "." + region_z + ".mca");
+        long modified = file.lastModified();
+
+        // A last-modified time of 0 means the file does not exist
+        if (modified == 0) {
+            this.regionTimestamps.put(key, new RegionTimestamps(0, now, null));
+            return null;
+        }
+
+        if (cached != null && cached.modified == modified) {
+            this.regionTimestamps.put(key, new RegionTimestamps(modified, now, cached.timestamps));
+            return cached.timestamps;
+        }
+
+        int[] timestamps = new int[1024];
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+            // The timestamps table is the second 4 KiB sector of the file
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, 4096 + buffer.position()) < 0) {
+                    break;
+                }
+            }
+
+            buffer.flip();
+            buffer.asIntBuffer().get(timestamps, 0, buffer.remaining() / 4);
+        } catch (IOException e) {
+            LOGGER.error("Failed to read the timestamps of region file " + file, e);
+            return null;
+        }
+
+        this.regionTimestamps.put(key, new RegionTimestamps(modified, now, timestamps));
+
+        return timestamps;
+    }
+
+    /**
+     * List the coordinates of all the (non-empty) region files, sorted by row
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @return   The packed region coordinates
+     */
+    public LongArrayList listRegions() {
+
+        LongArrayList result = new LongArrayList();
+        File[] files = this.regionFolder.listFiles();
+
+        if (files == null) {
+            return result;
+        }
+
+        for (File file : files) {
+            String[] parts = file.getName().split("\\.");
+
+            if (parts.length != 4 || !parts[0].equals("r") || !parts[3].equals("mca") || file.length() == 0) {
+                continue;
+            }
+
+            try {
+                result.add(ChunkPos.toLong(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                // Not a region file
+            }
+        }
+
+        result.sort((long a, long b) -> {
+            int compare = Integer.compare(ChunkPos.getPackedZ(a), ChunkPos.getPackedZ(b));
+            return compare != 0 ? compare : Integer.compare(ChunkPos.getPackedX(a), ChunkPos.getPackedX(b));
+        });
+
+        return result;
+    }
+
+    /**
+     * Does the given chunk NBT hold a chunk with all the blocks of the finished world?
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_nbt   The chunk NBT data
+     */
+    public static boolean isComplete(NbtCompound chunk_nbt) {
+
+        ChunkStatus status = ChunkStatus.byId(chunk_nbt.getString("Status"));
+
+        // Chunks that have been updated via a DFU however are marked as "EMPTY",
+        // but actually contain all the data needed to render the map
+        return status.isAtLeast(ChunkStatus.FULL) || status.equals(ChunkStatus.EMPTY);
+    }
+
+    /**
+     * The cached chunk timestamps of a region file
+     *
+     * @since    0.5.0
+     */
+    private record RegionTimestamps(long modified, long checked, int[] timestamps) {}
+
+    /**
+     * Session of a ChunkFetcher.
+     * A session is thread-safe, and is shared by everyone using the same Plane.
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
      * @since    0.1.0
+     * @version  0.5.0
      */
     public class Session {
         // Saved in testTileExists - as this data will be read again when rendering the chunk, might as well only read it once
-        private final Long2ObjectMap<NbtCompound> unloadedChunkCachedData = new Long2ObjectOpenHashMap<>();
+        private final Long2ObjectMap<NbtCompound> unloadedChunkCachedData = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>());
+
+        // Should loaded chunks be copied on the server thread instead of being returned as they are?
+        private volatile boolean snapshotLoadedChunks = false;
 
         /**
          * See if the tile exists
@@ -193,12 +370,60 @@ public class ChunkFetcher {
             return null;
         }
 
+        /**
+         * Get the fetcher of this session
+         *
+         * @author   Jelle De Loecker   <jelle@elevenways.be>
+         * @since    0.5.0
+         */
+        public ChunkFetcher getFetcher() {
+            return ChunkFetcher.this;
+        }
+
+        /**
+         * Should loaded chunks be returned as snapshots?
+         *
+         * @author   Jelle De Loecker   <jelle@elevenways.be>
+         * @since    0.5.0
+         */
+        public boolean getSnapshotLoadedChunks() {
+            return this.snapshotLoadedChunks;
+        }
+
+        /**
+         * Return loaded chunks as snapshots: copies of their blocks, biomes,
+         * heightmap & block light taken on the server thread,
+         * instead of the live chunks that the server keeps changing while they are being read.
+         *
+         * @author   Jelle De Loecker   <jelle@elevenways.be>
+         * @since    0.5.0
+         *
+         * @param    enabled   True to return snapshots
+         */
+        public void setSnapshotLoadedChunks(boolean enabled) {
+            this.snapshotLoadedChunks = enabled;
+        }
+
+        /**
+         * Forget any cached data of the given chunk
+         *
+         * @author   Jelle De Loecker   <jelle@elevenways.be>
+         * @since    0.5.0
+         *
+         * @param    packed_pos   The packed chunk position
+         */
+        public void invalidate(long packed_pos) {
+            unloadedChunkCachedData.remove(packed_pos);
+        }
+
         /**
          * Get a Future for a Chunk from this world.
          * This can be a loaded chunk, or an unloaded chunk.
+         * Loaded chunks are returned as they are, unless {@link #setSnapshotLoadedChunks(boolean)} is enabled.
          *
          * @author   Jelle De Loecker   <jelle@elevenways.be>
          * @since    0.1.0
+         * @version  0.5.0
          *
          * @param    chunk_x   The chunk x coordinate
          * @param    chunk_z   The chunk z coordinate
@@ -206,6 +431,24 @@ public class ChunkFetcher {
         @NotNull
         public CompletableFuture<Optional<Chunk>> getChunkViewAsync(int chunk_x, int chunk_z) {
 
+            if (this.snapshotLoadedChunks) {
+
+                // Only chunks that look loaded cost a task on the server thread,
+                // the others are read from disk straight away
+                if (!world.isChunkLoaded(chunk_x, chunk_z)) {
+                    return this.getStoredChunkAsync(chunk_x, chunk_z);
+                }
+
+                return this.getSnapshotAsync(chunk_x, chunk_z).thenCompose(snapshot -> {
+
+                    if (snapshot.isPresent()) {
+                        return CompletableFuture.completedFuture(snapshot);
+                    }
+
+                    return this.getStoredChunkAsync(chunk_x, chunk_z);
+                });
+            }
+
             CompletableFuture<Optional<Chunk>> result = new CompletableFuture<>();
 
             // If the chunk is already loaded, it's an easy return!
@@ -220,6 +463,55 @@ public class ChunkFetcher {
                 return result;
             }
 
+            return this.getStoredChunkAsync(chunk_x, chunk_z);
+        }
+
+        /**
+         * Take a snapshot of the given chunk on the server thread, if it is loaded.
+         * The server's non-blocking chunk lookup is used,
+         * so a chunk that is still being loaded is simply not found.
+         *
+         * @since    0.5.0
+         */
+        private CompletableFuture<Optional<Chunk>> getSnapshotAsync(int chunk_x, int chunk_z) {
+
+            MinecraftServer server = world.getServer();
+
+            Supplier<Optional<UnloadedChunkView>> copy = () -> {
+                WorldChunk chunk = world.getChunkManager().getWorldChunk(chunk_x, chunk_z);
+
+                if (chunk == null) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(UnloadedChunkView.copyOf(chunk, world));
+            };
+
+            CompletableFuture<Optional<UnloadedChunkView>> snapshot;
+
+            if (server.isOnThread()) {
+                snapshot = CompletableFuture.completedFuture(copy.get());
+            } else {
+                snapshot = server.submit(copy);
+            }
+
+            // Everything but the copying itself is done off the server thread
+            return snapshot.thenApplyAsync(optional_view -> optional_view.map(view -> {
+                view.calculateCounts();
+                return (Chunk) view;
+            }), RenderGovernor.getInstance().getDecodeExecutor());
+        }
+
+        /**
+         * Get a Future for the stored version of the given chunk
+         *
+         * @since    0.5.0
+         */
+        @NotNull
+        private CompletableFuture<Optional<Chunk>> getStoredChunkAsync(int chunk_x, int chunk_z) {
+
+            CompletableFuture<Optional<Chunk>> result;
+
             // Create the position to the chunk
             ChunkPos pos = new ChunkPos(chunk_x, chunk_z);
 
@@ -229,25 +521,34 @@ public class ChunkFetcher {
             // Create another future for this
             CompletableFuture<Optional<NbtCompound>> chunk_nbt_future = null;
 
+            RenderGovernor governor = RenderGovernor.getInstance();
+
             if (chunk_nbt == null) {
-                try {
-                    chunk_nbt_future = ((ThreadedAnvilChunkStorageMixin) tacs).callGetUpdatedChunkNbt(pos);
-                } catch (Exception e) {
-                    // TODO: better logging
-                    e.printStackTrace();
-                }
 
-                if (chunk_nbt_future == null) {
-                    result.complete(Optional.empty());
-                    return result;
-                }
+                // The amount of reads in flight is limited by the governor
+                chunk_nbt_future = governor.getFetchLimiter().submit(() -> {
+                    CompletableFuture<Optional<NbtCompound>> future;
+
+                    try {
+                        future = ((ThreadedAnvilChunkStorageMixin) tacs).callGetUpdatedChunkNbt(pos);
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to request the data of chunk [{}, {}]", chunk_x, chunk_z, e);
+                        return CompletableFuture.completedFuture(Optional.empty());
+                    }
+
+                    if (future == null) {
+                        return CompletableFuture.completedFuture(Optional.empty());
+                    }
+
+                    return future;
+                });
             } else {
                 // Create a dummy future for the nbt data we already found
                 chunk_nbt_future = CompletableFuture.completedFuture(Optional.of(chunk_nbt));
             }
 
-            // Wait for the actual chunk NBT data
-            result = chunk_nbt_future.thenApply(optional_nbt -> {
+            // Wait for the actual chunk NBT data, and decode it on a throttled worker
+            result = chunk_nbt_future.thenApplyAsync(optional_nbt -> {
 
                 // It's not there, so no chunk data found!
                 if (optional_nbt.isEmpty()) {
@@ -260,7 +561,7 @@ public class ChunkFetcher {
                 // If the chunk is not there, return an empty optional
                 return chunk_from_nbt_option.map(unloadedChunkView -> (Chunk) unloadedChunkView);
 
-            });
+            }, governor.getDecodeExecutor());
 
             return result;
         }
@@ -275,19 +576,13 @@ public class ChunkFetcher {
          * @param    pos         The chunk position
          */
         @NotNull
-        private Optional<UnloadedChunkView> getChunkFromNbt(NbtCompound chunk_nbt, ChunkPos pos) {
+        Optional<UnloadedChunkView> getChunkFromNbt(NbtCompound chunk_nbt, ChunkPos pos) {
 
             NbtCompound level = chunk_nbt.getCompound("Level");
-            ChunkStatus status = ChunkStatus.byId(chunk_nbt.getString("Status"));
 
             // We only want fully generated chunks
-            if (!status.isAtLeast(ChunkStatus.FULL)) {
-
-                // Chunks that have been updated via a DFU however are marked as "EMPTY",
-                // but actually contain all the data needed to render the map
-                if (!status.equals(ChunkStatus.EMPTY)) {
-                    return Optional.empty();
-                }
+            if (!isComplete(chunk_nbt)) {
+                return Optional.empty();
             }
 
             // Get all the chunk sections from the NBT data
@@ -297,6 +592,7 @@ public class ChunkFetcher {
             int vertical_section_count = world.countVerticalSections();
 
             ChunkSection[] sections = new ChunkSection[vertical_section_count];
+            ChunkNibbleArray[] block_light = new ChunkNibbleArray[vertical_section_count];
 
             ReadableContainer palettedContainer2;
             PalettedContainer palettedContainer;
@@ -329,20 +625,52 @@ public class ChunkFetcher {
                     ChunkSection chunkSection = new ChunkSection((PalettedContainer<BlockState>)palettedContainer, palettedContainer2);
                     chunkSection.calculateCounts();
                     sections[l] = chunkSection;
+
+                    // Keep the block light for the light layer, unless it's completely dark
+                    if (sectionTag.contains("BlockLight", 7)) {
+                        byte[] light = sectionTag.getByteArray("BlockLight");
+
+                        if (light.length == 2048 && !isDark(light)) {
+                            block_light[l] = new ChunkNibbleArray(light);
+                        }
+                    }
                 }
             }
 
-            UnloadedChunkView unloadedChunkView = new UnloadedChunkView(sections, world, pos);
+            UnloadedChunkView unloadedChunkView = new UnloadedChunkView(sections, world, pos, true);
+
+            for (int i = 0; i < block_light.length; i++) {
+                if (block_light[i] != null) {
+                    unloadedChunkView.setBlockLight(i, block_light[i]);
+                }
+            }
 
-            NbtCompound heightmaps = level.getCompound("Heightmaps");
+            // Since 1.18 the heightmaps are stored at the root, older chunks had them in "Level"
+            NbtCompound heightmaps = chunk_nbt.contains("Heightmaps", 10) ? chunk_nbt.getCompound("Heightmaps") : level.getCompound("Heightmaps");
             String heightmapName = Heightmap.Type.WORLD_SURFACE.getName();
             if (heightmaps.contains(heightmapName, 12)) {
                 unloadedChunkView.setHeightmap(Heightmap.Type.WORLD_SURFACE, heightmaps.getLongArray(heightmapName));
             } else {
-                Heightmap.populateHeightmaps(unloadedChunkView, Collections.singleton(Heightmap.Type.WORLD_SURFACE));
+                unloadedChunkView.rebuildHeightmap();
             }
 
             return Optional.of(unloadedChunkView);
         }
+
+        /**
+         * Is every light level in the given nibble array 0?
+         *
+         * @since    0.5.0
+         */
+        private static boolean isDark(byte[] light) {
+
+            for (byte level : light) {
+                if (level != 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
     }
 }
\ No newline at end of file
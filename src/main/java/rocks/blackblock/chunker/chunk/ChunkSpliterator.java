@@ -0,0 +1,295 @@
+package rocks.blackblock.chunker.chunk;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkStatus;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Iterates over every complete chunk stored in the region files of a world.
+ *
+ * It splits by region file first, and then a single region file by ranges of
+ * its chunks in sector order, so every split reads its part of a file front to back.
+ * Chunks are read with a {@link RegionFileReader} & decoded on the calling thread.
+ * Chunks the reader can't handle are fetched through the session instead
+ * (which returns loaded chunks as they are).
+ *
+ * Every split keeps its current region file open until it is done with it:
+ * {@link #close()} closes the files of all the splits of a stream that was not consumed entirely.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class ChunkSpliterator implements Spliterator<Chunk> {
+
+    // Don't split a region file into parts of fewer chunks than this
+    private static final int MIN_SPLIT_CHUNKS = 32;
+
+    private final ChunkFetcher.Session session;
+
+    // The packed coordinates of all the regions, shared by all splits
+    private final LongList regions;
+
+    // The open readers of all splits
+    private final Set<RegionFileReader> open_readers;
+
+    // The regions of this split
+    private int region_index;
+    private int region_end;
+
+    // The chunks of the current region, in sector order (shared with the splits of this region)
+    @Nullable
+    private int[] indices = null;
+    private int chunk_index = 0;
+    private int chunk_end = 0;
+
+    @Nullable
+    private RegionFileReader reader = null;
+
+    /**
+     * Create a spliterator over the chunks of the given regions
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    session   The session to fetch unreadable chunks with
+     * @param    regions   The packed coordinates of the regions
+     */
+    public ChunkSpliterator(ChunkFetcher.Session session, LongList regions) {
+        this(session, regions, ConcurrentHashMap.newKeySet(), 0, regions.size());
+    }
+
+    private ChunkSpliterator(ChunkFetcher.Session session, LongList regions, Set<RegionFileReader> open_readers, int region_index, int region_end) {
+        this.session = session;
+        this.regions = regions;
+        this.open_readers = open_readers;
+        this.region_index = region_index;
+        this.region_end = region_end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Chunk> action) {
+
+        while (true) {
+
+            if (this.indices == null) {
+                if (this.region_index >= this.region_end) {
+                    return false;
+                }
+
+                this.openRegion();
+            }
+
+            if (this.chunk_index >= this.chunk_end) {
+                this.closeReader();
+                this.indices = null;
+                this.region_index++;
+                continue;
+            }
+
+            Chunk chunk = this.readChunk(this.indices[this.chunk_index++]);
+
+            if (chunk != null) {
+                action.accept(chunk);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public Spliterator<Chunk> trySplit() {
+
+        int first_unstarted = this.indices == null ? this.region_index : this.region_index + 1;
+        int unstarted = this.region_end - first_unstarted;
+
+        // Hand off half of the regions that weren't started yet
+        if (unstarted >= 2 || (unstarted == 1 && this.indices != null)) {
+            int middle = first_unstarted + unstarted / 2;
+            ChunkSpliterator result = new ChunkSpliterator(this.session, this.regions, this.open_readers, middle, this.region_end);
+            this.region_end = middle;
+            return result;
+        }
+
+        if (this.region_index >= this.region_end) {
+            return null;
+        }
+
+        // Only a single region is left: hand off the second half of its remaining chunks
+        if (this.indices == null) {
+            this.openRegion();
+        }
+
+        if (this.chunk_end - this.chunk_index < MIN_SPLIT_CHUNKS * 2) {
+            return null;
+        }
+
+        int middle = (this.chunk_index + this.chunk_end) >>> 1;
+        ChunkSpliterator result = new ChunkSpliterator(this.session, this.regions, this.open_readers, this.region_index, this.region_index + 1);
+        result.indices = this.indices;
+        result.chunk_index = middle;
+        result.chunk_end = this.chunk_end;
+        this.chunk_end = middle;
+
+        return result;
+    }
+
+    @Override
+    public long estimateSize() {
+
+        long result = (long) (this.region_end - this.region_index) * 1024;
+
+        if (this.indices != null) {
+            result += (this.chunk_end - this.chunk_index) - 1024;
+        }
+
+        return Math.max(0, result);
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL;
+    }
+
+    /**
+     * Close the region files still opened by any split of this spliterator
+     *
+     * @since    0.5.0
+     */
+    public void close() {
+        for (RegionFileReader reader : this.open_readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing to do about it
+            }
+        }
+
+        this.open_readers.clear();
+    }
+
+    /**
+     * Open the current region & list its chunks in sector order
+     *
+     * @since    0.5.0
+     */
+    private void openRegion() {
+
+        this.chunk_index = 0;
+        this.chunk_end = 0;
+        this.indices = new int[0];
+
+        if (!this.openReader()) {
+            return;
+        }
+
+        this.indices = this.reader.getChunkIndicesBySector();
+        this.chunk_end = this.indices.length;
+    }
+
+    /**
+     * Open the reader of the current region, if it isn't open yet
+     *
+     * @since    0.5.0
+     */
+    private boolean openReader() {
+
+        if (this.reader != null) {
+            return true;
+        }
+
+        long region = this.regions.getLong(this.region_index);
+        int region_x = ChunkPos.getPackedX(region);
+        int region_z = ChunkPos.getPackedZ(region);
+
+        try {
+            this.reader = RegionFileReader.open(this.session.getFetcher(), region_x, region_z);
+            this.open_readers.add(this.reader);
+            return true;
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to open region [{}, {}]", region_x, region_z, e);
+            return false;
+        }
+    }
+
+    /**
+     * Close the reader of the current region
+     *
+     * @since    0.5.0
+     */
+    private void closeReader() {
+
+        if (this.reader == null) {
+            return;
+        }
+
+        this.open_readers.remove(this.reader);
+
+        try {
+            this.reader.close();
+        } catch (IOException e) {
+            // Nothing to do about it
+        }
+
+        this.reader = null;
+    }
+
+    /**
+     * Read & decode the chunk with the given index in the current region
+     *
+     * @since    0.5.0
+     *
+     * @return   The chunk, or null if it isn't a complete chunk
+     */
+    @Nullable
+    private Chunk readChunk(int index) {
+
+        long region = this.regions.getLong(this.region_index);
+        ChunkPos pos = new ChunkPos(ChunkPos.getPackedX(region) * 32 + (index & 31), ChunkPos.getPackedZ(region) * 32 + (index >> 5));
+        NbtCompound chunk_nbt = null;
+
+        if (this.openReader()) {
+            try {
+                chunk_nbt = this.reader.readChunk(index);
+            } catch (IOException | RuntimeException e) {
+                // Corrupt or torn data (the server may be rewriting the file): let the session try it
+            }
+        }
+
+        if (chunk_nbt != null && RegionFileReader.isCurrentVersion(chunk_nbt)) {
+            if (!ChunkFetcher.isComplete(chunk_nbt)) {
+                return null;
+            }
+
+            try {
+                return this.session.getChunkFromNbt(chunk_nbt, pos).orElse(null);
+            } catch (RuntimeException e) {
+                Chunker.LOGGER.error("Failed to decode chunk [{}, {}]", pos.x, pos.z, e);
+                return null;
+            }
+        }
+
+        try {
+            Chunk chunk = this.session.getChunkViewAsync(pos.x, pos.z).join().orElse(null);
+
+            if (chunk == null || !chunk.getStatus().isAtLeast(ChunkStatus.FULL)) {
+                return null;
+            }
+
+            return chunk;
+        } catch (CompletionException e) {
+            Chunker.LOGGER.error("Failed to fetch chunk [{}, {}]", pos.x, pos.z, e);
+            return null;
+        }
+    }
+}
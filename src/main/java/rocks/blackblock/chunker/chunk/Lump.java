@@ -8,16 +8,15 @@ import net.minecraft.world.chunk.Chunk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.render.PixelFormat;
+import rocks.blackblock.chunker.render.PngEncoder;
 import rocks.blackblock.chunker.world.Plane;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.Raster;
-import java.io.ByteArrayOutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.IntBuffer;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
@@ -28,6 +27,12 @@ import java.util.concurrent.CompletableFuture;
  */
 public class Lump {
 
+    // The height of a block that has not been searched
+    public static final int UNKNOWN_HEIGHT = Integer.MIN_VALUE;
+
+    // Scratch buffers for rendering into non-array buffers
+    private static final ThreadLocal<int[]> SCRATCH_COLORS = ThreadLocal.withInitial(() -> new int[16 * 16]);
+
     @NotNull
     private final Chunk chunk;
 
@@ -204,17 +209,25 @@ public class Lump {
         BufferedImage image = new BufferedImage(new DirectColorModel(32, masks[0], masks[1], masks[2], masks[3]),
                 Raster.createPackedRaster(buf, 16, 16, 16, masks, null), false, null);
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        return image;
+    }
 
-        try {
-            ImageIO.write(image, "png", baos);
-            Files.write(Path.of("/tmp/lump.png"), baos.toByteArray());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Get the PNG image of the chunk
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    @Nullable
+    public byte[] getPng() {
 
+        int[] colors = SCRATCH_COLORS.get();
 
-        return image;
+        if (!this.getColors(this.getNeighbour(0, -1), colors)) {
+            return null;
+        }
+
+        return PngEncoder.getDefault().encode(colors, 16, 16);
     }
 
     /**
@@ -222,9 +235,56 @@ public class Lump {
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
      * @since    0.2.0
+     * @version  0.5.0
      */
     public CompletableFuture<int[]> getColorsAsync() {
-        return this.preloadNeighbour(0, -1).thenApplyAsync(lump -> this.getColors());
+        return this.getColorsAsync(new int[16 * 16]);
+    }
+
+    /**
+     * Render the colors of this chunk into the given buffer asynchronously.
+     * The north neighbour is preloaded first (for shading),
+     * then the render runs on the plane's render executor.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    target   The buffer of at least 256 entries to render into
+     *
+     * @return   A future resolving to the given buffer,
+     *           or to null if this lump has no plane
+     */
+    public CompletableFuture<int[]> getColorsAsync(int[] target) {
+        return this.getColorsAsync(target, 0, 16, PixelFormat.ABGR);
+    }
+
+    /**
+     * Render the colors of this chunk into the given buffer asynchronously
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    target   The buffer to render into
+     * @param    offset   The index of the north-west pixel in the buffer
+     * @param    stride   The distance between 2 rows in the buffer
+     * @param    format   The pixel format to write
+     *
+     * @return   A future resolving to the given buffer,
+     *           or to null if this lump has no plane
+     */
+    public CompletableFuture<int[]> getColorsAsync(int[] target, int offset, int stride, PixelFormat format) {
+
+        if (this.plane == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        int x = this.x;
+        int z = this.z;
+
+        return this.plane.preloadArea(x, z - 1, x, z - 1).thenApplyAsync(area -> {
+            this.getColors(area.getLump(x, z - 1), target, offset, stride, format);
+            return target;
+        }, this.plane.getRenderExecutor());
     }
 
     /**
@@ -277,10 +337,12 @@ public class Lump {
     }
 
     /**
-     * Get the colors of this chunk in ABGR format
+     * Get the colors of this chunk in ABGR format.
+     * The north neighbour is used for shading if it is loaded or pre-loaded.
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
      * @since    0.1.0
+     * @version  0.5.0
      */
     public int[] getColors() {
 
@@ -288,82 +350,239 @@ public class Lump {
             return null;
         }
 
-        // The resulting colors array
         int[] colors = new int[16 * 16];
+        this.getColors(this.getNeighbour(0, -1), colors);
 
-        boolean has_ceiling = this.plane.hasCeiling();
+        return colors;
+    }
 
-        // Get the chunk north of this chunk for shading
-        Lump north = this.getNeighbour(0, -1);
+    /**
+     * Render the colors of this chunk in ABGR format into the given buffer.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    north    The lump north of this one, if it exists
+     * @param    colors   The buffer of at least 256 entries to render into
+     *
+     * @return   False if this lump has no plane to render with
+     */
+    public boolean getColors(@Nullable Lump north, int[] colors) {
+        return this.getColors(north, colors, 0, 16, PixelFormat.ABGR);
+    }
 
-        // The last height values
-        int[] last_heights = new int[16];
+    /**
+     * Render the colors of this chunk into the given buffer.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    north    The lump north of this one, if it exists
+     * @param    target   The buffer to render into
+     * @param    offset   The index of the north-west pixel in the buffer
+     * @param    stride   The distance between 2 rows in the buffer
+     * @param    format   The pixel format to write
+     *
+     * @return   False if this lump has no plane to render with
+     */
+    public boolean getColors(@Nullable Lump north, IntBuffer target, int offset, int stride, PixelFormat format) {
 
-        BlockSearcher searcher = new BlockSearcher(this.getPlane());
+        if (target.hasArray()) {
+            return this.getColors(north, target.array(), target.arrayOffset() + offset, stride, format);
+        }
 
-        // Iterate over all the X blocks
-        for (int x = 0; x < 16; x++) {
+        int[] scratch = SCRATCH_COLORS.get();
 
-            if (north != null) {
-                if (has_ceiling) {
-                    searcher.searchForBlockUnderCeiling(north, x, 15);
-                } else {
-                    searcher.searchForBlock(north, x, 15);
-                }
+        if (!this.getColors(north, scratch, 0, 16, format)) {
+            return false;
+        }
 
-                last_heights[x] = searcher.getHeight();
-            }
+        for (int z = 0; z < 16; z++) {
+            target.put(offset + z * stride, scratch, z * 16, 16);
+        }
 
-            // And iterate over all the Z blocks
-            for (int z = 0; z < 16; z++) {
+        return true;
+    }
 
+    /**
+     * Render the colors of this chunk into the given buffer.
+     * Nothing is allocated: the thread's own BlockSearcher is reused.
+     *
+     * Without a north neighbour, the first row is shaded
+     * as if the terrain north of it were level with it.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    north    The lump north of this one, if it exists
+     * @param    target   The buffer to render into
+     * @param    offset   The index of the north-west pixel in the buffer
+     * @param    stride   The distance between 2 rows in the buffer
+     * @param    format   The pixel format to write
+     *
+     * @return   False if this lump has no plane to render with
+     */
+    public boolean getColors(@Nullable Lump north, int[] target, int offset, int stride, PixelFormat format) {
+        return this.render(north, null, target, offset, stride, format);
+    }
+
+    /**
+     * Render the colors of this chunk into the given buffer,
+     * shading the first row with the given heights of the row north of it.
+     * This lets a caller rendering chunks from north to south
+     * carry the heights over without searching the northern chunk again.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    last_heights   The heights of the 16 blocks north of this chunk
+     *                          (or {@link #UNKNOWN_HEIGHT}), replaced by
+     *                          the heights of this chunk's southern row
+     * @param    target         The buffer to render into
+     * @param    offset         The index of the north-west pixel in the buffer
+     * @param    stride         The distance between 2 rows in the buffer
+     * @param    format         The pixel format to write
+     *
+     * @return   False if this lump has no plane to render with
+     */
+    public boolean getColorsWithHeights(int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+        return this.render(null, last_heights, target, offset, stride, format);
+    }
+
+    /**
+     * Get the heights of the surface blocks of the given row
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    z        The row (0 to 15)
+     * @param    target   The array to put the 16 heights in
+     *
+     * @return   False if this lump has no plane to search with
+     */
+    public boolean getRowHeights(int z, int[] target) {
+
+        if (this.plane == null) {
+            return false;
+        }
+
+        boolean has_ceiling = this.plane.hasCeiling();
+        BlockSearcher searcher = BlockSearcher.forThread(this.plane);
+
+        try {
+            for (int x = 0; x < 16; x++) {
                 if (has_ceiling) {
                     searcher.searchForBlockUnderCeiling(this, x, z);
                 } else {
                     searcher.searchForBlock(this, x, z);
                 }
 
-                int height = searcher.getHeight();
+                target[x] = searcher.getHeight();
+            }
+        } finally {
+            searcher.reset(null);
+        }
 
-                if (height > -64 && searcher.isVisibleFluid()) {
-                    searcher.calculateWaterDepth(this);
-                }
+        return true;
+    }
 
-                MapColor map_color = searcher.getCurrentMapColor();
+    /**
+     * Render the colors of this chunk,
+     * shading the first row with the given heights, or else the north lump
+     *
+     * @since    0.5.0
+     */
+    private boolean render(@Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
 
-                int shade;
+        if (this.plane == null) {
+            return false;
+        }
+
+        boolean has_ceiling = this.plane.hasCeiling();
 
-                if (map_color == MapColor.WATER_BLUE) {
-                    int water_depth = searcher.getWaterDepth();
-                    double shade_test = (double) water_depth * 0.1D + (double) (x + z & 1) * 0.2D;
-                    shade = 1;
+        BlockSearcher searcher = BlockSearcher.forThread(this.plane);
 
-                    if (shade_test < 0.5D) {
-                        shade = 2;
+        try {
+            // Iterate over all the X blocks
+            for (int x = 0; x < 16; x++) {
+
+                // The height of the block north of the current one
+                int last_height;
+
+                if (last_heights != null && last_heights[x] != UNKNOWN_HEIGHT) {
+                    last_height = last_heights[x];
+                } else {
+                    // Use the southern row of the north neighbour,
+                    // or this chunk's own first row if there is none
+                    Lump shade_source = north != null ? north : this;
+                    int shade_z = north != null ? 15 : 0;
+
+                    if (has_ceiling) {
+                        searcher.searchForBlockUnderCeiling(shade_source, x, shade_z);
+                    } else {
+                        searcher.searchForBlock(shade_source, x, shade_z);
                     }
 
-                    if (shade_test > 0.9D) {
-                        shade = 0;
+                    last_height = searcher.getHeight();
+                }
+
+                // And iterate over all the Z blocks
+                for (int z = 0; z < 16; z++) {
+
+                    if (has_ceiling) {
+                        searcher.searchForBlockUnderCeiling(this, x, z);
+                    } else {
+                        searcher.searchForBlock(this, x, z);
                     }
-                } else {
-                    double shade_test = (searcher.getHeight() - last_heights[x]) * 4.0D / 5.0D + ((double) (x + z & 1) - 0.5D) * 0.4D;
-                    shade = 1;
 
-                    if (shade_test > 0.6D) {
-                        shade = 2;
+                    int height = searcher.getHeight();
+
+                    if (height > -64 && searcher.isVisibleFluid()) {
+                        searcher.calculateWaterDepth(this);
                     }
 
-                    if (shade_test < -0.6D) {
-                        shade = 0;
+                    MapColor map_color = searcher.getCurrentMapColor();
+
+                    int shade;
+
+                    if (map_color == MapColor.WATER_BLUE) {
+                        int water_depth = searcher.getWaterDepth();
+                        double shade_test = (double) water_depth * 0.1D + (double) (x + z & 1) * 0.2D;
+                        shade = 1;
+
+                        if (shade_test < 0.5D) {
+                            shade = 2;
+                        }
+
+                        if (shade_test > 0.9D) {
+                            shade = 0;
+                        }
+                    } else {
+                        double shade_test = (searcher.getHeight() - last_height) * 4.0D / 5.0D + ((double) (x + z & 1) - 0.5D) * 0.4D;
+                        shade = 1;
+
+                        if (shade_test > 0.6D) {
+                            shade = 2;
+                        }
+
+                        if (shade_test < -0.6D) {
+                            shade = 0;
+                        }
                     }
+
+                    last_height = searcher.getHeight();
+                    target[offset + z * stride + x] = format.fromABGR(TileGenerator.getRenderColor(map_color, shade));
                 }
 
-                last_heights[x] = searcher.getHeight();
-                colors[x + (z * 16)] = TileGenerator.getRenderColor(map_color, shade);
+                if (last_heights != null) {
+                    last_heights[x] = last_height;
+                }
             }
+        } finally {
+            searcher.reset(null);
         }
 
-        return colors;
+        return true;
     }
 
     /**
@@ -371,7 +590,10 @@ public class Lump {
      * format.
      *
      * @param pixels the pixels to convert
+     *
+     * @deprecated   Render in the wanted {@link PixelFormat} directly instead
      */
+    @Deprecated
     public static void convertABGRtoARGB(int[] pixels) {
         int p, r, g, b, a;
         for (int i = 0; i < pixels.length; i++) {
@@ -0,0 +1,244 @@
+package rocks.blackblock.chunker.chunk;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the raw chunk NBT straight out of a region file,
+ * without going through the server's IO worker.
+ *
+ * Only chunks stored inside the file with gzip, zlib or no compression
+ * can be read: anything else (external .mcc files, LZ4, ...) should be
+ * fetched with a {@link ChunkFetcher.Session} instead.
+ * The NBT is returned as it was saved, so it is not upgraded by the DataFixer.
+ *
+ * A reader is not thread-safe.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class RegionFileReader implements Closeable {
+
+    // The size of a sector of a region file
+    public static final int SECTOR_SIZE = 4096;
+
+    // The compression types this reader supports
+    private static final int GZIP = 1;
+    private static final int ZLIB = 2;
+    private static final int UNCOMPRESSED = 3;
+
+    private final int region_x;
+    private final int region_z;
+    private final FileChannel channel;
+
+    // The location of every chunk: the sector offset in the upper 3 bytes, the sector count in the lowest
+    private final int[] locations = new int[1024];
+
+    /**
+     * Open the given region file
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    path       The path to the region file
+     * @param    region_x   The region X coordinate
+     * @param    region_z   The region Z coordinate
+     */
+    public RegionFileReader(Path path, int region_x, int region_z) throws IOException {
+        this.region_x = region_x;
+        this.region_z = region_z;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE);
+            this.readFully(header, 0);
+            header.flip();
+            header.asIntBuffer().get(this.locations, 0, header.remaining() / 4);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the given region of the given fetcher's world
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    fetcher    The fetcher of the world
+     * @param    region_x   The region X coordinate
+     * @param    region_z   The region Z coordinate
+     */
+    public static RegionFileReader open(ChunkFetcher fetcher, int region_x, int region_z) throws IOException {
+        Path path = fetcher.getRegionFolder().toPath().resolve("r." + region_x + "." + region_z + ".mca");
+        return new RegionFileReader(path, region_x, region_z);
+    }
+
+    /**
+     * Get the region X coordinate
+     *
+     * @since    0.5.0
+     */
+    public int getRegionX() {
+        return this.region_x;
+    }
+
+    /**
+     * Get the region Z coordinate
+     *
+     * @since    0.5.0
+     */
+    public int getRegionZ() {
+        return this.region_z;
+    }
+
+    /**
+     * Is the chunk with the given index (`(chunk_x & 31) + (chunk_z & 31) * 32`) stored?
+     *
+     * @since    0.5.0
+     */
+    public boolean hasChunk(int index) {
+        return this.getSectorCount(index) > 0 && this.getSectorOffset(index) >= 2;
+    }
+
+    /**
+     * Get the first sector of the chunk with the given index
+     *
+     * @since    0.5.0
+     */
+    public int getSectorOffset(int index) {
+        return this.locations[index] >>> 8;
+    }
+
+    /**
+     * Get the amount of sectors of the chunk with the given index
+     *
+     * @since    0.5.0
+     */
+    public int getSectorCount(int index) {
+        return this.locations[index] & 0xFF;
+    }
+
+    /**
+     * Get the indices of all stored chunks, in the order they are stored in the file,
+     * so reading them one after another is a forward scan of the file
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public int[] getChunkIndicesBySector() {
+
+        int count = 0;
+        int[] result = new int[1024];
+
+        for (int index = 0; index < 1024; index++) {
+            if (this.hasChunk(index)) {
+                result[count++] = index;
+            }
+        }
+
+        IntArrays.quickSort(result, 0, count, (int a, int b) -> Integer.compare(this.getSectorOffset(a), this.getSectorOffset(b)));
+
+        return IntArrays.trim(result, count);
+    }
+
+    /**
+     * Read the NBT of the chunk with the given index
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    index   The index of the chunk: `(chunk_x & 31) + (chunk_z & 31) * 32`
+     *
+     * @return   The NBT, or null if the chunk is not stored or can't be read by this reader
+     */
+    @Nullable
+    public NbtCompound readChunk(int index) throws IOException {
+
+        if (!this.hasChunk(index)) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(this.getSectorCount(index) * SECTOR_SIZE);
+        this.readFully(buffer, (long) this.getSectorOffset(index) * SECTOR_SIZE);
+        buffer.flip();
+
+        if (buffer.remaining() < 5) {
+            return null;
+        }
+
+        // The length includes the compression type byte
+        int length = buffer.getInt() - 1;
+        int compression = buffer.get();
+
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+
+        InputStream stream = new ByteArrayInputStream(buffer.array(), buffer.position(), length);
+
+        switch (compression) {
+            case GZIP -> stream = new GZIPInputStream(stream);
+            case ZLIB -> stream = new InflaterInputStream(stream);
+            case UNCOMPRESSED -> {}
+            default -> {
+                // External (the high bit is set) or unsupported compression
+                return null;
+            }
+        }
+
+        try (DataInputStream input = new DataInputStream(stream)) {
+            return NbtIo.readCompound(input);
+        }
+    }
+
+    /**
+     * Was the given chunk NBT saved by the running game version,
+     * so it can be used without being upgraded first?
+     *
+     * @since    0.5.0
+     */
+    public static boolean isCurrentVersion(NbtCompound chunk_nbt) {
+        return chunk_nbt.getInt("DataVersion") == SharedConstants.getGameVersion().getSaveVersion().getId();
+    }
+
+    /**
+     * Fill the given buffer from the given position,
+     * or until the end of the file
+     *
+     * @since    0.5.0
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Close the file
+     *
+     * @since    0.5.0
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
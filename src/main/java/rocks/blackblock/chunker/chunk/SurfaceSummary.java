@@ -0,0 +1,266 @@
+package rocks.blackblock.chunker.chunk;
+
+import net.minecraft.block.MapColor;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.render.PixelFormat;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Everything a surface render needs to know about a chunk, in about 1 KB:
+ * the height, map color & water depth of the surface block of every column,
+ * plus the heights of the row north of the chunk (if they were known).
+ *
+ * Rendering a summary gives exactly the same pixels as rendering its lump,
+ * without searching a single block.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class SurfaceSummary {
+
+    // The size of a serialized summary
+    public static final int BYTE_SIZE = 256 * 2 + 256 + 256 + 16 * 2;
+
+    // The stored value of an unknown height
+    private static final short UNKNOWN = Short.MIN_VALUE;
+
+    // Everything is stored row by row (index = z * 16 + x)
+    private final short[] heights;
+    private final byte[] colors;
+    private final byte[] water_depths;
+    private final short[] north_heights;
+
+    private SurfaceSummary(short[] heights, byte[] colors, byte[] water_depths, short[] north_heights) {
+        this.heights = heights;
+        this.colors = colors;
+        this.water_depths = water_depths;
+        this.north_heights = north_heights;
+    }
+
+    /**
+     * Summarize the surface of the given lump
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    lump            The lump to summarize
+     * @param    north_heights   The heights of the southern row of the chunk north of it, if known
+     *
+     * @return   The summary, or null if the lump has no plane to search with
+     */
+    @Nullable
+    public static SurfaceSummary of(Lump lump, @Nullable int[] north_heights) {
+
+        Plane plane = lump.getPlane();
+
+        if (plane == null) {
+            return null;
+        }
+
+        short[] heights = new short[256];
+        byte[] colors = new byte[256];
+        byte[] water_depths = new byte[256];
+        short[] north = new short[16];
+
+        boolean has_ceiling = plane.hasCeiling();
+        BlockSearcher searcher = BlockSearcher.forThread(plane);
+
+        try {
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+
+                    if (has_ceiling) {
+                        searcher.searchForBlockUnderCeiling(lump, x, z);
+                    } else {
+                        searcher.searchForBlock(lump, x, z);
+                    }
+
+                    int height = searcher.getHeight();
+                    int index = z * 16 + x;
+
+                    if (height > -64 && searcher.isVisibleFluid()) {
+                        searcher.calculateWaterDepth(lump);
+                        water_depths[index] = (byte) Math.min(255, searcher.getWaterDepth());
+                    }
+
+                    heights[index] = (short) height;
+                    colors[index] = (byte) searcher.getCurrentMapColor().id;
+                }
+
+                if (north_heights != null && north_heights[x] != Lump.UNKNOWN_HEIGHT) {
+                    north[x] = (short) north_heights[x];
+                } else {
+                    north[x] = UNKNOWN;
+                }
+            }
+        } finally {
+            searcher.reset(null);
+        }
+
+        return new SurfaceSummary(heights, colors, water_depths, north);
+    }
+
+    /**
+     * Read a summary written by {@link #write(ByteBuffer)}
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    buffer   The buffer to read {@link #BYTE_SIZE} bytes from
+     */
+    public static SurfaceSummary read(ByteBuffer buffer) {
+
+        short[] heights = new short[256];
+        byte[] colors = new byte[256];
+        byte[] water_depths = new byte[256];
+        short[] north_heights = new short[16];
+
+        buffer.asShortBuffer().get(heights);
+        buffer.position(buffer.position() + 512);
+        buffer.get(colors);
+        buffer.get(water_depths);
+        buffer.asShortBuffer().get(north_heights);
+        buffer.position(buffer.position() + 32);
+
+        return new SurfaceSummary(heights, colors, water_depths, north_heights);
+    }
+
+    /**
+     * Write this summary into the given buffer
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    buffer   The buffer to write {@link #BYTE_SIZE} bytes to
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.asShortBuffer().put(this.heights);
+        buffer.position(buffer.position() + 512);
+        buffer.put(this.colors);
+        buffer.put(this.water_depths);
+        buffer.asShortBuffer().put(this.north_heights);
+        buffer.position(buffer.position() + 32);
+    }
+
+    /**
+     * Get the height of the surface block of the given column
+     *
+     * @since    0.5.0
+     */
+    public int getHeight(int x, int z) {
+        return this.heights[(z & 15) * 16 + (x & 15)];
+    }
+
+    /**
+     * Get the heights of the surface blocks of the given row
+     *
+     * @since    0.5.0
+     *
+     * @param    z        The row (0 to 15)
+     * @param    target   The array to put the 16 heights in
+     */
+    public void getRowHeights(int z, int[] target) {
+        for (int x = 0; x < 16; x++) {
+            target[x] = this.heights[(z & 15) * 16 + x];
+        }
+    }
+
+    /**
+     * Get the map color of the surface block of the given column
+     *
+     * @since    0.5.0
+     */
+    public MapColor getMapColor(int x, int z) {
+        return MapColor.get(this.colors[(z & 15) * 16 + (x & 15)]);
+    }
+
+    /**
+     * Get the depth of the water of the given column
+     *
+     * @since    0.5.0
+     */
+    public int getWaterDepth(int x, int z) {
+        return this.water_depths[(z & 15) * 16 + (x & 15)] & 0xFF;
+    }
+
+    /**
+     * Get the stored height of the block north of the given column of the first row
+     *
+     * @since    0.5.0
+     *
+     * @return   The height, or {@link Lump#UNKNOWN_HEIGHT}
+     */
+    public int getNorthHeight(int x) {
+        short height = this.north_heights[x & 15];
+        return height == UNKNOWN ? Lump.UNKNOWN_HEIGHT : height;
+    }
+
+    /**
+     * Render the colors of this chunk into the given buffer,
+     * exactly like {@link Lump#getColors(Lump, int[], int, int, PixelFormat)} would.
+     * The first row is shaded with the summary north of it,
+     * or else the stored heights, or else as level terrain.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    north    The summary of the chunk north of this one, if known
+     * @param    target   The buffer to render into
+     * @param    offset   The index of the north-west pixel in the buffer
+     * @param    stride   The distance between 2 rows in the buffer
+     * @param    format   The pixel format to write
+     */
+    public void render(@Nullable SurfaceSummary north, int[] target, int offset, int stride, PixelFormat format) {
+
+        for (int x = 0; x < 16; x++) {
+
+            int last_height;
+
+            if (north != null) {
+                last_height = north.heights[240 + x];
+            } else if (this.north_heights[x] != UNKNOWN) {
+                last_height = this.north_heights[x];
+            } else {
+                last_height = this.heights[x];
+            }
+
+            for (int z = 0; z < 16; z++) {
+                int index = z * 16 + x;
+                int height = this.heights[index];
+                MapColor map_color = MapColor.get(this.colors[index]);
+
+                int shade;
+
+                if (map_color == MapColor.WATER_BLUE) {
+                    double shade_test = (double) (this.water_depths[index] & 0xFF) * 0.1D + (double) (x + z & 1) * 0.2D;
+                    shade = 1;
+
+                    if (shade_test < 0.5D) {
+                        shade = 2;
+                    }
+
+                    if (shade_test > 0.9D) {
+                        shade = 0;
+                    }
+                } else {
+                    double shade_test = (height - last_height) * 4.0D / 5.0D + ((double) (x + z & 1) - 0.5D) * 0.4D;
+                    shade = 1;
+
+                    if (shade_test > 0.6D) {
+                        shade = 2;
+                    }
+
+                    if (shade_test < -0.6D) {
+                        shade = 0;
+                    }
+                }
+
+                last_height = height;
+                target[offset + z * stride + x] = format.fromABGR(TileGenerator.getRenderColor(map_color, shade));
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package rocks.blackblock.chunker.chunk;
+
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores surface summaries on disk, one file per region,
+ * under {@code <world>/chunker/summaries}.
+ *
+ * Every chunk has a fixed slot in its region's file,
+ * holding the region file timestamp of the chunk it was made from.
+ * A slot is only valid for as long as that timestamp doesn't change,
+ * so only summaries of saved (unloaded) chunks should be stored,
+ * and the slot of a chunk should be cleared once it changes.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class SurfaceSummaryStore {
+
+    // The size of a slot: the timestamp & the summary
+    private static final int SLOT_SIZE = 4 + SurfaceSummary.BYTE_SIZE;
+
+    private final ChunkFetcher fetcher;
+    private final Path folder;
+
+    /**
+     * Create a store for the given world
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    fetcher   The fetcher of the world
+     */
+    public SurfaceSummaryStore(ChunkFetcher fetcher) {
+        this.fetcher = fetcher;
+        this.folder = fetcher.getWorldFolder().toPath().resolve("chunker").resolve("summaries");
+    }
+
+    /**
+     * Get the file of the given region
+     *
+     * @since    0.5.0
+     */
+    private Path getPath(int region_x, int region_z) {
+        return this.folder.resolve("r." + region_x + "." + region_z + ".sum");
+    }
+
+    /**
+     * Get the current region file timestamp of the given chunk
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_x   The chunk X coordinate
+     * @param    chunk_z   The chunk Z coordinate
+     *
+     * @return   The timestamp, or 0 if the chunk isn't stored
+     */
+    public int getTimestamp(int chunk_x, int chunk_z) {
+
+        int[] timestamps = this.fetcher.getRegionTimestamps(chunk_x >> 5, chunk_z >> 5);
+
+        if (timestamps == null) {
+            return 0;
+        }
+
+        return timestamps[(chunk_x & 31) + (chunk_z & 31) * 32];
+    }
+
+    /**
+     * Read the stored summary of the given chunk, if it is still valid
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_x   The chunk X coordinate
+     * @param    chunk_z   The chunk Z coordinate
+     */
+    @Nullable
+    public SurfaceSummary read(int chunk_x, int chunk_z) {
+
+        int timestamp = this.getTimestamp(chunk_x, chunk_z);
+
+        if (timestamp == 0) {
+            return null;
+        }
+
+        long position = (long) ((chunk_x & 31) + (chunk_z & 31) * 32) * SLOT_SIZE;
+
+        try (FileChannel channel = FileChannel.open(this.getPath(chunk_x >> 5, chunk_z >> 5), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            buffer.flip();
+
+            if (buffer.getInt() != timestamp) {
+                return null;
+            }
+
+            return SurfaceSummary.read(buffer);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to read the surface summary of chunk [{}, {}]", chunk_x, chunk_z, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the summary of the given chunk
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_x     The chunk X coordinate
+     * @param    chunk_z     The chunk Z coordinate
+     * @param    timestamp   The timestamp of the chunk the summary was made from,
+     *                       gotten before reading it
+     * @param    summary     The summary to store
+     */
+    public void write(int chunk_x, int chunk_z, int timestamp, SurfaceSummary summary) {
+
+        if (timestamp == 0) {
+            return;
+        }
+
+        Path path = this.getPath(chunk_x >> 5, chunk_z >> 5);
+        long position = (long) ((chunk_x & 31) + (chunk_z & 31) * 32) * SLOT_SIZE;
+
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+        buffer.putInt(timestamp);
+        summary.write(buffer);
+        buffer.flip();
+
+        try {
+            Files.createDirectories(this.folder);
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+            }
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to write the surface summary of chunk [{}, {}]", chunk_x, chunk_z, e);
+        }
+    }
+
+    /**
+     * Clear the stored summary of the given chunk, if there is one,
+     * for when the chunk changed without its timestamp changing (yet)
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_x   The chunk X coordinate
+     * @param    chunk_z   The chunk Z coordinate
+     */
+    public void clear(int chunk_x, int chunk_z) {
+
+        long position = (long) ((chunk_x & 31) + (chunk_z & 31) * 32) * SLOT_SIZE;
+
+        // A timestamp of 0 never matches a stored chunk
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+
+        try (FileChannel channel = FileChannel.open(this.getPath(chunk_x >> 5, chunk_z >> 5), StandardOpenOption.WRITE)) {
+            if (channel.size() < position + SLOT_SIZE) {
+                return;
+            }
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing is stored for this region
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to clear the surface summary of chunk [{}, {}]", chunk_x, chunk_z, e);
+        }
+    }
+}
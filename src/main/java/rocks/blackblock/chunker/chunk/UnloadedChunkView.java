@@ -12,17 +12,25 @@ import net.minecraft.fluid.Fluids;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.registry.RegistryKeys;
 import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.PackedIntegerArray;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.world.Heightmap;
+import net.minecraft.world.LightType;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkNibbleArray;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.chunk.UpgradeData;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.ChunkLightingView;
 import net.minecraft.world.tick.BasicTickScheduler;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -37,12 +45,167 @@ public class UnloadedChunkView extends Chunk {
     private final Heightmap worldSurfaceHeightmap;
     private final ChunkPos pos;
 
-    UnloadedChunkView(ChunkSection[] sections, World world, ChunkPos pos) {
+    // The stored block light of every section (null when it is dark)
+    private final ChunkNibbleArray[] blockLight;
+
+    // Was this decoded from the saved data (and not copied from a loaded chunk)?
+    private final boolean fromDisk;
+
+    UnloadedChunkView(ChunkSection[] sections, World world, ChunkPos pos, boolean fromDisk) {
         super(pos, UpgradeData.NO_UPGRADE_DATA, world, world.getRegistryManager().get(RegistryKeys.BIOME), 0, null, null);
         this.sections = sections;
         this.world = world;
         this.worldSurfaceHeightmap = new Heightmap(this, Heightmap.Type.WORLD_SURFACE);
         this.pos = pos;
+        this.blockLight = new ChunkNibbleArray[sections.length];
+        this.fromDisk = fromDisk;
+    }
+
+    /**
+     * Was this view decoded from the chunk's saved data?
+     * Copies of loaded chunks may contain unsaved changes.
+     *
+     * @since   0.5.0
+     */
+    public boolean isFromDisk() {
+        return this.fromDisk;
+    }
+
+    /**
+     * Copy the blocks, biomes, world surface heightmap & block light of a loaded chunk.
+     * This has to be called on the server thread: the copy can then be read from any thread,
+     * without touching the live chunk again.
+     * The block counts of the copied sections are not calculated yet,
+     * call {@link #calculateCounts()} (on any thread) before using it.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk   The loaded chunk to copy
+     * @param    world   The world the chunk is in
+     */
+    static UnloadedChunkView copyOf(WorldChunk chunk, World world) {
+
+        ChunkSection[] source = chunk.getSectionArray();
+        ChunkSection[] sections = new ChunkSection[source.length];
+
+        // Copying a container copies its palette & packed data array in bulk
+        for (int i = 0; i < source.length; i++) {
+            sections[i] = new ChunkSection(source[i].getBlockStateContainer().copy(), source[i].getBiomeContainer().slice());
+        }
+
+        UnloadedChunkView result = new UnloadedChunkView(sections, world, chunk.getPos(), false);
+        result.setHeightmap(Heightmap.Type.WORLD_SURFACE, chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE).asLongArray());
+
+        ChunkLightingView light = world.getLightingProvider().get(LightType.BLOCK);
+
+        for (int i = 0; i < sections.length; i++) {
+            ChunkNibbleArray levels = light.getLightSection(ChunkSectionPos.from(chunk.getPos(), chunk.sectionIndexToCoord(i)));
+
+            if (levels != null && !levels.isUninitialized()) {
+                result.blockLight[i] = levels.copy();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculate the block counts of all sections,
+     * which tell if they are empty
+     *
+     * @since   0.5.0
+     */
+    void calculateCounts() {
+        for (ChunkSection section : this.sections) {
+            if (section != null) {
+                section.calculateCounts();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the world surface heightmap from the blocks.
+     * Sections are walked from the top down: empty sections are skipped at once,
+     * a section without any air (according to its palette) tops all remaining columns at once,
+     * and the other sections are scanned layer by layer, only for the columns that are still open.
+     * The section counts have to be calculated first.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    void rebuildHeightmap() {
+
+        int bottom_y = this.getBottomY();
+        PackedIntegerArray storage = new PackedIntegerArray(MathHelper.ceilLog2(this.getHeight() + 1), 256);
+
+        // The columns that got their height already
+        BitSet done = new BitSet(256);
+
+        for (int index = this.sections.length - 1; index >= 0 && done.cardinality() < 256; index--) {
+            ChunkSection section = this.sections[index];
+
+            if (section == null || section.isEmpty()) {
+                continue;
+            }
+
+            // The height above the bottom of the world of the lowest block of this section
+            int section_base = ChunkSectionPos.getBlockCoord(this.sectionIndexToCoord(index)) - bottom_y;
+
+            if (!section.getBlockStateContainer().hasAny(BlockState::isAir)) {
+                for (int column = done.nextClearBit(0); column < 256; column = done.nextClearBit(column + 1)) {
+                    storage.set(column, section_base + 16);
+                }
+
+                break;
+            }
+
+            for (int y = 15; y >= 0; y--) {
+                for (int column = done.nextClearBit(0); column < 256; column = done.nextClearBit(column + 1)) {
+                    if (!section.getBlockState(column & 15, y, column >> 4).isAir()) {
+                        storage.set(column, section_base + y + 1);
+                        done.set(column);
+                    }
+                }
+            }
+        }
+
+        this.setHeightmap(Heightmap.Type.WORLD_SURFACE, storage.getData());
+    }
+
+    /**
+     * Set the stored block light of the given section
+     *
+     * @since   0.5.0
+     */
+    void setBlockLight(int sectionIndex, ChunkNibbleArray light) {
+        this.blockLight[sectionIndex] = light;
+    }
+
+    /**
+     * Get the stored block light level of the given block
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    pos   The position of the block
+     *
+     * @return   The light level (0 to 15)
+     */
+    public int getBlockLight(BlockPos pos) {
+        int sectionIndex = this.getSectionIndex(pos.getY());
+
+        if (sectionIndex < 0 || sectionIndex >= this.blockLight.length) {
+            return 0;
+        }
+
+        ChunkNibbleArray light = this.blockLight[sectionIndex];
+
+        if (light == null) {
+            return 0;
+        }
+
+        return light.get(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
     }
 
     @Override
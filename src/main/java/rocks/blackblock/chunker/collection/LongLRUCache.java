@@ -0,0 +1,321 @@
+package rocks.blackblock.chunker.collection;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * A thread-safe LRU cache keyed on primitive longs
+ * (like packed chunk positions).
+ *
+ * The cache is split into independently locked segments,
+ * so concurrent readers & writers rarely contend.
+ * Lookups never box the key, so a cache hit does not allocate.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class LongLRUCache<V> {
+
+    // The amount of segments to use for large caches
+    private static final int MAX_SEGMENTS = 16;
+
+    // The actual segments
+    private final Segment<V>[] segments;
+
+    // The mask to get the segment index of a hashed key
+    private final int segment_mask;
+
+    // The optional weigher of values
+    @Nullable
+    private final ToIntFunction<V> weigher;
+
+    // The maximum total weight (or entry count without weigher)
+    private volatile long max_weight;
+
+    // The amount of entries evicted to make room
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a cache that holds at most the given amount of entries
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    capacity   The maximum amount of entries
+     */
+    public LongLRUCache(long capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Create a cache that holds at most the given total weight
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    max_weight   The maximum total weight
+     * @param    weigher      The function to weigh values with,
+     *                        or null to count entries
+     */
+    @SuppressWarnings("unchecked")
+    public LongLRUCache(long max_weight, @Nullable ToIntFunction<V> weigher) {
+
+        if (max_weight < 1) {
+            throw new IllegalArgumentException("The maximum weight of a cache should be at least 1");
+        }
+
+        // Small caches don't benefit from many segments
+        int segment_count = MAX_SEGMENTS;
+
+        while (segment_count > 1 && max_weight / segment_count < 8) {
+            segment_count >>= 1;
+        }
+
+        this.segments = new Segment[segment_count];
+        this.segment_mask = segment_count - 1;
+        this.weigher = weigher;
+        this.max_weight = max_weight;
+
+        for (int i = 0; i < segment_count; i++) {
+            this.segments[i] = new Segment<>();
+        }
+    }
+
+    /**
+     * Get the segment responsible for the given key
+     *
+     * @since    0.5.0
+     */
+    private Segment<V> getSegment(long key) {
+        return this.segments[(int) HashCommon.mix(key) & this.segment_mask];
+    }
+
+    /**
+     * Get the weight of the given value
+     *
+     * @since    0.5.0
+     */
+    private long weigh(V value) {
+
+        if (this.weigher == null) {
+            return 1;
+        }
+
+        return Math.max(0, this.weigher.applyAsInt(value));
+    }
+
+    /**
+     * Get the maximum weight a single segment can hold
+     *
+     * @since    0.5.0
+     */
+    private long getSegmentMaxWeight() {
+        return Math.max(1, this.max_weight / this.segments.length);
+    }
+
+    /**
+     * Get the value for the given key,
+     * and mark it as recently used
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    key   The key to look for
+     */
+    @Nullable
+    public V get(long key) {
+        Segment<V> segment = this.getSegment(key);
+
+        synchronized (segment) {
+            return segment.map.getAndMoveToLast(key);
+        }
+    }
+
+    /**
+     * Is there a value for the given key?
+     * This does not change the order of the entries.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    key   The key to look for
+     */
+    public boolean containsKey(long key) {
+        Segment<V> segment = this.getSegment(key);
+
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
+    }
+
+    /**
+     * Put a value in the cache,
+     * evicting the least recently used entries if needed
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    key     The key to store the value under
+     * @param    value   The value to store
+     *
+     * @return   The previous value, if any
+     */
+    @Nullable
+    public V put(long key, V value) {
+
+        if (value == null) {
+            return this.remove(key);
+        }
+
+        Segment<V> segment = this.getSegment(key);
+        long weight = this.weigh(value);
+        long segment_max = this.getSegmentMaxWeight();
+
+        synchronized (segment) {
+            V previous = segment.map.putAndMoveToLast(key, value);
+
+            if (previous != null) {
+                segment.weight -= this.weigh(previous);
+            }
+
+            segment.weight += weight;
+
+            // Evict the oldest entries, but never the one we just added
+            while (segment.weight > segment_max && segment.map.size() > 1) {
+                V evicted = segment.map.removeFirst();
+                segment.weight -= this.weigh(evicted);
+                this.evictions.increment();
+            }
+
+            return previous;
+        }
+    }
+
+    /**
+     * Remove the value for the given key
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    key   The key to remove
+     *
+     * @return   The removed value, if any
+     */
+    @Nullable
+    public V remove(long key) {
+        Segment<V> segment = this.getSegment(key);
+
+        synchronized (segment) {
+            V previous = segment.map.remove(key);
+
+            if (previous != null) {
+                segment.weight -= this.weigh(previous);
+            }
+
+            return previous;
+        }
+    }
+
+    /**
+     * Remove all the entries
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public void clear() {
+        for (Segment<V> segment : this.segments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    /**
+     * Get the current amount of entries
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public int size() {
+        int result = 0;
+
+        for (Segment<V> segment : this.segments) {
+            synchronized (segment) {
+                result += segment.map.size();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the current total weight
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public long getWeight() {
+        long result = 0;
+
+        for (Segment<V> segment : this.segments) {
+            synchronized (segment) {
+                result += segment.weight;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the amount of entries that were evicted to make room
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Get the maximum total weight
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public long getMaxWeight() {
+        return this.max_weight;
+    }
+
+    /**
+     * Set the maximum total weight.
+     * Shrinking the cache evicts entries lazily, on the next put.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    max_weight   The new maximum total weight
+     */
+    public void setMaxWeight(long max_weight) {
+
+        if (max_weight < 1) {
+            throw new IllegalArgumentException("The maximum weight of a cache should be at least 1");
+        }
+
+        this.max_weight = max_weight;
+    }
+
+    /**
+     * A single, independently locked part of the cache
+     *
+     * @since    0.5.0
+     */
+    private static class Segment<V> {
+        private final Long2ObjectLinkedOpenHashMap<V> map = new Long2ObjectLinkedOpenHashMap<>();
+        private long weight = 0;
+    }
+}
@@ -0,0 +1,268 @@
+package rocks.blackblock.chunker.governor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Adapts the amount of background work to the load of the server.
+ *
+ * The duration of every server tick is measured (without the idle time between ticks).
+ * Once a second the limits of the render workers, the chunk decode workers and
+ * the amount of chunk fetches in flight are adjusted: they are halved when the
+ * average tick time goes over the target, and slowly raised again while it stays
+ * well below it. This way background work uses the idle capacity of the server,
+ * but backs off before it makes the server lag.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class RenderGovernor {
+
+    // The default tick time to stay under, in milliseconds
+    public static final double DEFAULT_TARGET_MSPT = 40;
+
+    // The amount of ticks between adjustments
+    private static final int ADJUST_INTERVAL = 20;
+
+    // How much weight a new tick gets in the moving average
+    private static final double SMOOTHING = 0.1;
+
+    // Below this fraction of the target, the limits are raised
+    private static final double RAISE_THRESHOLD = 0.75;
+
+    private static final RenderGovernor INSTANCE = new RenderGovernor();
+
+    private final WorkLimiter render_limiter;
+    private final WorkLimiter decode_limiter;
+    private final WorkLimiter fetch_limiter;
+    private final Executor render_executor;
+    private final Executor decode_executor;
+    private final Executor io_executor;
+
+    private volatile double target_mspt = DEFAULT_TARGET_MSPT;
+    private volatile boolean enabled = true;
+
+    // Only touched by the server thread
+    private long tick_start = 0;
+    private int ticks_until_adjust = ADJUST_INTERVAL;
+
+    private volatile double average_mspt = 0;
+
+    /**
+     * Create the governor
+     *
+     * @since    0.5.0
+     */
+    private RenderGovernor() {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        this.render_limiter = new WorkLimiter("render", 1, Math.max(1, cores));
+        this.decode_limiter = new WorkLimiter("decode", 1, Math.max(1, cores / 2));
+        this.fetch_limiter = new WorkLimiter("fetch", 8, 512);
+
+        this.render_executor = this.render_limiter.wrap(ForkJoinPool.commonPool());
+        this.decode_executor = this.decode_limiter.wrap(ForkJoinPool.commonPool());
+
+        // Blocking file IO gets its own virtual threads, so it never ties up a pool worker
+        this.io_executor = this.fetch_limiter.wrap(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Get the shared governor
+     *
+     * @since    0.5.0
+     */
+    public static RenderGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the executor background renders should run on
+     *
+     * @since    0.5.0
+     */
+    public Executor getRenderExecutor() {
+        return this.render_executor;
+    }
+
+    /**
+     * Get the executor chunk data should be decoded on
+     *
+     * @since    0.5.0
+     */
+    public Executor getDecodeExecutor() {
+        return this.decode_executor;
+    }
+
+    /**
+     * Get the executor blocking file IO should run on.
+     * It shares its limit with the chunk fetches.
+     *
+     * @since    0.5.0
+     */
+    public Executor getIoExecutor() {
+        return this.io_executor;
+    }
+
+    /**
+     * Get the limiter of the background renders
+     *
+     * @since    0.5.0
+     */
+    public WorkLimiter getRenderLimiter() {
+        return this.render_limiter;
+    }
+
+    /**
+     * Get the limiter of the chunk decode workers
+     *
+     * @since    0.5.0
+     */
+    public WorkLimiter getDecodeLimiter() {
+        return this.decode_limiter;
+    }
+
+    /**
+     * Get the limiter of the chunk fetches in flight
+     *
+     * @since    0.5.0
+     */
+    public WorkLimiter getFetchLimiter() {
+        return this.fetch_limiter;
+    }
+
+    /**
+     * Get the tick time to stay under, in milliseconds
+     *
+     * @since    0.5.0
+     */
+    public double getTargetMspt() {
+        return this.target_mspt;
+    }
+
+    /**
+     * Set the tick time to stay under, in milliseconds
+     *
+     * @since    0.5.0
+     */
+    public void setTargetMspt(double target_mspt) {
+
+        if (target_mspt <= 0) {
+            throw new IllegalArgumentException("The target tick time should be positive");
+        }
+
+        this.target_mspt = target_mspt;
+    }
+
+    /**
+     * Enable or disable the throttling.
+     * Disabling it raises every limit to its maximum.
+     *
+     * @since    0.5.0
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        if (!enabled) {
+            this.setLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Is the throttling enabled?
+     *
+     * @since    0.5.0
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Get the moving average of the tick time, in milliseconds
+     *
+     * @since    0.5.0
+     */
+    public double getAverageMspt() {
+        return this.average_mspt;
+    }
+
+    /**
+     * Called by the server thread at the start of every tick
+     *
+     * @since    0.5.0
+     */
+    public void onTickStart() {
+        this.tick_start = System.nanoTime();
+    }
+
+    /**
+     * Called by the server thread at the end of every tick
+     *
+     * @since    0.5.0
+     */
+    public void onTickEnd() {
+
+        if (this.tick_start == 0) {
+            return;
+        }
+
+        double mspt = (System.nanoTime() - this.tick_start) / 1_000_000.0;
+        double average = this.average_mspt;
+
+        this.average_mspt = average == 0 ? mspt : average + (mspt - average) * SMOOTHING;
+
+        if (--this.ticks_until_adjust > 0) {
+            return;
+        }
+
+        this.ticks_until_adjust = ADJUST_INTERVAL;
+
+        if (this.enabled) {
+            this.adjust();
+        }
+    }
+
+    /**
+     * Adjust the limits to the average tick time:
+     * back off quickly, ramp up slowly
+     *
+     * @since    0.5.0
+     */
+    private void adjust() {
+
+        double average = this.average_mspt;
+        double target = this.target_mspt;
+
+        if (average > target) {
+            this.setLimits(
+                    this.render_limiter.getLimit() / 2,
+                    this.decode_limiter.getLimit() / 2,
+                    this.fetch_limiter.getLimit() / 2
+            );
+        } else if (average < target * RAISE_THRESHOLD) {
+            this.setLimits(
+                    this.render_limiter.getLimit() + 1,
+                    this.decode_limiter.getLimit() + 1,
+                    this.fetch_limiter.getLimit() + 8
+            );
+        }
+    }
+
+    /**
+     * Set all the limits (they are clamped to their own range)
+     *
+     * @since    0.5.0
+     */
+    private void setLimits(int render, int decode, int fetch) {
+        this.render_limiter.setLimit(render);
+        this.decode_limiter.setLimit(decode);
+        this.fetch_limiter.setLimit(fetch);
+    }
+
+    @Override
+    public String toString() {
+        return "RenderGovernor{average=" + String.format("%.1f", this.average_mspt) + "ms, target=" + this.target_mspt + "ms, "
+                + this.render_limiter + ", " + this.decode_limiter + ", " + this.fetch_limiter + "}";
+    }
+}
@@ -0,0 +1,237 @@
+package rocks.blackblock.chunker.governor;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many asynchronous tasks run at the same time.
+ * The limit can be changed at any time: lowering it lets the running tasks finish,
+ * but holds back the queued ones until enough of them are done.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class WorkLimiter {
+
+    private final String name;
+    private final int min_limit;
+    private final int max_limit;
+    private volatile int limit;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    // Is this thread already draining the queue further up the stack?
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Create a limiter
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    name        The name, for diagnostics
+     * @param    min_limit   The lowest the limit can go
+     * @param    max_limit   The highest the limit can go (and its initial value)
+     */
+    public WorkLimiter(String name, int min_limit, int max_limit) {
+
+        if (min_limit < 1 || max_limit < min_limit) {
+            throw new IllegalArgumentException("Invalid limits for " + name + ": " + min_limit + " to " + max_limit);
+        }
+
+        this.name = name;
+        this.min_limit = min_limit;
+        this.max_limit = max_limit;
+        this.limit = max_limit;
+    }
+
+    /**
+     * Start the given task once there is room for it.
+     * It keeps its slot until the stage it returns completes.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    task   The task that starts the actual work
+     *
+     * @return   A future that completes with the result of the work
+     */
+    public <T> CompletableFuture<T> submit(Supplier<? extends CompletionStage<T>> task) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        this.queue.add(() -> {
+            CompletionStage<T> stage;
+
+            try {
+                stage = task.get();
+            } catch (Throwable e) {
+                this.release();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            stage.whenComplete((value, error) -> {
+                this.release();
+
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+
+        this.drain();
+
+        return result;
+    }
+
+    /**
+     * Get an executor that runs its tasks on the given executor,
+     * but only as many at the same time as this limiter allows
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    delegate   The executor to actually run the tasks on
+     */
+    public Executor wrap(Executor delegate) {
+        return command -> this.submit(() -> CompletableFuture.runAsync(command, delegate));
+    }
+
+    /**
+     * Start queued tasks while there is room.
+     * Tasks that complete right away don't recurse:
+     * the outer call simply continues with the next task.
+     *
+     * @since    0.5.0
+     */
+    private void drain() {
+
+        if (this.draining.get()) {
+            return;
+        }
+
+        this.draining.set(true);
+
+        try {
+            this.drainQueue();
+        } finally {
+            this.draining.set(false);
+        }
+    }
+
+    /**
+     * Start queued tasks while there is room
+     *
+     * @since    0.5.0
+     */
+    private void drainQueue() {
+        while (!this.queue.isEmpty()) {
+            int current = this.running.get();
+
+            if (current >= this.limit) {
+                return;
+            }
+
+            if (!this.running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Runnable next = this.queue.poll();
+
+            if (next == null) {
+                this.running.decrementAndGet();
+                continue;
+            }
+
+            next.run();
+        }
+    }
+
+    /**
+     * Free a slot & start the next task
+     *
+     * @since    0.5.0
+     */
+    private void release() {
+        this.running.decrementAndGet();
+        this.drain();
+    }
+
+    /**
+     * Get the name of this limiter
+     *
+     * @since    0.5.0
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the current limit
+     *
+     * @since    0.5.0
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Set the current limit, within the minimum & maximum
+     *
+     * @since    0.5.0
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.max(this.min_limit, Math.min(this.max_limit, limit));
+        this.drain();
+    }
+
+    /**
+     * Get the lowest the limit can go
+     *
+     * @since    0.5.0
+     */
+    public int getMinLimit() {
+        return this.min_limit;
+    }
+
+    /**
+     * Get the highest the limit can go
+     *
+     * @since    0.5.0
+     */
+    public int getMaxLimit() {
+        return this.max_limit;
+    }
+
+    /**
+     * Get the amount of tasks running right now
+     *
+     * @since    0.5.0
+     */
+    public int getRunning() {
+        return this.running.get();
+    }
+
+    /**
+     * Get the amount of tasks waiting for a slot
+     *
+     * @since    0.5.0
+     */
+    public int getQueued() {
+        return this.queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "[" + this.running.get() + "/" + this.limit + ", " + this.queue.size() + " queued]";
+    }
+}
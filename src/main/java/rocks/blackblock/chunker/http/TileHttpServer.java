@@ -0,0 +1,363 @@
+package rocks.blackblock.chunker.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.render.RenderLayer;
+import rocks.blackblock.chunker.render.SurfaceLayer;
+import rocks.blackblock.chunker.tile.EncodedTile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small HTTP server for tiles, at `/{world}/{zoom}/{x}/{z}.png`
+ * for the surface, or `/{world}/{layer}/{zoom}/{x}/{z}.png` for any other layer
+ * (see {@link RenderLayer#fromName}).
+ * Only the configured layers are served, since every layer gets its own tiles in memory & on disk:
+ * requests for any other layer are answered with a 404.
+ *
+ * Every request is handled on its own virtual thread,
+ * so waiting for a render does not tie up a platform thread.
+ * Responses carry an ETag and support conditional requests,
+ * which are answered without rendering anything.
+ * Connections are kept alive, since every response has a known length.
+ * Unless another address is configured, only the loopback address is listened on.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class TileHttpServer {
+
+    // The system property holding the port to serve tiles on
+    public static final String PORT_PROPERTY = "chunker.http.port";
+
+    // The system property holding the address to listen on (the loopback address by default)
+    public static final String BIND_PROPERTY = "chunker.http.bind";
+
+    // The system property holding the comma-separated names of the layers to serve
+    public static final String LAYERS_PROPERTY = "chunker.http.layers";
+
+    // The layers that are served by default
+    public static final Set<String> DEFAULT_LAYERS = Set.of("surface", "height", "biome", "block_light");
+
+    // The default amount of seconds clients may use a tile without revalidating it
+    public static final int DEFAULT_MAX_AGE = 10;
+
+    private final TileGenerator generator;
+    private final InetSocketAddress address;
+    private volatile int max_age = DEFAULT_MAX_AGE;
+    private volatile Set<String> layers = DEFAULT_LAYERS;
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    /**
+     * Create a server for the tiles of the given generator,
+     * listening on the given port of the loopback address only
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    generator   The generator to get the tiles from
+     * @param    port        The port to listen on (0 for any free port)
+     */
+    public TileHttpServer(TileGenerator generator, int port) {
+        this(generator, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Create a server for the tiles of the given generator
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    generator   The generator to get the tiles from
+     * @param    address     The address to listen on
+     */
+    public TileHttpServer(TileGenerator generator, InetSocketAddress address) {
+        this.generator = generator;
+        this.address = address;
+    }
+
+    /**
+     * Set how many seconds clients may use a tile without revalidating it
+     *
+     * @since    0.5.0
+     */
+    public void setMaxAge(int max_age) {
+        this.max_age = Math.max(0, max_age);
+    }
+
+    /**
+     * Set the names of the layers to serve
+     *
+     * @since    0.5.0
+     *
+     * @param    layers   The layer names, see {@link RenderLayer#fromName}
+     */
+    public void setLayers(Collection<String> layers) {
+        this.layers = Set.copyOf(layers);
+    }
+
+    /**
+     * Start listening
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public synchronized void start() throws IOException {
+
+        if (this.server != null) {
+            return;
+        }
+
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.server = HttpServer.create(this.address, 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+
+        Chunker.LOGGER.info("Serving tiles on http://{}:{}/", this.address.getHostString(), this.getPort());
+    }
+
+    /**
+     * Stop listening, giving open requests a second to finish
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public synchronized void stop() {
+
+        if (this.server == null) {
+            return;
+        }
+
+        this.server.stop(1);
+        this.executor.shutdown();
+        this.server = null;
+        this.executor = null;
+    }
+
+    /**
+     * Get the address the server is listening on
+     *
+     * @since    0.5.0
+     */
+    public synchronized InetSocketAddress getAddress() {
+
+        if (this.server == null) {
+            return this.address;
+        }
+
+        return this.server.getAddress();
+    }
+
+    /**
+     * Get the port the server is listening on
+     *
+     * @since    0.5.0
+     */
+    public synchronized int getPort() {
+
+        if (this.server == null) {
+            return this.address.getPort();
+        }
+
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Handle a single request
+     *
+     * @since    0.5.0
+     */
+    private void handle(HttpExchange exchange) {
+        try {
+
+            // Consume the request body, so the connection can be reused
+            try (InputStream body = exchange.getRequestBody()) {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+
+            if (!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendEmpty(exchange, 405);
+                return;
+            }
+
+            TileRequest request = TileRequest.parse(exchange.getRequestURI().getRawPath(), this.layers);
+
+            if (request == null) {
+                sendEmpty(exchange, 404);
+                return;
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            String if_none_match = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+            // Answer conditional requests without rendering anything
+            if (if_none_match != null) {
+                String etag = this.generator.getTileETag(request.world, request.layer, request.x, request.z, request.zoom);
+
+                if (etag != null && matches(if_none_match, etag)) {
+                    headers.set("ETag", etag);
+                    headers.set("Cache-Control", this.getCacheControl());
+                    sendEmpty(exchange, 304);
+                    return;
+                }
+            }
+
+            EncodedTile tile;
+
+            try {
+                tile = this.generator.getEncodedTileAsync(request.world, request.layer, request.x, request.z, request.zoom).join();
+            } catch (CompletionException e) {
+                Chunker.LOGGER.error("Failed to render tile {}", exchange.getRequestURI(), e.getCause());
+                sendEmpty(exchange, 500);
+                return;
+            }
+
+            if (tile == null) {
+                sendEmpty(exchange, 404);
+                return;
+            }
+
+            byte[] data = tile.getData();
+
+            headers.set("Content-Type", "image/png");
+            headers.set("ETag", tile.getETag());
+            headers.set("Cache-Control", this.getCacheControl());
+
+            if (head) {
+                headers.set("Content-Length", String.valueOf(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            // The cached array is written as-is
+            exchange.sendResponseHeaders(200, data.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (RuntimeException e) {
+            Chunker.LOGGER.error("Failed to handle tile request {}", exchange.getRequestURI(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Get the value of the Cache-Control header
+     *
+     * @since    0.5.0
+     */
+    private String getCacheControl() {
+        return "public, max-age=" + this.max_age + ", must-revalidate";
+    }
+
+    /**
+     * Does the If-None-Match header match the given entity tag?
+     *
+     * @since    0.5.0
+     */
+    private static boolean matches(String if_none_match, String etag) {
+
+        for (String candidate : if_none_match.split(",")) {
+            candidate = candidate.trim();
+
+            // Weak comparison is what If-None-Match uses
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Send a response without a body
+     *
+     * @since    0.5.0
+     */
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * The parsed path of a tile request
+     *
+     * @since    0.5.0
+     */
+    private record TileRequest(String world, RenderLayer layer, int zoom, int x, int z) {
+
+        /**
+         * Parse a `/{world}/{zoom}/{x}/{z}.png` or `/{world}/{layer}/{zoom}/{x}/{z}.png` path
+         *
+         * @param    path     The raw request path
+         * @param    layers   The names of the layers that may be requested
+         *
+         * @return   The request, or null if the path is invalid or the layer is not served
+         */
+        private static TileRequest parse(String path, Set<String> layers) {
+
+            if (path == null || !path.endsWith(".png")) {
+                return null;
+            }
+
+            String[] parts = path.substring(0, path.length() - 4).split("/");
+
+            // The path starts with a slash, so the first part is empty
+            if ((parts.length != 5 && parts.length != 6) || !parts[0].isEmpty()) {
+                return null;
+            }
+
+            String layer_name = parts.length == 6 ? parts[2] : SurfaceLayer.INSTANCE.getName();
+
+            if (!layers.contains(layer_name)) {
+                return null;
+            }
+
+            RenderLayer layer = SurfaceLayer.INSTANCE;
+            int coordinates = 2;
+
+            if (parts.length == 6) {
+                layer = RenderLayer.fromName(layer_name);
+                coordinates = 3;
+
+                if (layer == null) {
+                    return null;
+                }
+            }
+
+            try {
+                String world = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+                return new TileRequest(world, layer, Integer.parseInt(parts[coordinates]), Integer.parseInt(parts[coordinates + 1]), Integer.parseInt(parts[coordinates + 2]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package rocks.blackblock.chunker.mixin;
+
+import net.minecraft.server.world.ServerChunkLoadingManager;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.world.chunk.Chunk;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import rocks.blackblock.chunker.world.Plane;
+
+@Mixin(ServerChunkLoadingManager.class)
+public abstract class ServerChunkLoadingManagerMixin {
+
+    @Shadow
+    @Final
+    ServerWorld world;
+
+    /**
+     * Mark the chunk as changed once it has been saved with new contents
+     *
+     * @since   0.5.0
+     */
+    @Inject(method = "save(Lnet/minecraft/world/chunk/Chunk;)Z", at = @At("RETURN"))
+    private void chunker$onSave(Chunk chunk, CallbackInfoReturnable<Boolean> cir) {
+        if (cir.getReturnValueZ()) {
+            Plane.markChanged(this.world, chunk.getPos().toLong());
+        }
+    }
+}
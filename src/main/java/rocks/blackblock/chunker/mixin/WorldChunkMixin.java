@@ -0,0 +1,34 @@
+package rocks.blackblock.chunker.mixin;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.chunk.WorldChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import rocks.blackblock.chunker.world.Plane;
+
+@Mixin(WorldChunk.class)
+public abstract class WorldChunkMixin {
+
+    /**
+     * Mark the chunk as changed when one of its blocks actually changed
+     *
+     * @since   0.5.0
+     */
+    @Inject(method = "setBlockState", at = @At("RETURN"))
+    private void chunker$onSetBlockState(BlockPos pos, BlockState state, boolean moved, CallbackInfoReturnable<BlockState> cir) {
+
+        if (cir.getReturnValue() == null) {
+            return;
+        }
+
+        WorldChunk chunk = (WorldChunk) (Object) this;
+
+        if (chunk.getWorld() instanceof ServerWorld world) {
+            Plane.markChanged(world, chunk.getPos().toLong());
+        }
+    }
+}
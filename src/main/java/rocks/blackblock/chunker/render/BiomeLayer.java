@@ -0,0 +1,104 @@
+package rocks.blackblock.chunker.render;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+
+import java.awt.Color;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map of the biomes at the surface, read from the biome palettes of the chunk sections.
+ * Every biome gets its own color, derived from its identifier,
+ * so it is the same on every server & after every restart.
+ * Biomes are stored per 4x4x4 blocks, so they show up as 4x4 pixel blocks.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class BiomeLayer implements RenderLayer {
+
+    // The only instance
+    public static final BiomeLayer INSTANCE = new BiomeLayer();
+
+    // The ABGR color of every biome seen so far
+    private static final Map<RegistryEntry<Biome>, Integer> COLORS = new ConcurrentHashMap<>();
+
+    private BiomeLayer() {}
+
+    @Override
+    public String getName() {
+        return "biome";
+    }
+
+    @Override
+    public boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+
+        Chunk chunk = lump.getChunk();
+        ChunkSection[] sections = chunk.getSectionArray();
+        Heightmap heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        int bottom_y = chunk.getBottomY();
+        int top_y = bottom_y + chunk.getHeight() - 1;
+
+        for (int z = 0; z < 16; z++) {
+            int row_offset = offset + z * stride;
+
+            for (int x = 0; x < 16; x++) {
+
+                // Use the biome of the highest block
+                int y = Math.max(bottom_y, Math.min(top_y, heightmap.get(x, z) - 1));
+                ChunkSection section = sections[chunk.getSectionIndex(y)];
+
+                if (section == null) {
+                    target[row_offset + x] = 0;
+                    continue;
+                }
+
+                RegistryEntry<Biome> biome = section.getBiome(x >> 2, (y & 15) >> 2, z >> 2);
+                target[row_offset + x] = format.fromABGR(getColor(biome));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the ABGR color of the given biome
+     *
+     * @since    0.5.0
+     *
+     * @param    biome   The biome to get the color of
+     */
+    public static int getColor(RegistryEntry<Biome> biome) {
+        return COLORS.computeIfAbsent(biome, BiomeLayer::createColor);
+    }
+
+    /**
+     * Derive a color from the identifier of the given biome
+     *
+     * @since    0.5.0
+     */
+    private static int createColor(RegistryEntry<Biome> biome) {
+
+        String name = biome.getKey().map(key -> key.getValue().toString()).orElse("unknown");
+        int hash = HashCommon.murmurHash3(name.hashCode());
+
+        float hue = (hash & 0xFFFF) / 65536.0f;
+        float saturation = 0.45f + ((hash >>> 16) & 0xFF) / 255.0f * 0.4f;
+        float brightness = 0.65f + ((hash >>> 24) & 0xFF) / 255.0f * 0.3f;
+        int rgb = Color.HSBtoRGB(hue, saturation, brightness);
+
+        return 0xFF000000 | (rgb & 0xFF) << 16 | (rgb & 0xFF00) | (rgb >> 16) & 0xFF;
+    }
+
+    @Override
+    public String toString() {
+        return "BiomeLayer";
+    }
+}
@@ -0,0 +1,82 @@
+package rocks.blackblock.chunker.render;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.LightType;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.light.ChunkLightingView;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+import rocks.blackblock.chunker.chunk.UnloadedChunkView;
+import rocks.blackblock.chunker.world.Plane;
+
+/**
+ * An overlay of the block light just above the surface:
+ * unlit blocks are transparent, lit ones are tinted warm yellow,
+ * more opaque the brighter they are.
+ * Unloaded chunks use the light stored with them,
+ * loaded chunks the world's lighting engine.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class BlockLightLayer implements RenderLayer {
+
+    // The only instance
+    public static final BlockLightLayer INSTANCE = new BlockLightLayer();
+
+    // The ABGR color of the light, without alpha
+    private static final int LIGHT_COLOR = 0x40C8FF;
+
+    private BlockLightLayer() {}
+
+    @Override
+    public String getName() {
+        return "block_light";
+    }
+
+    @Override
+    public boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+
+        Plane plane = lump.getPlane();
+
+        if (plane == null) {
+            return false;
+        }
+
+        Chunk chunk = lump.getChunk();
+        Heightmap heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        int top_y = chunk.getBottomY() + chunk.getHeight() - 1;
+
+        UnloadedChunkView unloaded = chunk instanceof UnloadedChunkView view ? view : null;
+        ChunkLightingView lighting = unloaded == null ? plane.getWorld().getLightingProvider().get(LightType.BLOCK) : null;
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+        int start_x = chunk.getPos().getStartX();
+        int start_z = chunk.getPos().getStartZ();
+
+        for (int z = 0; z < 16; z++) {
+            int row_offset = offset + z * stride;
+
+            for (int x = 0; x < 16; x++) {
+
+                // The light shining on the surface is that of the block above it
+                pos.set(start_x + x, Math.min(top_y, heightmap.get(x, z)), start_z + z);
+
+                int level = unloaded != null ? unloaded.getBlockLight(pos) : lighting.getLightLevel(pos);
+
+                if (level == 0) {
+                    target[row_offset + x] = 0;
+                } else {
+                    target[row_offset + x] = format.fromABGR((level * 16 + 15) << 24 | LIGHT_COLOR);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockLightLayer";
+    }
+}
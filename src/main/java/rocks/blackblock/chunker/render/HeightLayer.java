@@ -0,0 +1,61 @@
+package rocks.blackblock.chunker.render;
+
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.Chunk;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+
+/**
+ * A greyscale heightmap, read straight from the WORLD_SURFACE heightmap:
+ * the bottom of the world is black, its build limit white.
+ * No blocks are looked at, so this is far cheaper than a surface render.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class HeightLayer implements RenderLayer {
+
+    // The only instance
+    public static final HeightLayer INSTANCE = new HeightLayer();
+
+    private HeightLayer() {}
+
+    @Override
+    public String getName() {
+        return "height";
+    }
+
+    @Override
+    public boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+
+        Chunk chunk = lump.getChunk();
+        Heightmap heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        int bottom_y = chunk.getBottomY();
+        int height = chunk.getHeight();
+
+        for (int z = 0; z < 16; z++) {
+            int row_offset = offset + z * stride;
+
+            for (int x = 0; x < 16; x++) {
+
+                // This is the level above the highest block
+                int top = heightmap.get(x, z);
+
+                if (top <= bottom_y) {
+                    target[row_offset + x] = 0;
+                    continue;
+                }
+
+                int grey = Math.min(255, (top - bottom_y) * 255 / height);
+                target[row_offset + x] = format.fromABGR(0xFF000000 | grey << 16 | grey << 8 | grey);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "HeightLayer";
+    }
+}
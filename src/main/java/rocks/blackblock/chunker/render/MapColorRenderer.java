@@ -0,0 +1,179 @@
+package rocks.blackblock.chunker.render;
+
+import net.minecraft.block.MapColor;
+import net.minecraft.world.chunk.ChunkStatus;
+import rocks.blackblock.chunker.chunk.BlockSearcher;
+import rocks.blackblock.chunker.chunk.Lump;
+import rocks.blackblock.chunker.world.LumpArea;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.util.Arrays;
+
+/**
+ * Renders vanilla map colors: one byte per pixel, {@code MapColor.id * 4 + shade},
+ * the format of the colors of a filled map item.
+ *
+ * At a scale of N every pixel covers 2^N x 2^N blocks.
+ * Like vanilla, such a pixel gets the most common map color of its blocks
+ * (so downsampling happens on the palette, never on the final colors),
+ * and is shaded by comparing its average height with that of the pixel north of it.
+ * The first row is shaded against the row north of the image, so row -1 should be rendered too:
+ * it only provides the heights.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class MapColorRenderer {
+
+    // The amount of map colors (ids fit in 6 bits)
+    private static final int MAP_COLOR_COUNT = 64;
+
+    private MapColorRenderer() {}
+
+    /**
+     * Render a band of pixel rows from the lumps of the given area.
+     * Pixels without any existing chunk are left at 0 (transparent).
+     * Row -1 (north of the image) is not drawn, only its heights are recorded.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    area           The preloaded lumps covering the band
+     * @param    min_x          The block X coordinate of the western edge of the image
+     * @param    min_z          The block Z coordinate of the northern edge of the image
+     * @param    width          The width of the image in pixels
+     * @param    first_row      The first pixel row to render (-1 for the row north of the image)
+     * @param    row_count      The amount of pixel rows to render
+     * @param    scale          The scale: every pixel covers 2^scale blocks in each direction
+     * @param    last_heights   The average heights of the pixels of the row above the band
+     *                          (or NaN), replaced by those of the band's last row
+     * @param    target         The image, row by row
+     */
+    public static void render(LumpArea area, int min_x, int min_z, int width, int first_row, int row_count, int scale, double[] last_heights, byte[] target) {
+
+        Plane plane = area.getPlane();
+        boolean has_ceiling = plane.hasCeiling();
+        int bottom_y = plane.getWorld().getBottomY();
+        int block_size = 1 << scale;
+        int[] counts = new int[MAP_COLOR_COUNT];
+
+        BlockSearcher searcher = BlockSearcher.forThread(plane);
+
+        try {
+            for (int row = first_row; row < first_row + row_count; row++) {
+                int pixel_z = min_z + row * block_size;
+
+                for (int column = 0; column < width; column++) {
+                    int pixel_x = min_x + column * block_size;
+                    double height_sum = 0;
+                    int water_depth_sum = 0;
+                    int samples = 0;
+
+                    Arrays.fill(counts, 0);
+
+                    for (int block_z = pixel_z; block_z < pixel_z + block_size; block_z++) {
+                        for (int block_x = pixel_x; block_x < pixel_x + block_size; block_x++) {
+                            Lump lump = area.getLump(block_x >> 4, block_z >> 4);
+
+                            if (lump == null || !lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+                                continue;
+                            }
+
+                            if (has_ceiling) {
+                                searcher.searchForBlockUnderCeiling(lump, block_x & 15, block_z & 15);
+                            } else {
+                                searcher.searchForBlock(lump, block_x & 15, block_z & 15);
+                            }
+
+                            if (searcher.getHeight() > bottom_y && searcher.isVisibleFluid()) {
+                                searcher.calculateWaterDepth(lump);
+                                water_depth_sum += searcher.getWaterDepth();
+                            }
+
+                            counts[searcher.getCurrentMapColor().id]++;
+                            height_sum += searcher.getHeight();
+                            samples++;
+                        }
+                    }
+
+                    int index = row * width + column;
+
+                    if (samples == 0) {
+                        if (row >= 0) {
+                            target[index] = 0;
+                        }
+
+                        last_heights[column] = Double.NaN;
+                        continue;
+                    }
+
+                    double height = height_sum / samples;
+
+                    // The row north of the image only provides the heights to shade the first row with
+                    if (row < 0) {
+                        last_heights[column] = height;
+                        continue;
+                    }
+
+                    double last_height = Double.isNaN(last_heights[column]) ? height : last_heights[column];
+                    last_heights[column] = height;
+
+                    MapColor map_color = MapColor.get(getMostCommon(counts));
+
+                    if (map_color == MapColor.CLEAR) {
+                        target[index] = 0;
+                        continue;
+                    }
+
+                    int shade;
+
+                    if (map_color == MapColor.WATER_BLUE) {
+                        double shade_test = (double) water_depth_sum / samples * 0.1D + (double) (row + column & 1) * 0.2D;
+                        shade = 1;
+
+                        if (shade_test < 0.5D) {
+                            shade = 2;
+                        }
+
+                        if (shade_test > 0.9D) {
+                            shade = 0;
+                        }
+                    } else {
+                        double shade_test = (height - last_height) * 4.0D / (double) (block_size + 4) + ((double) (row + column & 1) - 0.5D) * 0.4D;
+                        shade = 1;
+
+                        if (shade_test > 0.6D) {
+                            shade = 2;
+                        }
+
+                        if (shade_test < -0.6D) {
+                            shade = 0;
+                        }
+                    }
+
+                    target[index] = (byte) (map_color.id * 4 + shade);
+                }
+            }
+        } finally {
+            searcher.reset(null);
+        }
+    }
+
+    /**
+     * Get the id with the highest count (the lowest one on a tie)
+     *
+     * @since    0.5.0
+     */
+    private static int getMostCommon(int[] counts) {
+
+        int result = 0;
+
+        for (int id = 1; id < counts.length; id++) {
+            if (counts[id] > counts[result]) {
+                result = id;
+            }
+        }
+
+        return result;
+    }
+}
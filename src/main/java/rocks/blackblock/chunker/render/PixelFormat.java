@@ -0,0 +1,50 @@
+package rocks.blackblock.chunker.render;
+
+/**
+ * The order of the channels in a packed 32-bit pixel
+ * (from the most significant byte to the least significant one)
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public enum PixelFormat {
+
+    // The format colors are rendered in, and what BufferedImage expects with the right masks
+    ABGR,
+
+    // The format of BufferedImage.TYPE_INT_ARGB
+    ARGB,
+
+    // The byte order of most image encoders & WebGL textures
+    RGBA;
+
+    /**
+     * Convert the given ABGR pixel to this format
+     *
+     * @since    0.5.0
+     *
+     * @param    abgr   The pixel in ABGR format
+     */
+    public int fromABGR(int abgr) {
+        return switch (this) {
+            case ABGR -> abgr;
+            case ARGB -> (abgr & 0xFF00FF00) | ((abgr & 0xFF) << 16) | ((abgr >> 16) & 0xFF);
+            case RGBA -> Integer.reverseBytes(abgr);
+        };
+    }
+
+    /**
+     * Convert the given pixel in this format to ABGR
+     *
+     * @since    0.5.0
+     *
+     * @param    pixel   The pixel in this format
+     */
+    public int toABGR(int pixel) {
+        return switch (this) {
+            case ABGR -> pixel;
+            case ARGB -> (pixel & 0xFF00FF00) | ((pixel & 0xFF) << 16) | ((pixel >> 16) & 0xFF);
+            case RGBA -> Integer.reverseBytes(pixel);
+        };
+    }
+}
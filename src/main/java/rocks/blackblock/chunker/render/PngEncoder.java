@@ -0,0 +1,366 @@
+package rocks.blackblock.chunker.render;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A small PNG encoder that writes straight from ABGR pixels.
+ *
+ * Images with at most 256 distinct colors (like map renders:
+ * a small palette times 4 shades) are written as indexed-colour PNGs,
+ * others as 8-bit RGBA. Every thread reuses its own Deflater & buffers.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class PngEncoder {
+
+    // The PNG file signature
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    // The size of the palette lookup table (a power of two, well above 256)
+    private static final int PALETTE_TABLE_SIZE = 1024;
+
+    // The shared default encoder
+    private static final PngEncoder DEFAULT = new PngEncoder(Deflater.BEST_SPEED);
+
+    // The per-thread working state
+    private static final ThreadLocal<State> STATES = ThreadLocal.withInitial(State::new);
+
+    // The compression level to use
+    private final int compression_level;
+
+    /**
+     * Create an encoder with the given compression level
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    compression_level   The Deflater level, from 0 (none) to 9 (best)
+     */
+    public PngEncoder(int compression_level) {
+
+        if (compression_level < Deflater.NO_COMPRESSION || compression_level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compression_level);
+        }
+
+        this.compression_level = compression_level;
+    }
+
+    /**
+     * Get the shared encoder, which favours speed over size
+     *
+     * @since    0.5.0
+     */
+    public static PngEncoder getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get the compression level of this encoder
+     *
+     * @since    0.5.0
+     */
+    public int getCompressionLevel() {
+        return this.compression_level;
+    }
+
+    /**
+     * Encode the given ABGR pixels as a PNG image
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    pixels   The pixels, in ABGR format
+     * @param    width    The width of the image
+     * @param    height   The height of the image
+     */
+    public byte[] encode(int[] pixels, int width, int height) {
+        return this.encode(pixels, 0, width, width, height);
+    }
+
+    /**
+     * Encode a rectangle of the given ABGR pixels as a PNG image
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    pixels   The pixels, in ABGR format
+     * @param    offset   The index of the top-left pixel
+     * @param    stride   The distance between 2 rows in the pixel array
+     * @param    width    The width of the image
+     * @param    height   The height of the image
+     */
+    public byte[] encode(int[] pixels, int offset, int stride, int width, int height) {
+
+        State state = STATES.get();
+        ByteArrayOutputStream out = state.out;
+        out.reset();
+        out.writeBytes(SIGNATURE);
+
+        boolean indexed = state.buildPalette(pixels, offset, stride, width, height);
+
+        // The header chunk
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (indexed ? 3 : 6);
+        this.writeChunk(state, "IHDR", header, 13);
+
+        if (indexed) {
+            int palette_size = state.palette_size;
+            byte[] palette = state.getChunkBuffer(palette_size * 3);
+            byte[] alpha = new byte[palette_size];
+            boolean has_alpha = false;
+
+            for (int i = 0; i < palette_size; i++) {
+                int abgr = state.palette[i];
+                palette[i * 3] = (byte) abgr;
+                palette[i * 3 + 1] = (byte) (abgr >> 8);
+                palette[i * 3 + 2] = (byte) (abgr >> 16);
+                alpha[i] = (byte) (abgr >>> 24);
+
+                if (alpha[i] != (byte) 0xFF) {
+                    has_alpha = true;
+                }
+            }
+
+            this.writeChunk(state, "PLTE", palette, palette_size * 3);
+
+            if (has_alpha) {
+                this.writeChunk(state, "tRNS", alpha, palette_size);
+            }
+        }
+
+        this.writeImageData(state, pixels, offset, stride, width, height, indexed);
+        this.writeChunk(state, "IEND", state.getChunkBuffer(0), 0);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the filtered & compressed pixel data
+     *
+     * @since    0.5.0
+     */
+    private void writeImageData(State state, int[] pixels, int offset, int stride, int width, int height, boolean indexed) {
+
+        int bytes_per_pixel = indexed ? 1 : 4;
+        int row_length = width * bytes_per_pixel + 1;
+        byte[] row = state.getRowBuffer(row_length);
+        byte[] previous_row = state.getPreviousRowBuffer(row_length);
+
+        Deflater deflater = state.deflater;
+        deflater.reset();
+        deflater.setLevel(this.compression_level);
+
+        Arrays.fill(previous_row, 0, row_length, (byte) 0);
+
+        byte[] chunk = state.getChunkBuffer(64 * 1024);
+        int chunk_length = 0;
+
+        for (int y = 0; y < height; y++) {
+            int row_offset = offset + y * stride;
+
+            if (indexed) {
+                // Palette indices compress fine without filtering
+                row[0] = 0;
+
+                for (int x = 0; x < width; x++) {
+                    row[x + 1] = (byte) state.lookup(pixels[row_offset + x]);
+                }
+            } else {
+                // Use the "up" filter: map renders are very similar from row to row
+                row[0] = 2;
+
+                for (int x = 0; x < width; x++) {
+                    int abgr = pixels[row_offset + x];
+                    int i = x * 4 + 1;
+                    row[i] = (byte) abgr;
+                    row[i + 1] = (byte) (abgr >> 8);
+                    row[i + 2] = (byte) (abgr >> 16);
+                    row[i + 3] = (byte) (abgr >>> 24);
+                }
+
+                for (int i = row_length - 1; i > 0; i--) {
+                    byte raw = row[i];
+                    row[i] = (byte) (raw - previous_row[i]);
+                    previous_row[i] = raw;
+                }
+            }
+
+            deflater.setInput(row, 0, row_length);
+
+            while (!deflater.needsInput()) {
+                chunk_length += deflater.deflate(chunk, chunk_length, chunk.length - chunk_length);
+
+                if (chunk_length == chunk.length) {
+                    this.writeChunk(state, "IDAT", chunk, chunk_length);
+                    chunk_length = 0;
+                }
+            }
+        }
+
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            chunk_length += deflater.deflate(chunk, chunk_length, chunk.length - chunk_length);
+
+            if (chunk_length == chunk.length) {
+                this.writeChunk(state, "IDAT", chunk, chunk_length);
+                chunk_length = 0;
+            }
+        }
+
+        if (chunk_length > 0) {
+            this.writeChunk(state, "IDAT", chunk, chunk_length);
+        }
+    }
+
+    /**
+     * Write a single PNG chunk
+     *
+     * @since    0.5.0
+     */
+    private void writeChunk(State state, String type, byte[] data, int length) {
+
+        ByteArrayOutputStream out = state.out;
+        CRC32 crc = state.crc;
+        byte[] int_buffer = state.int_buffer;
+
+        putInt(int_buffer, 0, length);
+        out.write(int_buffer, 0, 4);
+
+        for (int i = 0; i < 4; i++) {
+            int_buffer[i] = (byte) type.charAt(i);
+        }
+
+        out.write(int_buffer, 0, 4);
+
+        crc.reset();
+        crc.update(int_buffer, 0, 4);
+        crc.update(data, 0, length);
+
+        out.write(data, 0, length);
+
+        putInt(int_buffer, 0, (int) crc.getValue());
+        out.write(int_buffer, 0, 4);
+    }
+
+    /**
+     * Write a big-endian int into the given array
+     *
+     * @since    0.5.0
+     */
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    /**
+     * The reusable working state of a single thread
+     *
+     * @since    0.5.0
+     */
+    private static class State {
+        private final Deflater deflater = new Deflater();
+        private final CRC32 crc = new CRC32();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        private final byte[] int_buffer = new byte[4];
+
+        // The open-addressing table mapping colors to palette indices
+        private final int[] table_colors = new int[PALETTE_TABLE_SIZE];
+        private final short[] table_indices = new short[PALETTE_TABLE_SIZE];
+        private final int[] palette = new int[256];
+        private int palette_size = 0;
+
+        private byte[] row_buffer = new byte[0];
+        private byte[] previous_row_buffer = new byte[0];
+        private byte[] chunk_buffer = new byte[0];
+
+        /**
+         * Collect the distinct colors of the image
+         *
+         * @return   False if there are more than 256 of them
+         */
+        private boolean buildPalette(int[] pixels, int offset, int stride, int width, int height) {
+
+            Arrays.fill(this.table_indices, (short) -1);
+            this.palette_size = 0;
+
+            for (int y = 0; y < height; y++) {
+                int row_offset = offset + y * stride;
+
+                for (int x = 0; x < width; x++) {
+                    int color = pixels[row_offset + x];
+                    int slot = this.findSlot(color);
+
+                    if (this.table_indices[slot] >= 0) {
+                        continue;
+                    }
+
+                    if (this.palette_size == 256) {
+                        return false;
+                    }
+
+                    this.table_colors[slot] = color;
+                    this.table_indices[slot] = (short) this.palette_size;
+                    this.palette[this.palette_size++] = color;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Find the slot of the given color in the table:
+         * either the one containing it, or the empty one it should go in
+         */
+        private int findSlot(int color) {
+            int mask = PALETTE_TABLE_SIZE - 1;
+            int slot = (color * 0x9E3779B9 >>> 22) & mask;
+
+            while (this.table_indices[slot] >= 0 && this.table_colors[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        /**
+         * Get the palette index of a color known to be in the palette
+         */
+        private int lookup(int color) {
+            return this.table_indices[this.findSlot(color)];
+        }
+
+        private byte[] getRowBuffer(int length) {
+            if (this.row_buffer.length < length) {
+                this.row_buffer = new byte[length];
+            }
+
+            return this.row_buffer;
+        }
+
+        private byte[] getPreviousRowBuffer(int length) {
+            if (this.previous_row_buffer.length < length) {
+                this.previous_row_buffer = new byte[length];
+            }
+
+            return this.previous_row_buffer;
+        }
+
+        private byte[] getChunkBuffer(int length) {
+            if (this.chunk_buffer.length < length) {
+                this.chunk_buffer = new byte[Math.max(length, 64 * 1024)];
+            }
+
+            return this.chunk_buffer;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package rocks.blackblock.chunker.render;
+
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+
+/**
+ * A way of turning the blocks of a chunk into pixels,
+ * like the surface map or a horizontal slice of the underground.
+ *
+ * Every layer has its own tiles, stored under its own name,
+ * so its name has to be unique and safe to use as a folder name.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public interface RenderLayer {
+
+    /**
+     * Get the built-in layer with the given name:
+     * "surface", "height", "biome", "block_light",
+     * or a slice like "slice_30" or "slice_30_-20"
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    name   The name of the layer
+     *
+     * @return   The layer, or null if there is no such layer
+     */
+    @Nullable
+    static RenderLayer fromName(String name) {
+
+        RenderLayer layer = switch (name) {
+            case "surface" -> SurfaceLayer.INSTANCE;
+            case "height" -> HeightLayer.INSTANCE;
+            case "biome" -> BiomeLayer.INSTANCE;
+            case "block_light" -> BlockLightLayer.INSTANCE;
+            default -> null;
+        };
+
+        if (layer != null || !name.startsWith("slice_")) {
+            return layer;
+        }
+
+        String levels = name.substring(6);
+        int separator = levels.indexOf('_');
+
+        try {
+            if (separator < 0) {
+                return new SliceLayer(Integer.parseInt(levels));
+            }
+
+            return new SliceLayer(Integer.parseInt(levels.substring(0, separator)), Integer.parseInt(levels.substring(separator + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the unique name of this layer
+     *
+     * @since    0.5.0
+     */
+    String getName();
+
+    /**
+     * Does the shading of a chunk depend on the southern row of the chunk north of it?
+     * If not, the north lump & heights are never used.
+     *
+     * @since    0.5.0
+     */
+    default boolean isShadedByNorth() {
+        return false;
+    }
+
+    /**
+     * Render the 16x16 pixels of the given lump into the given buffer
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    lump           The lump to render
+     * @param    north          The lump north of it, if it exists
+     * @param    last_heights   The heights of the 16 blocks north of the lump, if known,
+     *                          replaced by those of the lump's southern row
+     * @param    target         The buffer to render into
+     * @param    offset         The index of the north-west pixel in the buffer
+     * @param    stride         The distance between 2 rows in the buffer
+     * @param    format         The pixel format to write
+     *
+     * @return   False if the lump has no plane to render with
+     */
+    boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format);
+}
@@ -0,0 +1,151 @@
+package rocks.blackblock.chunker.render;
+
+import net.minecraft.block.MapColor;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.chunk.BlockSearcher;
+import rocks.blackblock.chunker.chunk.Lump;
+import rocks.blackblock.chunker.world.Plane;
+
+/**
+ * A horizontal slice of the world: every pixel shows the first non-clear block
+ * at or below the top of the slice, shaded darker the deeper it lies.
+ * Solid ground at the top level shows up bright, cave floors below it darker,
+ * and columns without any block in the slice are transparent.
+ *
+ * Empty chunk sections are skipped as a whole,
+ * so open caves & the sky above the slice cost next to nothing.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class SliceLayer implements RenderLayer {
+
+    private final int top_y;
+    private final int bottom_y;
+    private final String name;
+
+    /**
+     * Create a slice from the given level all the way down to the bottom of the world
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    top_y   The highest Y level to show
+     */
+    public SliceLayer(int top_y) {
+        this.top_y = top_y;
+        this.bottom_y = Integer.MIN_VALUE;
+        this.name = "slice_" + top_y;
+    }
+
+    /**
+     * Create a slice of the given range of Y levels
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    top_y      The highest Y level to show
+     * @param    bottom_y   The lowest Y level to show
+     */
+    public SliceLayer(int top_y, int bottom_y) {
+
+        if (bottom_y > top_y) {
+            throw new IllegalArgumentException("The bottom of a slice (" + bottom_y + ") should not be above its top (" + top_y + ")");
+        }
+
+        this.top_y = top_y;
+        this.bottom_y = bottom_y;
+        this.name = "slice_" + top_y + "_" + bottom_y;
+    }
+
+    /**
+     * Get the highest Y level shown
+     *
+     * @since    0.5.0
+     */
+    public int getTopY() {
+        return this.top_y;
+    }
+
+    /**
+     * Get the lowest Y level shown
+     * ({@link Integer#MIN_VALUE} for the bottom of the world)
+     *
+     * @since    0.5.0
+     */
+    public int getBottomY() {
+        return this.bottom_y;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+
+        Plane plane = lump.getPlane();
+
+        if (plane == null) {
+            return false;
+        }
+
+        BlockSearcher searcher = BlockSearcher.forThread(plane);
+
+        try {
+            for (int z = 0; z < 16; z++) {
+                int row_offset = offset + z * stride;
+
+                for (int x = 0; x < 16; x++) {
+
+                    if (!searcher.searchForBlockBelow(lump, x, z, this.top_y, this.bottom_y)) {
+                        target[row_offset + x] = 0;
+                        continue;
+                    }
+
+                    MapColor map_color = searcher.getCurrentMapColor();
+                    int depth = this.top_y - searcher.getHeight();
+
+                    // Dither between the shades, like vanilla does for water depth
+                    double shade_test = (double) depth / 4.0D + (double) (x + z & 1) * 0.5D;
+                    int shade = 3;
+
+                    if (shade_test < 5.0D) {
+                        shade = 0;
+                    }
+
+                    if (shade_test < 2.5D) {
+                        shade = 1;
+                    }
+
+                    if (shade_test < 1.0D) {
+                        shade = 2;
+                    }
+
+                    target[row_offset + x] = format.fromABGR(TileGenerator.getRenderColor(map_color, shade));
+                }
+            }
+        } finally {
+            searcher.reset(null);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof SliceLayer other && other.top_y == this.top_y && other.bottom_y == this.bottom_y;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.top_y + this.bottom_y;
+    }
+
+    @Override
+    public String toString() {
+        return "SliceLayer{" + this.name + "}";
+    }
+}
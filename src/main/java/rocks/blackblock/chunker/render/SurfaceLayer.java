@@ -0,0 +1,44 @@
+package rocks.blackblock.chunker.render;
+
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+
+/**
+ * The regular map of the surface (or of the floor under the ceiling),
+ * shaded like vanilla maps
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class SurfaceLayer implements RenderLayer {
+
+    // The only instance
+    public static final SurfaceLayer INSTANCE = new SurfaceLayer();
+
+    private SurfaceLayer() {}
+
+    @Override
+    public String getName() {
+        return "surface";
+    }
+
+    @Override
+    public boolean isShadedByNorth() {
+        return true;
+    }
+
+    @Override
+    public boolean render(Lump lump, @Nullable Lump north, @Nullable int[] last_heights, int[] target, int offset, int stride, PixelFormat format) {
+
+        if (last_heights != null) {
+            return lump.getColorsWithHeights(last_heights, target, offset, stride, format);
+        }
+
+        return lump.getColors(north, target, offset, stride, format);
+    }
+
+    @Override
+    public String toString() {
+        return "SurfaceLayer";
+    }
+}
@@ -0,0 +1,613 @@
+package rocks.blackblock.chunker.stats;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMaps;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMaps;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.RegistryEntryLookup;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ChunkStatus;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.chunk.ChunkFetcher;
+import rocks.blackblock.chunker.chunk.RegionFileReader;
+import rocks.blackblock.chunker.governor.RenderGovernor;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts every block state in the saved chunks of a world.
+ *
+ * The region files are counted in parallel, each one read from front to back
+ * by a {@link RegionFileReader} on the IO executor, while the chunks it read
+ * are counted on the decode executor.
+ * Sections are never decoded: a section with a single-entry palette counts
+ * as 4096 of that state, otherwise its packed palette indices are bucketed.
+ * Chunks the reader can't handle (other compressions, older data versions)
+ * are fetched & decoded by the plane's fetcher session instead.
+ *
+ * The result of every region is written to {@code <world>/chunker/statistics},
+ * and reused by later runs for as long as the region file doesn't change.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class BlockStatisticsJob {
+
+    // The amount of blocks in a chunk section
+    private static final int SECTION_VOLUME = 4096;
+
+    private final Plane plane;
+    private final ChunkFetcher fetcher;
+    private final Path folder;
+    private final int parallelism;
+    private final RegistryEntryLookup<Block> block_lookup = Registries.BLOCK.getReadOnlyWrapper();
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean cancelled = false;
+
+    private volatile long total_regions = 0;
+    private final AtomicLong counted_regions = new AtomicLong();
+    private final AtomicLong reused_regions = new AtomicLong();
+    private final AtomicLong failed_regions = new AtomicLong();
+    private final AtomicLong fetched_chunks = new AtomicLong();
+
+    // The totals of the whole world
+    private final Object2LongOpenHashMap<BlockState> totals = new Object2LongOpenHashMap<>();
+
+    /**
+     * Create a job for the given plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane         The world to count the blocks of
+     * @param    parallelism   The maximum amount of regions to count at the same time
+     */
+    public BlockStatisticsJob(Plane plane, int parallelism) {
+
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism of a statistics job should be at least 1");
+        }
+
+        this.plane = plane;
+        this.fetcher = plane.getFetcherSession().getFetcher();
+        this.parallelism = parallelism;
+        this.folder = this.fetcher.getWorldFolder().toPath().resolve("chunker").resolve("statistics");
+    }
+
+    /**
+     * Start the job on a new background thread
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @return   A future that completes once every region has been counted
+     */
+    public CompletableFuture<Void> start() {
+
+        if (!this.started.compareAndSet(false, true)) {
+            return this.future;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                this.run();
+            } catch (Throwable e) {
+                Chunker.LOGGER.error("Block statistics job failed", e);
+                this.future.completeExceptionally(e);
+            }
+        }, "Chunker statistics " + this.plane.getWorld().getRegistryKey().getValue());
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return this.future;
+    }
+
+    /**
+     * Stop the job after the regions that are being counted right now
+     *
+     * @since    0.5.0
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Count all the regions
+     *
+     * @since    0.5.0
+     */
+    private void run() throws InterruptedException {
+
+        LongArrayList regions = this.fetcher.listRegions();
+        Semaphore permits = new Semaphore(this.parallelism);
+        List<CompletableFuture<Void>> region_futures = new ArrayList<>();
+
+        this.total_regions = regions.size();
+
+        for (int i = 0; i < regions.size(); i++) {
+
+            if (this.cancelled || this.plane.isReleased()) {
+                this.cancelled = true;
+                break;
+            }
+
+            long region = regions.getLong(i);
+            int region_x = ChunkPos.getPackedX(region);
+            int region_z = ChunkPos.getPackedZ(region);
+
+            permits.acquire();
+
+            region_futures.add(this.countRegion(region_x, region_z).handle((result, error) -> {
+                permits.release();
+
+                if (error != null) {
+                    Chunker.LOGGER.error("Failed to count the blocks of region [{}, {}]", region_x, region_z, error);
+                    this.failed_regions.incrementAndGet();
+                } else {
+                    this.addTotals(result);
+                }
+
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(region_futures.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> this.future.complete(null));
+    }
+
+    /**
+     * Count the blocks of a single region,
+     * or reuse the stored result if the region file did not change since
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<RegionBlockStatistics> countRegion(int region_x, int region_z) {
+
+        RenderGovernor governor = RenderGovernor.getInstance();
+
+        return CompletableFuture.supplyAsync(() -> {
+
+            File file = new File(this.fetcher.getRegionFolder(), "r." + region_x + "." + region_z + ".mca");
+            long modified = file.lastModified();
+            Path path = this.getPath(region_x, region_z);
+
+            try {
+                RegionBlockStatistics stored = RegionBlockStatistics.read(path, this.block_lookup);
+
+                if (stored != null && stored.getModified() == modified) {
+                    this.reused_regions.incrementAndGet();
+                    return CompletableFuture.completedFuture(stored);
+                }
+            } catch (IOException | RuntimeException e) {
+                Chunker.LOGGER.error("Failed to read block statistics {}, counting again", path, e);
+            }
+
+            RegionBlockStatistics result = new RegionBlockStatistics(region_x, region_z, modified);
+            IntArrayList unreadable = new IntArrayList();
+
+            try (RegionFileReader reader = RegionFileReader.open(this.fetcher, region_x, region_z)) {
+
+                // Only touched by one count at a time
+                Map<NbtCompound, BlockState> states = new HashMap<>();
+
+                // The next chunk is read while the previous one is being counted
+                CompletableFuture<Void> counting = CompletableFuture.completedFuture(null);
+
+                for (int index : reader.getChunkIndicesBySector()) {
+                    NbtCompound chunk_nbt;
+
+                    try {
+                        chunk_nbt = reader.readChunk(index);
+                    } catch (IOException | RuntimeException e) {
+                        // Corrupt or torn data (the server may be rewriting the file): let the session fetch it
+                        chunk_nbt = null;
+                    }
+
+                    if (chunk_nbt == null || !RegionFileReader.isCurrentVersion(chunk_nbt)) {
+                        synchronized (unreadable) {
+                            unreadable.add(index);
+                        }
+
+                        continue;
+                    }
+
+                    if (!ChunkFetcher.isComplete(chunk_nbt)) {
+                        continue;
+                    }
+
+                    NbtCompound read_nbt = chunk_nbt;
+                    counting.join();
+
+                    counting = CompletableFuture.runAsync(() -> {
+                        Object2IntMap<BlockState> counts = this.countChunk(read_nbt, states);
+
+                        if (counts == null) {
+                            synchronized (unreadable) {
+                                unreadable.add(index);
+                            }
+                        } else {
+                            result.addChunk(region_x * 32 + (index & 31), region_z * 32 + (index >> 5), counts);
+                        }
+                    }, governor.getDecodeExecutor());
+                }
+
+                counting.join();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read region file " + file, e);
+            }
+
+            return this.fetchChunks(result, unreadable).thenApplyAsync(ignored -> {
+                try {
+                    result.write(path);
+                } catch (IOException e) {
+                    Chunker.LOGGER.error("Failed to write block statistics {}", path, e);
+                }
+
+                this.counted_regions.incrementAndGet();
+                return result;
+            }, governor.getIoExecutor());
+
+        }, governor.getIoExecutor()).thenCompose(future -> future);
+    }
+
+    /**
+     * Count the chunks the region reader couldn't read
+     * by fetching them through the plane's session
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<Void> fetchChunks(RegionBlockStatistics result, IntArrayList indices) {
+
+        if (indices.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ChunkFetcher.Session session = this.plane.getFetcherSession();
+        CompletableFuture<?>[] futures = new CompletableFuture[indices.size()];
+
+        for (int i = 0; i < indices.size(); i++) {
+            int index = indices.getInt(i);
+            int chunk_x = result.getRegionX() * 32 + (index & 31);
+            int chunk_z = result.getRegionZ() * 32 + (index >> 5);
+
+            this.fetched_chunks.incrementAndGet();
+
+            futures[i] = session.getChunkViewAsync(chunk_x, chunk_z).thenAccept(optional_chunk -> {
+                Chunk chunk = optional_chunk.orElse(null);
+
+                if (chunk != null && chunk.getStatus().isAtLeast(ChunkStatus.FULL)) {
+                    result.addChunk(chunk_x, chunk_z, countChunk(chunk));
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Count the block states of the given chunk NBT using the section palettes
+     *
+     * @since    0.5.0
+     *
+     * @param    chunk_nbt   The chunk NBT data
+     * @param    states      The block states of palette entries seen before
+     *
+     * @return   The counts, or null if a section's data doesn't match its palette
+     */
+    @Nullable
+    private Object2IntMap<BlockState> countChunk(NbtCompound chunk_nbt, Map<NbtCompound, BlockState> states) {
+
+        ServerWorld world = this.plane.getWorld();
+        NbtList sections = chunk_nbt.getList("sections", NbtElement.COMPOUND_TYPE);
+        Object2IntOpenHashMap<BlockState> result = new Object2IntOpenHashMap<>();
+
+        for (int i = 0; i < sections.size(); i++) {
+            NbtCompound section = sections.getCompound(i);
+            int index = world.sectionCoordToIndex(section.getByte("Y"));
+
+            // Sections without blocks only hold light
+            if (index < 0 || index >= world.countVerticalSections() || !section.contains("block_states", NbtElement.COMPOUND_TYPE)) {
+                continue;
+            }
+
+            NbtCompound block_states = section.getCompound("block_states");
+            NbtList palette_nbt = block_states.getList("palette", NbtElement.COMPOUND_TYPE);
+            int size = palette_nbt.size();
+
+            if (size == 0) {
+                continue;
+            }
+
+            BlockState[] palette = new BlockState[size];
+
+            for (int j = 0; j < size; j++) {
+                palette[j] = states.computeIfAbsent(palette_nbt.getCompound(j), entry -> NbtHelper.toBlockState(this.block_lookup, entry));
+            }
+
+            // A single-valued section has no data at all
+            if (size == 1) {
+                addCount(result, palette[0], SECTION_VOLUME);
+                continue;
+            }
+
+            int[] buckets = countIndices(block_states.getLongArray("data"), size);
+
+            if (buckets == null) {
+                return null;
+            }
+
+            for (int j = 0; j < size; j++) {
+                addCount(result, palette[j], buckets[j]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Count the packed palette indices of a section
+     *
+     * @since    0.5.0
+     *
+     * @param    data   The packed indices
+     * @param    size   The size of the palette
+     *
+     * @return   The amount of every palette index, or null if the data is invalid
+     */
+    @Nullable
+    private static int[] countIndices(long[] data, int size) {
+
+        // Indices never span 2 longs & use at least 4 bits
+        int bits = Math.max(4, MathHelper.ceilLog2(size));
+        int per_long = 64 / bits;
+        long mask = (1L << bits) - 1;
+
+        if (data.length != (SECTION_VOLUME + per_long - 1) / per_long) {
+            return null;
+        }
+
+        int[] result = new int[size];
+        int remaining = SECTION_VOLUME;
+
+        for (long value : data) {
+            for (int i = Math.min(per_long, remaining); i > 0; i--) {
+                int index = (int) (value & mask);
+
+                if (index >= size) {
+                    return null;
+                }
+
+                result[index]++;
+                value >>>= bits;
+            }
+
+            remaining -= per_long;
+        }
+
+        return result;
+    }
+
+    /**
+     * Count the block states of a decoded chunk
+     *
+     * @since    0.5.0
+     */
+    private static Object2IntMap<BlockState> countChunk(Chunk chunk) {
+
+        Object2IntOpenHashMap<BlockState> result = new Object2IntOpenHashMap<>();
+
+        for (ChunkSection section : chunk.getSectionArray()) {
+            if (section != null && !section.isEmpty()) {
+                section.getBlockStateContainer().count((state, count) -> addCount(result, state, count));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Add to the count of a block state, unless it is air
+     *
+     * @since    0.5.0
+     */
+    private static void addCount(Object2IntOpenHashMap<BlockState> counts, BlockState state, int count) {
+        if (count > 0 && !state.isAir()) {
+            counts.addTo(state, count);
+        }
+    }
+
+    /**
+     * Add the totals of a counted region to those of the world
+     *
+     * @since    0.5.0
+     */
+    private void addTotals(RegionBlockStatistics region) {
+
+        Object2LongMap<BlockState> region_totals = region.getTotals();
+
+        synchronized (this.totals) {
+            for (Object2LongMap.Entry<BlockState> entry : Object2LongMaps.fastIterable(region_totals)) {
+                this.totals.addTo(entry.getKey(), entry.getLongValue());
+            }
+        }
+    }
+
+    /**
+     * Get the file the result of the given region is stored in
+     *
+     * @since    0.5.0
+     */
+    private Path getPath(int region_x, int region_z) {
+        return this.folder.resolve("r." + region_x + "." + region_z + ".dat");
+    }
+
+    /**
+     * Read the stored result of the given region
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    region_x   The region X coordinate
+     * @param    region_z   The region Z coordinate
+     *
+     * @return   The statistics, or null if the region was never counted
+     */
+    @Nullable
+    public RegionBlockStatistics getRegionStatistics(int region_x, int region_z) {
+        try {
+            return RegionBlockStatistics.read(this.getPath(region_x, region_z), this.block_lookup);
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to read block statistics of region [{}, {}]", region_x, region_z, e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the amount of every block state counted so far
+     *
+     * @since    0.5.0
+     */
+    public Object2LongMap<BlockState> getTotals() {
+        synchronized (this.totals) {
+            return Object2LongMaps.unmodifiable(new Object2LongOpenHashMap<>(this.totals));
+        }
+    }
+
+    /**
+     * Get the amount of the given block counted so far, in any state
+     *
+     * @since    0.5.0
+     */
+    public long getCount(Block block) {
+
+        long result = 0;
+
+        synchronized (this.totals) {
+            for (Object2LongMap.Entry<BlockState> entry : Object2LongMaps.fastIterable(this.totals)) {
+                if (entry.getKey().isOf(block)) {
+                    result += entry.getLongValue();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the future that completes once the job is finished or cancelled
+     *
+     * @since    0.5.0
+     */
+    public CompletableFuture<Void> getFuture() {
+        return this.future;
+    }
+
+    /**
+     * Is the job still running?
+     *
+     * @since    0.5.0
+     */
+    public boolean isRunning() {
+        return this.started.get() && !this.future.isDone();
+    }
+
+    /**
+     * Was the job cancelled?
+     *
+     * @since    0.5.0
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Get the total amount of regions, known once they have been listed
+     *
+     * @since    0.5.0
+     */
+    public long getTotalRegions() {
+        return this.total_regions;
+    }
+
+    /**
+     * Get the amount of regions counted by this run
+     *
+     * @since    0.5.0
+     */
+    public long getCountedRegions() {
+        return this.counted_regions.get();
+    }
+
+    /**
+     * Get the amount of regions whose stored result was still valid
+     *
+     * @since    0.5.0
+     */
+    public long getReusedRegions() {
+        return this.reused_regions.get();
+    }
+
+    /**
+     * Get the amount of regions that failed to be counted
+     *
+     * @since    0.5.0
+     */
+    public long getFailedRegions() {
+        return this.failed_regions.get();
+    }
+
+    /**
+     * Get the amount of chunks that had to be fetched & decoded
+     *
+     * @since    0.5.0
+     */
+    public long getFetchedChunks() {
+        return this.fetched_chunks.get();
+    }
+
+    /**
+     * Get the progress, from 0 to 1
+     *
+     * @since    0.5.0
+     */
+    public double getProgress() {
+        long total = this.total_regions;
+
+        if (total == 0) {
+            return this.future.isDone() ? 1 : 0;
+        }
+
+        long done = this.counted_regions.get() + this.reused_regions.get() + this.failed_regions.get();
+
+        return Math.min(1, (double) done / total);
+    }
+}
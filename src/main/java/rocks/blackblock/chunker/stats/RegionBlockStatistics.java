@@ -0,0 +1,288 @@
+package rocks.blackblock.chunker.stats;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMaps;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMaps;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.registry.RegistryEntryLookup;
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The block state counts of every chunk of a region file, and of the region as a whole.
+ * Air is never counted.
+ *
+ * Stored as compressed NBT: one palette of block states,
+ * the region totals in palette order & the (palette index, count) pairs of every chunk.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class RegionBlockStatistics {
+
+    private final int region_x;
+    private final int region_z;
+
+    // The last-modified time of the region file that was counted
+    private final long modified;
+
+    private final Object2LongOpenHashMap<BlockState> totals = new Object2LongOpenHashMap<>();
+    private final Long2ObjectMap<Object2IntMap<BlockState>> chunks = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Create empty statistics
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    region_x   The region X coordinate
+     * @param    region_z   The region Z coordinate
+     * @param    modified   The last-modified time of the region file
+     */
+    public RegionBlockStatistics(int region_x, int region_z, long modified) {
+        this.region_x = region_x;
+        this.region_z = region_z;
+        this.modified = modified;
+    }
+
+    /**
+     * Add the counts of a chunk
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    chunk_x   The chunk X coordinate
+     * @param    chunk_z   The chunk Z coordinate
+     * @param    counts    The amount of every block state in the chunk
+     */
+    public synchronized void addChunk(int chunk_x, int chunk_z, Object2IntMap<BlockState> counts) {
+
+        this.chunks.put(ChunkPos.toLong(chunk_x, chunk_z), counts);
+
+        for (Object2IntMap.Entry<BlockState> entry : Object2IntMaps.fastIterable(counts)) {
+            this.totals.addTo(entry.getKey(), entry.getIntValue());
+        }
+    }
+
+    /**
+     * Get the region X coordinate
+     *
+     * @since    0.5.0
+     */
+    public int getRegionX() {
+        return this.region_x;
+    }
+
+    /**
+     * Get the region Z coordinate
+     *
+     * @since    0.5.0
+     */
+    public int getRegionZ() {
+        return this.region_z;
+    }
+
+    /**
+     * Get the last-modified time of the region file that was counted
+     *
+     * @since    0.5.0
+     */
+    public long getModified() {
+        return this.modified;
+    }
+
+    /**
+     * Get the amount of every block state in the region
+     *
+     * @since    0.5.0
+     */
+    public synchronized Object2LongMap<BlockState> getTotals() {
+        return Object2LongMaps.unmodifiable(new Object2LongOpenHashMap<>(this.totals));
+    }
+
+    /**
+     * Get the amount of the given block state in the region
+     *
+     * @since    0.5.0
+     */
+    public synchronized long getCount(BlockState state) {
+        return this.totals.getLong(state);
+    }
+
+    /**
+     * Get the amount of the given block in the region, in any state
+     *
+     * @since    0.5.0
+     */
+    public synchronized long getCount(Block block) {
+
+        long result = 0;
+
+        for (Object2LongMap.Entry<BlockState> entry : Object2LongMaps.fastIterable(this.totals)) {
+            if (entry.getKey().isOf(block)) {
+                result += entry.getLongValue();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the amount of chunks that were counted
+     *
+     * @since    0.5.0
+     */
+    public synchronized int getChunkCount() {
+        return this.chunks.size();
+    }
+
+    /**
+     * Get the amount of every block state in the given chunk
+     *
+     * @since    0.5.0
+     *
+     * @return   The counts, or null if the chunk was not counted
+     */
+    @Nullable
+    public synchronized Object2IntMap<BlockState> getChunkCounts(int chunk_x, int chunk_z) {
+
+        Object2IntMap<BlockState> counts = this.chunks.get(ChunkPos.toLong(chunk_x, chunk_z));
+
+        if (counts == null) {
+            return null;
+        }
+
+        return Object2IntMaps.unmodifiable(counts);
+    }
+
+    /**
+     * Write these statistics to the given file.
+     * They are written to a temporary file first, so a crash never leaves a truncated file behind.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    path   The file to write
+     */
+    public synchronized void write(Path path) throws IOException {
+
+        List<BlockState> palette = new ArrayList<>(this.totals.keySet());
+        Object2IntMap<BlockState> palette_indices = new Object2IntOpenHashMap<>();
+        NbtList palette_nbt = new NbtList();
+        long[] totals = new long[palette.size()];
+
+        for (int i = 0; i < palette.size(); i++) {
+            BlockState state = palette.get(i);
+            palette_indices.put(state, i);
+            palette_nbt.add(NbtHelper.fromBlockState(state));
+            totals[i] = this.totals.getLong(state);
+        }
+
+        NbtList chunks_nbt = new NbtList();
+
+        for (Long2ObjectMap.Entry<Object2IntMap<BlockState>> entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            IntArrayList pairs = new IntArrayList();
+
+            for (Object2IntMap.Entry<BlockState> count : Object2IntMaps.fastIterable(entry.getValue())) {
+                pairs.add(palette_indices.getInt(count.getKey()));
+                pairs.add(count.getIntValue());
+            }
+
+            NbtCompound chunk_nbt = new NbtCompound();
+            chunk_nbt.putInt("X", ChunkPos.getPackedX(entry.getLongKey()));
+            chunk_nbt.putInt("Z", ChunkPos.getPackedZ(entry.getLongKey()));
+            chunk_nbt.putIntArray("Counts", pairs.toIntArray());
+            chunks_nbt.add(chunk_nbt);
+        }
+
+        NbtCompound nbt = new NbtCompound();
+        nbt.putInt("X", this.region_x);
+        nbt.putInt("Z", this.region_z);
+        nbt.putLong("Modified", this.modified);
+        nbt.put("Palette", palette_nbt);
+        nbt.putLongArray("Totals", totals);
+        nbt.put("Chunks", chunks_nbt);
+
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), "statistics", ".tmp");
+
+        try {
+            NbtIo.writeCompressed(nbt, temp);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Read statistics written by {@link #write(Path)}
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    path           The file to read
+     * @param    block_lookup   The blocks to look the block states up in
+     *
+     * @return   The statistics, or null if the file does not exist
+     */
+    @Nullable
+    public static RegionBlockStatistics read(Path path, RegistryEntryLookup<Block> block_lookup) throws IOException {
+
+        NbtCompound nbt;
+
+        try {
+            nbt = NbtIo.readCompressed(path, NbtSizeTracker.ofUnlimitedBytes());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        NbtList palette_nbt = nbt.getList("Palette", NbtElement.COMPOUND_TYPE);
+        BlockState[] palette = new BlockState[palette_nbt.size()];
+
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = NbtHelper.toBlockState(block_lookup, palette_nbt.getCompound(i));
+        }
+
+        RegionBlockStatistics result = new RegionBlockStatistics(nbt.getInt("X"), nbt.getInt("Z"), nbt.getLong("Modified"));
+        NbtList chunks_nbt = nbt.getList("Chunks", NbtElement.COMPOUND_TYPE);
+
+        for (int i = 0; i < chunks_nbt.size(); i++) {
+            NbtCompound chunk_nbt = chunks_nbt.getCompound(i);
+            int[] pairs = chunk_nbt.getIntArray("Counts");
+            Object2IntOpenHashMap<BlockState> counts = new Object2IntOpenHashMap<>(pairs.length / 2);
+
+            for (int j = 0; j + 1 < pairs.length; j += 2) {
+                if (pairs[j] >= 0 && pairs[j] < palette.length) {
+                    counts.addTo(palette[pairs[j]], pairs[j + 1]);
+                }
+            }
+
+            result.addChunk(chunk_nbt.getInt("X"), chunk_nbt.getInt("Z"), counts);
+        }
+
+        return result;
+    }
+}
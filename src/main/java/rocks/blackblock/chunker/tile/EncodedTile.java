@@ -0,0 +1,73 @@
+package rocks.blackblock.chunker.tile;
+
+/**
+ * An encoded tile image, together with the version of its inputs
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class EncodedTile {
+
+    private final byte[] data;
+    private final long version;
+
+    /**
+     * Create the encoded tile
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    data      The encoded image
+     * @param    version   The version of the chunks it was rendered from
+     */
+    public EncodedTile(byte[] data, long version) {
+        this.data = data;
+        this.version = version;
+    }
+
+    /**
+     * Get the encoded image.
+     * The returned array must not be modified.
+     *
+     * @since    0.5.0
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * Get the size of the encoded image in bytes
+     *
+     * @since    0.5.0
+     */
+    public int getLength() {
+        return this.data.length;
+    }
+
+    /**
+     * Get the version of the chunks this tile was rendered from
+     *
+     * @since    0.5.0
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get the (strong) HTTP entity tag of this tile
+     *
+     * @since    0.5.0
+     */
+    public String getETag() {
+        return toETag(this.version);
+    }
+
+    /**
+     * Get the HTTP entity tag of the given version
+     *
+     * @since    0.5.0
+     */
+    public static String toETag(long version) {
+        return "\"" + Long.toHexString(version) + "\"";
+    }
+}
@@ -0,0 +1,181 @@
+package rocks.blackblock.chunker.tile;
+
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.collection.LongLRUCache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache of encoded tiles,
+ * measured by the total size of their images.
+ *
+ * Entries are only returned when their version matches the requested one,
+ * so stale tiles are never served, even before they are invalidated.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class EncodedTileCache {
+
+    // The default maximum size of all the cached images
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    // The estimated memory used by an entry, apart from its image
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final LongLRUCache<EncodedTile> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache with the default size
+     *
+     * @since    0.5.0
+     */
+    public EncodedTileCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Create a cache of the given size
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    max_bytes   The maximum size of all the cached images
+     */
+    public EncodedTileCache(long max_bytes) {
+        this.cache = new LongLRUCache<>(max_bytes, tile -> tile.getLength() + ENTRY_OVERHEAD);
+    }
+
+    /**
+     * Get the cached tile, if it has the given version
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    key       The packed tile key
+     * @param    version   The current version of the tile
+     */
+    @Nullable
+    public EncodedTile get(long key, long version) {
+
+        EncodedTile tile = this.cache.get(key);
+
+        if (tile == null || tile.getVersion() != version) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+
+        return tile;
+    }
+
+    /**
+     * Cache the given tile
+     *
+     * @since    0.5.0
+     *
+     * @param    key    The packed tile key
+     * @param    tile   The encoded tile
+     */
+    public void put(long key, EncodedTile tile) {
+        this.cache.put(key, tile);
+    }
+
+    /**
+     * Forget the given tile
+     *
+     * @since    0.5.0
+     */
+    public void remove(long key) {
+        this.cache.remove(key);
+    }
+
+    /**
+     * Forget all the tiles
+     *
+     * @since    0.5.0
+     */
+    public void clear() {
+        this.cache.clear();
+    }
+
+    /**
+     * Get the amount of cached tiles
+     *
+     * @since    0.5.0
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    /**
+     * Get the estimated memory used by the cached tiles, in bytes
+     *
+     * @since    0.5.0
+     */
+    public long getByteSize() {
+        return this.cache.getWeight();
+    }
+
+    /**
+     * Get the maximum memory the cached tiles can use, in bytes
+     *
+     * @since    0.5.0
+     */
+    public long getMaxBytes() {
+        return this.cache.getMaxWeight();
+    }
+
+    /**
+     * Set the maximum memory the cached tiles can use, in bytes
+     *
+     * @since    0.5.0
+     */
+    public void setMaxBytes(long max_bytes) {
+        this.cache.setMaxWeight(max_bytes);
+    }
+
+    /**
+     * Get the amount of lookups that returned a tile
+     *
+     * @since    0.5.0
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Get the amount of lookups that did not return a tile
+     *
+     * @since    0.5.0
+     */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Get the ratio of lookups that returned a tile
+     *
+     * @since    0.5.0
+     *
+     * @return   A value from 0 to 1, or 0 when nothing was looked up yet
+     */
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Get the amount of tiles evicted to make room
+     *
+     * @since    0.5.0
+     */
+    public long getEvictionCount() {
+        return this.cache.getEvictionCount();
+    }
+}
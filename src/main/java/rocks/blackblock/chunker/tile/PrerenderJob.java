@@ -0,0 +1,407 @@
+package rocks.blackblock.chunker.tile;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.render.PngEncoder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders every tile of a world ahead of time.
+ *
+ * The region files are rendered one after another (row by row),
+ * each one as its 4 level-0 tiles followed by the zoom level -1 tile they make up.
+ * A limited amount of tiles is rendered at the same time on the render executor
+ * of the plane. Finished regions are appended to a checkpoint file under the
+ * world folder, so a job started again after a restart skips them.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class PrerenderJob {
+
+    // The amount of tiles rendered per region file
+    public static final int TILES_PER_REGION = 5;
+
+    private final TileSet tile_set;
+    private final PngEncoder encoder;
+    private final Path checkpoint;
+    private final int parallelism;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean cancelled = false;
+
+    private volatile long total_tiles = 0;
+    private final AtomicLong rendered_tiles = new AtomicLong();
+    private final AtomicLong skipped_tiles = new AtomicLong();
+    private final AtomicLong failed_tiles = new AtomicLong();
+    private volatile long start_time = 0;
+
+    /**
+     * Create a job for the given tile set
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    tile_set      The tiles to render
+     * @param    encoder       The encoder to use
+     * @param    parallelism   The maximum amount of tiles to render at the same time
+     */
+    public PrerenderJob(TileSet tile_set, PngEncoder encoder, int parallelism) {
+
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism of a prerender job should be at least 1");
+        }
+
+        TileDiskStore disk_store = tile_set.getDiskStore();
+
+        this.tile_set = tile_set;
+        this.encoder = encoder;
+        this.parallelism = parallelism;
+        this.checkpoint = disk_store.getFetcher().getWorldFolder().toPath()
+                .resolve("chunker")
+                .resolve("prerender")
+                .resolve(disk_store.getName() + ".txt");
+    }
+
+    /**
+     * Start the job on a new background thread
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @return   A future that completes once every region has been rendered
+     */
+    public CompletableFuture<Void> start() {
+
+        if (!this.started.compareAndSet(false, true)) {
+            return this.future;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                this.run();
+            } catch (Throwable e) {
+                Chunker.LOGGER.error("Prerender job failed", e);
+                this.future.completeExceptionally(e);
+            }
+        }, "Chunker prerender " + this.tile_set.getDiskStore().getName());
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return this.future;
+    }
+
+    /**
+     * Stop the job after the tiles that are being rendered right now.
+     * Its progress is kept, so it can be resumed later.
+     *
+     * @since    0.5.0
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Render all the regions
+     *
+     * @since    0.5.0
+     */
+    private void run() throws InterruptedException {
+
+        LongArrayList regions = this.tile_set.getDiskStore().getFetcher().listRegions();
+        LongSet finished = this.readCheckpoint();
+        Semaphore permits = new Semaphore(this.parallelism);
+        List<CompletableFuture<Void>> region_futures = new ArrayList<>();
+
+        this.total_tiles = (long) regions.size() * TILES_PER_REGION;
+        this.start_time = System.nanoTime();
+
+        for (int i = 0; i < regions.size(); i++) {
+
+            if (this.cancelled || this.tile_set.getPlane().isReleased()) {
+                this.cancelled = true;
+                break;
+            }
+
+            long region = regions.getLong(i);
+
+            if (finished.contains(region)) {
+                this.skipped_tiles.addAndGet(TILES_PER_REGION);
+                continue;
+            }
+
+            region_futures.add(this.renderRegion(ChunkPos.getPackedX(region), ChunkPos.getPackedZ(region), permits));
+        }
+
+        CompletableFuture.allOf(region_futures.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+
+            // Start from scratch next time: changed tiles will be re-rendered then
+            if (!this.cancelled && this.failed_tiles.get() == 0) {
+                try {
+                    Files.deleteIfExists(this.checkpoint);
+                } catch (IOException e) {
+                    Chunker.LOGGER.error("Failed to remove prerender checkpoint {}", this.checkpoint, e);
+                }
+            }
+
+            this.future.complete(null);
+        });
+    }
+
+    /**
+     * Render the tiles of a single region
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<Void> renderRegion(int region_x, int region_z, Semaphore permits) throws InterruptedException {
+
+        AtomicBoolean failed = new AtomicBoolean();
+        CompletableFuture<?>[] tiles = new CompletableFuture[4];
+
+        for (int i = 0; i < 4; i++) {
+            permits.acquire();
+            tiles[i] = this.renderTile(0, region_x * 2 + (i & 1), region_z * 2 + (i >> 1), failed).whenComplete((result, error) -> permits.release());
+        }
+
+        // The zoomed-out tile is built from the 4 tiles that were just rendered,
+        // so it is cheap enough not to need a permit
+        return CompletableFuture.allOf(tiles)
+                .thenCompose(ignored -> this.renderTile(-1, region_x, region_z, failed))
+                .thenRun(() -> {
+                    if (!failed.get()) {
+                        this.writeCheckpoint(region_x, region_z);
+                    }
+                });
+    }
+
+    /**
+     * Render a single tile
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<Void> renderTile(int zoom, int x, int z, AtomicBoolean failed) {
+
+        if (this.cancelled) {
+            failed.set(true);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<EncodedTile> tile;
+
+        try {
+            tile = this.tile_set.getEncodedTileAsync(zoom, x, z, this.encoder);
+        } catch (RuntimeException e) {
+            tile = CompletableFuture.failedFuture(e);
+        }
+
+        return tile.handle((result, error) -> {
+            if (error != null) {
+                Chunker.LOGGER.error("Failed to prerender tile {}/{}/{}", zoom, x, z, error);
+                this.failed_tiles.incrementAndGet();
+                failed.set(true);
+            } else {
+                this.rendered_tiles.incrementAndGet();
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Read the regions finished by a previous run
+     *
+     * @since    0.5.0
+     */
+    private LongSet readCheckpoint() {
+
+        LongSet result = new LongOpenHashSet();
+
+        try {
+            for (String line : Files.readAllLines(this.checkpoint, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+
+                if (parts.length == 2) {
+                    result.add(ChunkPos.toLong(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing was rendered yet
+        } catch (IOException | NumberFormatException e) {
+            Chunker.LOGGER.error("Failed to read prerender checkpoint {}", this.checkpoint, e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Remember that the given region has been rendered
+     *
+     * @since    0.5.0
+     */
+    private synchronized void writeCheckpoint(int region_x, int region_z) {
+        try {
+            Files.createDirectories(this.checkpoint.getParent());
+            Files.writeString(
+                    this.checkpoint,
+                    region_x + " " + region_z + "\n",
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND
+            );
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to write prerender checkpoint {}", this.checkpoint, e);
+        }
+    }
+
+    /**
+     * Get the future that completes once the job is finished or cancelled
+     *
+     * @since    0.5.0
+     */
+    public CompletableFuture<Void> getFuture() {
+        return this.future;
+    }
+
+    /**
+     * Is the job still running?
+     *
+     * @since    0.5.0
+     */
+    public boolean isRunning() {
+        return this.started.get() && !this.future.isDone();
+    }
+
+    /**
+     * Was the job cancelled?
+     *
+     * @since    0.5.0
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Get the total amount of tiles, known once the regions have been listed
+     *
+     * @since    0.5.0
+     */
+    public long getTotalTiles() {
+        return this.total_tiles;
+    }
+
+    /**
+     * Get the amount of tiles rendered by this run
+     *
+     * @since    0.5.0
+     */
+    public long getRenderedTiles() {
+        return this.rendered_tiles.get();
+    }
+
+    /**
+     * Get the amount of tiles skipped because a previous run rendered them
+     *
+     * @since    0.5.0
+     */
+    public long getSkippedTiles() {
+        return this.skipped_tiles.get();
+    }
+
+    /**
+     * Get the amount of tiles that failed to render
+     *
+     * @since    0.5.0
+     */
+    public long getFailedTiles() {
+        return this.failed_tiles.get();
+    }
+
+    /**
+     * Get the amount of tiles that are done, in any way
+     *
+     * @since    0.5.0
+     */
+    public long getDoneTiles() {
+        return this.rendered_tiles.get() + this.skipped_tiles.get() + this.failed_tiles.get();
+    }
+
+    /**
+     * Get the progress, from 0 to 1
+     *
+     * @since    0.5.0
+     */
+    public double getProgress() {
+        long total = this.total_tiles;
+
+        if (total == 0) {
+            return this.future.isDone() ? 1 : 0;
+        }
+
+        return Math.min(1, (double) this.getDoneTiles() / total);
+    }
+
+    /**
+     * Get the amount of tiles rendered per second by this run
+     *
+     * @since    0.5.0
+     */
+    public double getTilesPerSecond() {
+        long start_time = this.start_time;
+
+        if (start_time == 0) {
+            return 0;
+        }
+
+        double seconds = (System.nanoTime() - start_time) / 1_000_000_000.0;
+
+        if (seconds <= 0) {
+            return 0;
+        }
+
+        return (this.rendered_tiles.get() + this.failed_tiles.get()) / seconds;
+    }
+
+    /**
+     * Estimate how long the job will take to finish at the current rate
+     *
+     * @since    0.5.0
+     *
+     * @return   The remaining time, or null if it can't be estimated yet
+     */
+    @Nullable
+    public Duration getEstimatedTimeRemaining() {
+
+        if (this.future.isDone()) {
+            return Duration.ZERO;
+        }
+
+        double rate = this.getTilesPerSecond();
+
+        if (rate <= 0 || this.total_tiles == 0) {
+            return null;
+        }
+
+        long remaining = Math.max(0, this.total_tiles - this.getDoneTiles());
+
+        return Duration.ofMillis((long) (remaining / rate * 1000));
+    }
+}
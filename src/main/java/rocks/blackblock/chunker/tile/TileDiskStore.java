@@ -0,0 +1,364 @@
+package rocks.blackblock.chunker.tile;
+
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.chunk.ChunkFetcher;
+import rocks.blackblock.chunker.collection.LongLRUCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores encoded tiles on disk, under the world folder.
+ *
+ * Every tile is stored together with the version it was rendered at
+ * (see {@link TileSet#getVersion}), which is mostly derived from the region file
+ * timestamps of all the chunks it covers (plus the row north of it),
+ * so a tile stays valid across restarts until one of its chunks is saved again.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class TileDiskStore {
+
+    // The magic number at the start of every tile file ("CHKT")
+    private static final int MAGIC = 0x43484B54;
+
+    // The size of the header: the magic number & the version
+    private static final int HEADER_SIZE = 12;
+
+    // The amount of region digests to keep:
+    // more than the 1056 regions a tile at the minimum zoom level depends on
+    private static final int REGION_DIGEST_CACHE_SIZE = 2048;
+
+    // The FNV-1a offset basis & prime
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ChunkFetcher fetcher;
+    private final String name;
+    private final Path folder;
+
+    // The digests of the timestamps of recently used region files
+    private final LongLRUCache<RegionDigest> region_digests = new LongLRUCache<>(REGION_DIGEST_CACHE_SIZE);
+
+    /**
+     * Create a store for the given world
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    fetcher   The fetcher of the world
+     * @param    name      The name of the tile set
+     */
+    public TileDiskStore(ChunkFetcher fetcher, String name) {
+        this.fetcher = fetcher;
+        this.name = name;
+        this.folder = fetcher.getWorldFolder().toPath().resolve("chunker").resolve("tiles").resolve(name);
+    }
+
+    /**
+     * Get the name of the tile set
+     *
+     * @since    0.5.0
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the fetcher of the world
+     *
+     * @since    0.5.0
+     */
+    public ChunkFetcher getFetcher() {
+        return this.fetcher;
+    }
+
+    /**
+     * Get the file of the given tile
+     *
+     * @since    0.5.0
+     */
+    private Path getPath(int zoom, int x, int z) {
+        return this.folder.resolve(String.valueOf(zoom)).resolve(String.valueOf(x)).resolve(z + ".tile");
+    }
+
+    /**
+     * Compute the stamp of the given tile from the region file timestamps
+     * of the chunks it covers, and the chunk row north of it.
+     * Regions that are covered entirely (or only with their southern row)
+     * add their digest, which is only computed again once their timestamps change,
+     * so zoomed-out tiles cost a lookup per region instead of one per chunk.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     */
+    public long computeStamp(int zoom, int x, int z) {
+
+        int chunk_size = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT + zoom);
+        int min_x = x * chunk_size;
+        int min_z = z * chunk_size - 1;
+        int max_x = min_x + chunk_size - 1;
+        int max_z = min_z + chunk_size;
+
+        // FNV-1a, one timestamp (or region digest) at a time
+        long stamp = FNV_OFFSET;
+
+        for (int region_z = min_z >> 5; region_z <= max_z >> 5; region_z++) {
+            for (int region_x = min_x >> 5; region_x <= max_x >> 5; region_x++) {
+                int[] timestamps = this.fetcher.getRegionTimestamps(region_x, region_z);
+
+                if (timestamps == null) {
+                    stamp = (stamp ^ -1) * FNV_PRIME;
+                    continue;
+                }
+
+                int start_x = Math.max(min_x, region_x << 5);
+                int end_x = Math.min(max_x, (region_x << 5) + 31);
+                int start_z = Math.max(min_z, region_z << 5);
+                int end_z = Math.min(max_z, (region_z << 5) + 31);
+
+                // Whole regions & southern rows of regions use their cached digest
+                if (start_x == region_x << 5 && end_x == (region_x << 5) + 31 && end_z == (region_z << 5) + 31) {
+                    if (start_z == region_z << 5) {
+                        stamp = (stamp ^ this.getRegionDigest(region_x, region_z, timestamps).all()) * FNV_PRIME;
+                        continue;
+                    }
+
+                    if (start_z == end_z) {
+                        stamp = (stamp ^ this.getRegionDigest(region_x, region_z, timestamps).south_row()) * FNV_PRIME;
+                        continue;
+                    }
+                }
+
+                for (int chunk_z = start_z; chunk_z <= end_z; chunk_z++) {
+                    for (int chunk_x = start_x; chunk_x <= end_x; chunk_x++) {
+                        stamp = (stamp ^ timestamps[(chunk_x & 31) + (chunk_z & 31) * 32]) * FNV_PRIME;
+                    }
+                }
+            }
+        }
+
+        return stamp;
+    }
+
+    /**
+     * Get the digest of the given region's timestamps.
+     * The fetcher keeps returning the same table until the region file changes,
+     * so a cached digest is valid for as long as its table is the current one.
+     *
+     * @since    0.5.0
+     */
+    private RegionDigest getRegionDigest(int region_x, int region_z, int[] timestamps) {
+
+        long key = ChunkPos.toLong(region_x, region_z);
+        RegionDigest cached = this.region_digests.get(key);
+
+        if (cached != null && cached.timestamps() == timestamps) {
+            return cached;
+        }
+
+        long all = FNV_OFFSET;
+        long south_row = FNV_OFFSET;
+
+        for (int index = 0; index < 1024; index++) {
+            all = (all ^ timestamps[index]) * FNV_PRIME;
+        }
+
+        for (int index = 31 * 32; index < 1024; index++) {
+            south_row = (south_row ^ timestamps[index]) * FNV_PRIME;
+        }
+
+        RegionDigest result = new RegionDigest(timestamps, all, south_row);
+        this.region_digests.put(key, result);
+
+        return result;
+    }
+
+    /**
+     * The digests of the timestamps of a whole region & of its southern chunk row
+     *
+     * @since    0.5.0
+     */
+    private record RegionDigest(int[] timestamps, long all, long south_row) {}
+
+    /**
+     * Open the stored tile, if it is still valid
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom    The zoom level
+     * @param    x       The tile X coordinate
+     * @param    z       The tile Z coordinate
+     * @param    version   The current version of the tile
+     *
+     * @return   The stored tile, which has to be closed, or null
+     */
+    @Nullable
+    public StoredTile open(int zoom, int x, int z, long version) {
+
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(this.getPath(zoom, x, z), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    break;
+                }
+            }
+
+            header.flip();
+
+            if (header.remaining() == HEADER_SIZE && header.getInt() == MAGIC && header.getLong() == version) {
+                StoredTile result = new StoredTile(channel, channel.size() - HEADER_SIZE);
+                channel = null;
+                return result;
+            }
+        } catch (NoSuchFileException e) {
+            // Not stored yet
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to read tile {}/{}/{}", zoom, x, z, e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the stored tile, if it is still valid
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom    The zoom level
+     * @param    x       The tile X coordinate
+     * @param    z       The tile Z coordinate
+     * @param    version   The current version of the tile
+     *
+     * @return   The encoded tile, or null
+     */
+    @Nullable
+    public byte[] read(int zoom, int x, int z, long version) {
+
+        try (StoredTile tile = this.open(zoom, x, z, version)) {
+
+            if (tile == null) {
+                return null;
+            }
+
+            return tile.readAllBytes();
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to read tile {}/{}/{}", zoom, x, z, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the given encoded tile
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom      The zoom level
+     * @param    x         The tile X coordinate
+     * @param    z         The tile Z coordinate
+     * @param    version   The version of the tile, gotten before rendering it
+     * @param    data      The encoded tile
+     */
+    public void write(int zoom, int x, int z, long version, byte[] data) {
+
+        Path path = this.getPath(zoom, x, z);
+
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), "tile", ".tmp");
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putLong(version).flip();
+
+                ByteBuffer[] buffers = {header, ByteBuffer.wrap(data)};
+
+                while (buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Chunker.LOGGER.error("Failed to write tile {}/{}/{}", zoom, x, z, e);
+        }
+    }
+
+    /**
+     * A valid, opened tile file
+     *
+     * @since    0.5.0
+     */
+    public static class StoredTile implements Closeable {
+
+        private final FileChannel channel;
+        private final long length;
+
+        private StoredTile(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        /**
+         * Get the length of the encoded tile
+         *
+         * @since    0.5.0
+         */
+        public long getLength() {
+            return this.length;
+        }
+
+        /**
+         * Read the encoded tile into memory
+         *
+         * @since    0.5.0
+         */
+        public byte[] readAllBytes() throws IOException {
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) this.length);
+
+            while (buffer.hasRemaining()) {
+                if (this.channel.read(buffer, HEADER_SIZE + buffer.position()) < 0) {
+                    throw new IOException("Tile file was truncated");
+                }
+            }
+
+            return buffer.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package rocks.blackblock.chunker.tile;
+
+/**
+ * Packs a tile's zoom level & coordinates into a single long
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public final class TileKey {
+
+    private TileKey() {}
+
+    /**
+     * Pack the given tile coordinates.
+     * The zoom level takes 8 bits, both coordinates 28 bits.
+     *
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     */
+    public static long pack(int zoom, int x, int z) {
+        return ((long) (zoom & 0xFF) << 56) | ((long) (x & 0xFFFFFFF) << 28) | (z & 0xFFFFFFFL);
+    }
+
+    /**
+     * Get the zoom level of the given key
+     *
+     * @since    0.5.0
+     */
+    public static int getZoom(long key) {
+        return (byte) (key >>> 56);
+    }
+
+    /**
+     * Get the tile X coordinate of the given key
+     *
+     * @since    0.5.0
+     */
+    public static int getX(long key) {
+        return (int) (key << 8 >> 36);
+    }
+
+    /**
+     * Get the tile Z coordinate of the given key
+     *
+     * @since    0.5.0
+     */
+    public static int getZ(long key) {
+        return (int) (key << 36 >> 36);
+    }
+
+    /**
+     * Get the key of the tile one zoom level out that contains the given tile
+     *
+     * @since    0.5.0
+     */
+    public static long getParent(long key) {
+        return pack(getZoom(key) - 1, getX(key) >> 1, getZ(key) >> 1);
+    }
+
+    /**
+     * Get a readable representation of the given key
+     *
+     * @since    0.5.0
+     */
+    public static String toString(long key) {
+        return getZoom(key) + "/" + getX(key) + "/" + getZ(key);
+    }
+}
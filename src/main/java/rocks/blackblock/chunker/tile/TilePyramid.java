@@ -0,0 +1,1233 @@
+package rocks.blackblock.chunker.tile;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.collection.LongLRUCache;
+import rocks.blackblock.chunker.render.PixelFormat;
+import rocks.blackblock.chunker.render.RenderLayer;
+import rocks.blackblock.chunker.render.SurfaceLayer;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The rendered tiles of a single layer of a plane, at every zoom level.
+ *
+ * Zoom level 0 is rendered from the chunks,
+ * every zoomed-out level (-1, -2, ...) is built by downsampling
+ * the 4 tiles of the level below it.
+ * When chunks change, cached tiles are not thrown away:
+ * only the 16x16 pixel blocks of the changed chunks (and the chunks south of them,
+ * whose shading depends on them) are re-rendered, after which the zoomed-out tiles
+ * containing them are patched too. This happens in the background shortly after
+ * the change, or right away when a dirty tile is requested asynchronously.
+ * Patches preload the chunks they need like any other asynchronous render,
+ * so nothing ever waits for them on the calling thread.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class TilePyramid {
+
+    // The default amount of tiles to keep in memory (256 KiB each)
+    public static final int DEFAULT_CACHE_SIZE = 128;
+
+    // The default furthest zoom level
+    public static final int DEFAULT_MIN_ZOOM = -6;
+
+    // The amount of zoom levels below 0 that are built on the calling thread (16 level-0 tiles),
+    // further zoomed-out tiles are only built asynchronously
+    public static final int MAX_SYNC_ZOOM_OUT = 2;
+
+    // The most level-0 tiles that can be requested at once (256 KiB each)
+    public static final int MAX_BATCH_TILES = 64;
+
+    // The width & height (in tiles) of the largest block of level-0 tiles rendered in one pass
+    public static final int MAX_BATCH_SIZE = 4;
+
+    // The default time to wait for more changes before updating the tiles
+    public static final long DEFAULT_UPDATE_DELAY = 1000;
+
+    // The single thread scheduling the background updates of all pyramids
+    private static final ScheduledExecutorService UPDATE_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Chunker tile updater");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Plane plane;
+    private final RenderLayer layer;
+
+    // The pixels of the rendered tiles, in ABGR format
+    private final LongLRUCache<int[]> pixel_cache;
+
+    // The tiles currently being built (and by how many threads),
+    // and those of them that became stale meanwhile
+    private final Long2IntOpenHashMap building = new Long2IntOpenHashMap();
+    private final LongSet stale = new LongOpenHashSet();
+
+    // The furthest zoom level to build
+    private volatile int min_zoom = DEFAULT_MIN_ZOOM;
+
+    // The pool to render the chunk columns of a tile on in parallel, if any
+    @Nullable
+    private volatile ForkJoinPool render_pool = null;
+
+    // The level-0 tiles with changed chunks, mapped to a 256-bit mask of those chunks,
+    // and the tiles currently being patched, mapped to the end of their patch
+    private final Long2ObjectOpenHashMap<long[]> dirty = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<CompletableFuture<Void>> patching = new Long2ObjectOpenHashMap<>();
+
+    // Zoomed-out tiles are patched one at a time
+    private final Object patch_lock = new Object();
+
+    private final AtomicBoolean update_scheduled = new AtomicBoolean();
+    private volatile long update_delay = DEFAULT_UPDATE_DELAY;
+
+    /**
+     * Create the pyramid of the surface of the given plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane to render
+     */
+    public TilePyramid(Plane plane) {
+        this(plane, SurfaceLayer.INSTANCE);
+    }
+
+    /**
+     * Create the pyramid of the given layer of the given plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane to render
+     * @param    layer   The layer to render
+     */
+    public TilePyramid(Plane plane, RenderLayer layer) {
+        this.plane = plane;
+        this.layer = layer;
+        this.pixel_cache = new LongLRUCache<>(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Get the plane of this pyramid
+     *
+     * @since    0.5.0
+     */
+    public Plane getPlane() {
+        return this.plane;
+    }
+
+    /**
+     * Get the layer this pyramid renders
+     *
+     * @since    0.5.0
+     */
+    public RenderLayer getLayer() {
+        return this.layer;
+    }
+
+    /**
+     * Get the furthest zoom level that can be built
+     *
+     * @since    0.5.0
+     */
+    public int getMinZoom() {
+        return this.min_zoom;
+    }
+
+    /**
+     * Set the furthest zoom level that can be built.
+     * Every zoom level out requires 4 times as many tiles to be rendered.
+     *
+     * @since    0.5.0
+     *
+     * @param    min_zoom   A zoom level of 0 or less
+     */
+    public void setMinZoom(int min_zoom) {
+        this.min_zoom = Math.min(0, Math.max(-32, min_zoom));
+    }
+
+    /**
+     * Get the pool tiles are rendered on in parallel,
+     * or null if they are rendered on the calling thread
+     *
+     * @since    0.5.0
+     */
+    @Nullable
+    public ForkJoinPool getRenderPool() {
+        return this.render_pool;
+    }
+
+    /**
+     * Render the chunk columns of every tile in parallel on the given pool,
+     * or on the calling thread if it is null
+     *
+     * @since    0.5.0
+     */
+    public void setRenderPool(@Nullable ForkJoinPool render_pool) {
+        this.render_pool = render_pool;
+    }
+
+    /**
+     * Set how long to wait for more changes before updating the tiles in the background
+     *
+     * @since    0.5.0
+     *
+     * @param    update_delay   The delay in milliseconds
+     */
+    public void setUpdateDelay(long update_delay) {
+        this.update_delay = Math.max(0, update_delay);
+    }
+
+    /**
+     * Set the amount of tiles to keep in memory
+     *
+     * @since    0.5.0
+     *
+     * @param    cache_size   The amount of tiles
+     */
+    public void setCacheSize(int cache_size) {
+        this.pixel_cache.setMaxWeight(cache_size);
+    }
+
+    /**
+     * Does the given tile contain anything?
+     * This only looks at the region index.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     */
+    public boolean exists(int zoom, int x, int z) {
+        return this.plane.getFetcherSession().testTileExists(x, z, -zoom);
+    }
+
+    /**
+     * Get the pixels of the given tile in ABGR format,
+     * from the cache or by building it.
+     * Building it on the calling thread only renders the chunks that are loaded or preloaded,
+     * the other chunks are left transparent, so such a build is not cached.
+     * Dirty tiles are not waited for: they are built like uncached ones until they are patched.
+     * Tiles zoomed out further than {@link #MAX_SYNC_ZOOM_OUT} levels
+     * are only returned from the cache: use {@link #getPixelsAsync(int, int, int)} to build them.
+     * The returned array must not be modified.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     *
+     * @return   The pixels, or null if the zoom level is not supported or the tile isn't cached
+     */
+    @Nullable
+    public int[] getPixels(int zoom, int x, int z) {
+
+        if (zoom > 0 || zoom < this.min_zoom) {
+            return null;
+        }
+
+        // Patches might need the server thread, so never wait for them here
+        boolean is_up_to_date = this.applyPendingUpdates(zoom, x, z).isDone();
+
+        long key = TileKey.pack(zoom, x, z);
+        int[] pixels = is_up_to_date ? this.pixel_cache.get(key) : null;
+
+        // Building it would take up to thousands of level-0 tiles
+        if (pixels != null || zoom < -MAX_SYNC_ZOOM_OUT) {
+            return pixels;
+        }
+
+        pixels = new int[TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+
+        ForkJoinPool render_pool = this.render_pool;
+
+        if (zoom == 0 && render_pool != null) {
+            TileGenerator.renderTile(this.plane, this.layer, x, z, pixels, 0, TileGenerator.TILE_SIZE, PixelFormat.ABGR, render_pool);
+        } else if (zoom == 0) {
+            TileGenerator.renderTile(this.plane, this.layer, x, z, pixels, 0, TileGenerator.TILE_SIZE, PixelFormat.ABGR);
+        } else {
+            this.buildFromChildren(zoom, x, z, pixels);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Get the pixels of the given tile in ABGR format,
+     * but only if they are cached and up to date.
+     * The returned array must not be modified.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     *
+     * @return   The pixels, or null if they aren't cached
+     */
+    @Nullable
+    public int[] getCachedPixels(int zoom, int x, int z) {
+
+        if (zoom > 0 || zoom < this.min_zoom) {
+            return null;
+        }
+
+        if (!this.applyPendingUpdates(zoom, x, z).isDone()) {
+            return null;
+        }
+
+        return this.pixel_cache.get(TileKey.pack(zoom, x, z));
+    }
+
+    /**
+     * Get the pixels of the given tile in ABGR format asynchronously.
+     * Chunks that aren't loaded are read from disk first,
+     * the actual render happens on the render executor of the plane.
+     * The resulting array must not be modified.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     *
+     * @return   A future resolving to the pixels, or to null if the zoom level is not supported
+     */
+    public CompletableFuture<int[]> getPixelsAsync(int zoom, int x, int z) {
+
+        if (zoom > 0 || zoom < this.min_zoom) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return this.applyPendingUpdates(zoom, x, z).thenCompose(ignored -> this.getUpdatedPixelsAsync(zoom, x, z));
+    }
+
+    /**
+     * Get the pixels of the given tile from the cache or by building it,
+     * once its pending updates have been applied
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<int[]> getUpdatedPixelsAsync(int zoom, int x, int z) {
+
+        long key = TileKey.pack(zoom, x, z);
+        int[] cached = this.pixel_cache.get(key);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        synchronized (this.building) {
+            this.building.addTo(key, 1);
+        }
+
+        CompletableFuture<int[]> future;
+
+        try {
+            if (zoom == 0) {
+                future = this.renderAsync(x, z);
+            } else {
+                future = this.buildFromChildrenAsync(zoom, x, z);
+            }
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        return future.whenComplete((pixels, error) -> this.cacheBuiltTile(key, pixels));
+    }
+
+    /**
+     * Get the pixels of the given level-0 tiles asynchronously.
+     * The missing tiles are rendered in blocks of up to {@link #MAX_BATCH_SIZE} by {@link #MAX_BATCH_SIZE} tiles,
+     * each in one pass over the rectangle containing them, so chunks on their borders are only loaded once.
+     * The resulting arrays must not be modified.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    tiles   The packed keys of at most {@link #MAX_BATCH_TILES} level-0 tiles
+     *
+     * @return   A future resolving to the pixels of every tile
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Long2ObjectMap<int[]>> getPixelsAsync(LongList tiles) {
+
+        if (tiles.size() > MAX_BATCH_TILES) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Can't get more than " + MAX_BATCH_TILES + " tiles at once, got " + tiles.size()));
+        }
+
+        CompletableFuture<Void>[] updates = new CompletableFuture[tiles.size()];
+
+        for (int i = 0; i < tiles.size(); i++) {
+            long key = tiles.getLong(i);
+            updates[i] = this.applyPendingUpdates(0, TileKey.getX(key), TileKey.getZ(key));
+        }
+
+        return CompletableFuture.allOf(updates).thenCompose(ignored -> this.getUpdatedPixelsAsync(tiles));
+    }
+
+    /**
+     * Get the pixels of the given level-0 tiles,
+     * once their pending updates have been applied
+     *
+     * @since    0.5.0
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Long2ObjectMap<int[]>> getUpdatedPixelsAsync(LongList tiles) {
+
+        Long2ObjectMap<int[]> result = new Long2ObjectOpenHashMap<>(tiles.size());
+        Long2ObjectOpenHashMap<LongArrayList> batches = new Long2ObjectOpenHashMap<>();
+
+        for (int i = 0; i < tiles.size(); i++) {
+            long key = tiles.getLong(i);
+            int x = TileKey.getX(key);
+            int z = TileKey.getZ(key);
+            int[] cached = this.pixel_cache.get(key);
+
+            if (cached != null) {
+                result.put(key, cached);
+                continue;
+            }
+
+            // Missing tiles are rendered in blocks of at most MAX_BATCH_SIZE x MAX_BATCH_SIZE tiles
+            batches.computeIfAbsent(ChunkPos.toLong(Math.floorDiv(x, MAX_BATCH_SIZE), Math.floorDiv(z, MAX_BATCH_SIZE)), ignored -> new LongArrayList()).add(key);
+        }
+
+        if (batches.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        CompletableFuture<Void>[] futures = new CompletableFuture[batches.size()];
+        int index = 0;
+
+        for (LongArrayList batch : batches.values()) {
+            futures[index++] = this.renderBatchAsync(batch).thenAccept(pixels -> {
+                synchronized (result) {
+                    result.putAll(pixels);
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(ignored -> result);
+    }
+
+    /**
+     * Render the given missing level-0 tiles together,
+     * in one pass over the rectangle containing them
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<Long2ObjectMap<int[]>> renderBatchAsync(LongArrayList missing) {
+
+        int min_x = Integer.MAX_VALUE;
+        int min_z = Integer.MAX_VALUE;
+        int max_x = Integer.MIN_VALUE;
+        int max_z = Integer.MIN_VALUE;
+
+        for (int i = 0; i < missing.size(); i++) {
+            long key = missing.getLong(i);
+            min_x = Math.min(min_x, TileKey.getX(key));
+            min_z = Math.min(min_z, TileKey.getZ(key));
+            max_x = Math.max(max_x, TileKey.getX(key));
+            max_z = Math.max(max_z, TileKey.getZ(key));
+        }
+
+        synchronized (this.building) {
+            for (int i = 0; i < missing.size(); i++) {
+                this.building.addTo(missing.getLong(i), 1);
+            }
+        }
+
+        int tiles_wide = max_x - min_x + 1;
+        int tiles_high = max_z - min_z + 1;
+        int chunk_count = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_x = TileGenerator.rightShiftButReversible(min_x, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_z = TileGenerator.rightShiftButReversible(min_z, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int first_x = min_x;
+        int first_z = min_z;
+
+        int max_chunk_x = min_chunk_x + tiles_wide * chunk_count - 1;
+        int max_chunk_z = min_chunk_z + tiles_high * chunk_count - 1;
+        CompletableFuture<int[][]> future;
+
+        try {
+            if (this.layer == SurfaceLayer.INSTANCE) {
+                // The surface is rendered from the chunks' summaries
+                future = this.plane.preloadSummaryArea(min_chunk_x, min_chunk_z - 1, max_chunk_x, max_chunk_z).thenApplyAsync(area -> {
+                    int[][] targets = new int[tiles_wide * tiles_high][TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+                    TileGenerator.renderTiles(area, first_x, first_z, tiles_wide, tiles_high, targets, PixelFormat.ABGR);
+                    return targets;
+                }, this.plane.getRenderExecutor());
+            } else {
+                future = this.plane.preloadArea(min_chunk_x, min_chunk_z - 1, max_chunk_x, max_chunk_z).thenApplyAsync(area -> {
+                    int[][] targets = new int[tiles_wide * tiles_high][TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+                    TileGenerator.renderTiles(area, this.layer, first_x, first_z, tiles_wide, tiles_high, targets, PixelFormat.ABGR);
+                    return targets;
+                }, this.plane.getRenderExecutor());
+            }
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        return future.handle((targets, error) -> {
+
+            Long2ObjectMap<int[]> result = new Long2ObjectOpenHashMap<>(missing.size());
+
+            for (int i = 0; i < missing.size(); i++) {
+                long key = missing.getLong(i);
+                int[] pixels = null;
+
+                if (targets != null) {
+                    pixels = targets[(TileKey.getZ(key) - first_z) * tiles_wide + (TileKey.getX(key) - first_x)];
+                    result.put(key, pixels);
+                }
+
+                this.cacheBuiltTile(key, pixels);
+            }
+
+            if (error != null) {
+                throw new CompletionException(error);
+            }
+
+            return result;
+        });
+    }
+
+    /**
+     * Preload the chunks of the given level-0 tile (and the row north of it),
+     * then render it on the render executor
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<int[]> renderAsync(int x, int z) {
+
+        int chunk_count = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_x = TileGenerator.rightShiftButReversible(x, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_z = TileGenerator.rightShiftButReversible(z, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        if (this.layer == SurfaceLayer.INSTANCE) {
+            // The surface is rendered from the chunks' summaries
+            return this.plane.preloadSummaryArea(min_x, min_z - 1, min_x + chunk_count - 1, min_z + chunk_count - 1).thenApplyAsync(area -> {
+                int[] pixels = new int[TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+                TileGenerator.renderTile(area, x, z, pixels, 0, TileGenerator.TILE_SIZE, PixelFormat.ABGR);
+                return pixels;
+            }, this.plane.getRenderExecutor());
+        }
+
+        return this.plane.preloadArea(min_x, min_z - 1, min_x + chunk_count - 1, min_z + chunk_count - 1).thenApplyAsync(area -> {
+            int[] pixels = new int[TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+            TileGenerator.renderTile(area, this.layer, x, z, pixels, 0, TileGenerator.TILE_SIZE, PixelFormat.ABGR);
+            return pixels;
+        }, this.plane.getRenderExecutor());
+    }
+
+    /**
+     * Build a zoomed-out tile once its 4 children are available
+     *
+     * @since    0.5.0
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<int[]> buildFromChildrenAsync(int zoom, int x, int z) {
+
+        CompletableFuture<int[]>[] children = new CompletableFuture[4];
+
+        for (int child = 0; child < 4; child++) {
+            int child_x = (x << 1) + (child & 1);
+            int child_z = (z << 1) + (child >> 1);
+
+            if (this.exists(zoom + 1, child_x, child_z)) {
+                children[child] = this.getPixelsAsync(zoom + 1, child_x, child_z);
+            } else {
+                children[child] = CompletableFuture.completedFuture(null);
+            }
+        }
+
+        return CompletableFuture.allOf(children).thenApply(ignored -> {
+            int half = TileGenerator.TILE_SIZE / 2;
+            int[] pixels = new int[TileGenerator.TILE_SIZE * TileGenerator.TILE_SIZE];
+
+            for (int child = 0; child < 4; child++) {
+                int target_offset = (child >> 1) * half * TileGenerator.TILE_SIZE + (child & 1) * half;
+                downsample(children[child].join(), pixels, target_offset, TileGenerator.TILE_SIZE);
+            }
+
+            return pixels;
+        });
+    }
+
+    /**
+     * Cache a freshly built tile, unless it became stale while building.
+     * Failed builds pass null, which only ends the build.
+     *
+     * @since    0.5.0
+     */
+    protected void cacheBuiltTile(long key, @Nullable int[] pixels) {
+        synchronized (this.building) {
+            int remaining = this.building.addTo(key, -1) - 1;
+            boolean is_stale;
+
+            if (remaining <= 0) {
+                this.building.remove(key);
+                is_stale = this.stale.remove(key);
+            } else {
+                is_stale = this.stale.contains(key);
+            }
+
+            if (!is_stale && pixels != null) {
+                this.pixel_cache.put(key, pixels);
+            }
+        }
+    }
+
+    /**
+     * Build a zoomed-out tile by downsampling its 4 children
+     *
+     * @since    0.5.0
+     */
+    private void buildFromChildren(int zoom, int x, int z, int[] target) {
+
+        int half = TileGenerator.TILE_SIZE / 2;
+
+        for (int child = 0; child < 4; child++) {
+            int offset_x = child & 1;
+            int offset_z = child >> 1;
+            int child_x = (x << 1) + offset_x;
+            int child_z = (z << 1) + offset_z;
+            int target_offset = offset_z * half * TileGenerator.TILE_SIZE + offset_x * half;
+
+            int[] child_pixels = null;
+
+            if (this.exists(zoom + 1, child_x, child_z)) {
+                child_pixels = this.getPixels(zoom + 1, child_x, child_z);
+            }
+
+            downsample(child_pixels, target, target_offset, TileGenerator.TILE_SIZE);
+        }
+    }
+
+    /**
+     * Downsample a full tile into a quarter of the target,
+     * averaging every 2x2 block of (non-transparent) pixels
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    source   The pixels of the full tile, or null if it is empty
+     * @param    target   The pixels to write to
+     * @param    offset   The index of the north-west pixel in the target
+     * @param    stride   The distance between 2 rows in the target
+     */
+    public static void downsample(@Nullable int[] source, int[] target, int offset, int stride) {
+
+        int size = TileGenerator.TILE_SIZE;
+        int half = size / 2;
+
+        for (int z = 0; z < half; z++) {
+            int row = offset + z * stride;
+
+            if (source == null) {
+                for (int x = 0; x < half; x++) {
+                    target[row + x] = 0;
+                }
+
+                continue;
+            }
+
+            int source_row = (z * 2) * size;
+
+            for (int x = 0; x < half; x++) {
+                int index = source_row + x * 2;
+                target[row + x] = average(source[index], source[index + 1], source[index + size], source[index + size + 1]);
+            }
+        }
+    }
+
+    /**
+     * Average the non-transparent pixels among the given 4
+     *
+     * @since    0.5.0
+     */
+    private static int average(int a, int b, int c, int d) {
+
+        int weight_a = (a >>> 24) != 0 ? 1 : 0;
+        int weight_b = (b >>> 24) != 0 ? 1 : 0;
+        int weight_c = (c >>> 24) != 0 ? 1 : 0;
+        int weight_d = (d >>> 24) != 0 ? 1 : 0;
+        int count = weight_a + weight_b + weight_c + weight_d;
+
+        if (count == 0) {
+            return 0;
+        }
+
+        int result = 0xFF000000;
+
+        // Average each of the 3 color channels
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int sum = ((a >> shift) & 0xFF) * weight_a
+                    + ((b >> shift) & 0xFF) * weight_b
+                    + ((c >> shift) & 0xFF) * weight_c
+                    + ((d >> shift) & 0xFF) * weight_d;
+
+            result |= (sum / count) << shift;
+        }
+
+        return result;
+    }
+
+    /**
+     * Mark the given chunks as changed.
+     * Their pixels (and those of the chunks south of them)
+     * will be re-rendered in the background, or when the tile is requested.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    changed_chunks   The packed positions of the changed chunks
+     */
+    public void markDirty(LongSet changed_chunks) {
+
+        LongSet tiles = new LongOpenHashSet();
+
+        synchronized (this.dirty) {
+            LongIterator iterator = changed_chunks.iterator();
+
+            while (iterator.hasNext()) {
+                long packed_pos = iterator.nextLong();
+                int chunk_x = ChunkPos.getPackedX(packed_pos);
+                int chunk_z = ChunkPos.getPackedZ(packed_pos);
+
+                tiles.add(this.markChunkDirty(chunk_x, chunk_z));
+                tiles.add(this.markChunkDirty(chunk_x, chunk_z + 1));
+            }
+        }
+
+        // Tiles that are being built right now might have used the old chunks
+        synchronized (this.building) {
+            if (!this.building.isEmpty()) {
+                int min_zoom = this.min_zoom;
+                LongIterator iterator = tiles.iterator();
+
+                while (iterator.hasNext()) {
+                    long tile = iterator.nextLong();
+                    int x = TileKey.getX(tile);
+                    int z = TileKey.getZ(tile);
+
+                    for (int zoom = 0; zoom >= min_zoom; zoom--) {
+                        long key = TileKey.pack(zoom, x >> -zoom, z >> -zoom);
+
+                        if (this.building.containsKey(key)) {
+                            this.stale.add(key);
+                        }
+                    }
+                }
+            }
+        }
+
+        this.scheduleUpdate();
+    }
+
+    /**
+     * Set the bit of the given chunk in the mask of its tile
+     *
+     * @since    0.5.0
+     *
+     * @return   The key of the tile
+     */
+    private long markChunkDirty(int chunk_x, int chunk_z) {
+
+        long key = TileKey.pack(0, chunk_x >> 4, chunk_z >> 4);
+        long[] mask = this.dirty.get(key);
+
+        if (mask == null) {
+            mask = new long[4];
+            this.dirty.put(key, mask);
+        }
+
+        int bit = (chunk_z & 15) * 16 + (chunk_x & 15);
+        mask[bit >> 6] |= 1L << (bit & 63);
+
+        return key;
+    }
+
+    /**
+     * Schedule a background update of the dirty tiles, if none is scheduled yet
+     *
+     * @since    0.5.0
+     */
+    private void scheduleUpdate() {
+
+        if (!this.update_scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        UPDATE_SCHEDULER.schedule(() -> {
+            this.update_scheduled.set(false);
+
+            if (this.plane.isReleased()) {
+                return;
+            }
+
+            this.plane.getRenderExecutor().execute(this::applyPendingUpdates);
+        }, this.update_delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Are there tiles waiting to be updated?
+     *
+     * @since    0.5.0
+     */
+    public boolean hasPendingUpdates() {
+        synchronized (this.dirty) {
+            return !this.dirty.isEmpty();
+        }
+    }
+
+    /**
+     * Start updating all the dirty tiles now
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @return   A future that completes once they are updated
+     */
+    public CompletableFuture<Void> applyPendingUpdates() {
+        return this.applyPendingUpdates(1, 0, 0);
+    }
+
+    /**
+     * Start updating the dirty level-0 tiles covered by the given tile.
+     * A tile that is already being patched is only patched again once that patch is done,
+     * so older chunks never overwrite newer ones.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (1 to update every tile)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     *
+     * @return   A future that completes once they are updated
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> applyPendingUpdates(int zoom, int x, int z) {
+
+        List<CompletableFuture<Void>> in_progress = new ArrayList<>();
+
+        synchronized (this.dirty) {
+
+            if (this.dirty.isEmpty() && this.patching.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            for (Long2ObjectMap.Entry<CompletableFuture<Void>> entry : this.patching.long2ObjectEntrySet()) {
+                if (isCoveredBy(entry.getLongKey(), zoom, x, z)) {
+                    in_progress.add(entry.getValue());
+                }
+            }
+        }
+
+        if (in_progress.isEmpty()) {
+            return this.startPatches(zoom, x, z);
+        }
+
+        return CompletableFuture.allOf(in_progress.toArray(new CompletableFuture[0])).thenCompose(ignored -> this.startPatches(zoom, x, z));
+    }
+
+    /**
+     * Start patching the dirty level-0 tiles covered by the given tile,
+     * except the ones that are already being patched
+     *
+     * @since    0.5.0
+     *
+     * @return   A future that completes once they are patched
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> startPatches(int zoom, int x, int z) {
+
+        LongArrayList keys = new LongArrayList();
+        List<long[]> masks = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        synchronized (this.dirty) {
+            var iterator = this.dirty.long2ObjectEntrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Long2ObjectMap.Entry<long[]> entry = iterator.next();
+                long key = entry.getLongKey();
+
+                if (!isCoveredBy(key, zoom, x, z)) {
+                    continue;
+                }
+
+                CompletableFuture<Void> current = this.patching.get(key);
+
+                // Another thread started patching it meanwhile: leave the new changes for later
+                if (current != null) {
+                    futures.add(current);
+                    continue;
+                }
+
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                this.patching.put(key, done);
+                futures.add(done);
+                keys.add(key);
+                masks.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.getLong(i);
+            CompletableFuture<Void> patch;
+
+            try {
+                patch = this.patchTile(key, masks.get(i));
+            } catch (RuntimeException e) {
+                patch = CompletableFuture.failedFuture(e);
+            }
+
+            patch.whenComplete((ignored, error) -> this.finishPatch(key, error));
+        }
+
+        if (futures.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * End the patch of the given level-0 tile.
+     * A failed patch drops the tile, so it is built again when needed.
+     *
+     * @since    0.5.0
+     */
+    private void finishPatch(long key, @Nullable Throwable error) {
+
+        if (error != null) {
+            Chunker.LOGGER.error("Failed to update tile [{}, {}]", TileKey.getX(key), TileKey.getZ(key), error);
+            this.invalidate(TileKey.getX(key), TileKey.getZ(key));
+        }
+
+        CompletableFuture<Void> done;
+        boolean has_more;
+
+        synchronized (this.dirty) {
+            done = this.patching.remove(key);
+            has_more = !this.dirty.isEmpty();
+        }
+
+        if (done != null) {
+            done.complete(null);
+        }
+
+        // Changes that came in while it was being patched
+        if (has_more) {
+            this.scheduleUpdate();
+        }
+    }
+
+    /**
+     * Is the given level-0 tile covered by the given tile?
+     * Zoom level 1 covers everything.
+     *
+     * @since    0.5.0
+     */
+    private static boolean isCoveredBy(long key, int zoom, int x, int z) {
+
+        if (zoom > 0) {
+            return true;
+        }
+
+        return (TileKey.getX(key) >> -zoom) == x && (TileKey.getZ(key) >> -zoom) == z;
+    }
+
+    /**
+     * Re-render the changed chunks of a level-0 tile,
+     * then patch the zoomed-out tiles containing it.
+     * Only the changed chunks and the chunks north of them are preloaded.
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<Void> patchTile(long key, long[] mask) {
+
+        int x = TileKey.getX(key);
+        int z = TileKey.getZ(key);
+
+        if (!this.pixel_cache.containsKey(key)) {
+
+            // Only zoomed-out tiles need this tile now
+            if (!this.hasCachedAncestor(x, z)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            synchronized (this.building) {
+                this.building.addTo(key, 1);
+            }
+
+            CompletableFuture<int[]> future;
+
+            try {
+                future = this.renderAsync(x, z);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            return future.handle((pixels, error) -> {
+                this.cacheBuiltTile(key, pixels);
+
+                if (error != null) {
+                    throw new CompletionException(error);
+                }
+
+                this.patchAncestors(x, z, pixels);
+                return null;
+            });
+        }
+
+        int chunk_count = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_x = TileGenerator.rightShiftButReversible(x, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_z = TileGenerator.rightShiftButReversible(z, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_x = chunk_count;
+        int min_z = chunk_count;
+        int max_x = -1;
+        int max_z = -1;
+
+        for (int bit = 0; bit < chunk_count * chunk_count; bit++) {
+            if ((mask[bit >> 6] & (1L << (bit & 63))) != 0) {
+                min_x = Math.min(min_x, bit % chunk_count);
+                min_z = Math.min(min_z, bit / chunk_count);
+                max_x = Math.max(max_x, bit % chunk_count);
+                max_z = Math.max(max_z, bit / chunk_count);
+            }
+        }
+
+        if (max_x < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        int x1 = min_chunk_x + min_x;
+        int z1 = min_chunk_z + min_z - 1;
+        int x2 = min_chunk_x + max_x;
+        int z2 = min_chunk_z + max_z;
+
+        if (this.layer == SurfaceLayer.INSTANCE) {
+            return this.plane.preloadSummaryArea(x1, z1, x2, z2).thenAcceptAsync(area -> this.patchChunks(key, mask, (chunk_x, chunk_z, pixels, offset) -> {
+                TileGenerator.renderChunk(area, chunk_x, chunk_z, pixels, offset, TileGenerator.TILE_SIZE, PixelFormat.ABGR);
+            }), this.plane.getRenderExecutor());
+        }
+
+        return this.plane.preloadArea(x1, z1, x2, z2).thenAcceptAsync(area -> this.patchChunks(key, mask, (chunk_x, chunk_z, pixels, offset) -> {
+            TileGenerator.renderChunk(area, this.layer, chunk_x, chunk_z, pixels, offset, TileGenerator.TILE_SIZE, PixelFormat.ABGR);
+        }), this.plane.getRenderExecutor());
+    }
+
+    /**
+     * Re-render the changed chunks of a cached level-0 tile into a copy of it,
+     * then patch the zoomed-out tiles containing it
+     *
+     * @since    0.5.0
+     */
+    private void patchChunks(long key, long[] mask, ChunkPatcher patcher) {
+
+        int x = TileKey.getX(key);
+        int z = TileKey.getZ(key);
+        int size = TileGenerator.TILE_SIZE;
+        int chunk_count = TileGenerator.rightShiftButReversible(1, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_x = TileGenerator.rightShiftButReversible(x, TileGenerator.TILE_TO_CHUNK_SHIFT);
+        int min_chunk_z = TileGenerator.rightShiftButReversible(z, TileGenerator.TILE_TO_CHUNK_SHIFT);
+
+        int[] current = this.pixel_cache.get(key);
+
+        // It was evicted meanwhile, so the zoomed-out tiles can't be patched with it
+        if (current == null) {
+            this.invalidateFrom(-1, x >> 1, z >> 1);
+            return;
+        }
+
+        // Cached pixels are never modified, so patch a copy
+        int[] pixels = current.clone();
+
+        for (int bit = 0; bit < chunk_count * chunk_count; bit++) {
+            if ((mask[bit >> 6] & (1L << (bit & 63))) == 0) {
+                continue;
+            }
+
+            int offset_x = bit % chunk_count;
+            int offset_z = bit / chunk_count;
+
+            patcher.renderChunk(min_chunk_x + offset_x, min_chunk_z + offset_z, pixels, offset_z * 16 * size + offset_x * 16);
+        }
+
+        if (!this.replaceCached(key, current, pixels)) {
+
+            // It was rebuilt meanwhile: patch the zoomed-out tiles with that build instead
+            pixels = this.pixel_cache.get(key);
+
+            if (pixels == null) {
+                this.invalidateFrom(-1, x >> 1, z >> 1);
+                return;
+            }
+        }
+
+        this.patchAncestors(x, z, pixels);
+    }
+
+    /**
+     * Is any zoomed-out tile containing the given level-0 tile cached?
+     *
+     * @since    0.5.0
+     */
+    private boolean hasCachedAncestor(int x, int z) {
+
+        int min_zoom = this.min_zoom;
+
+        for (int zoom = -1; zoom >= min_zoom; zoom--) {
+            if (this.pixel_cache.containsKey(TileKey.pack(zoom, x >> -zoom, z >> -zoom))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Downsample the patched pixels of a tile into the zoomed-out tiles containing it.
+     * Once one of them is missing, the ones above it are dropped.
+     *
+     * @since    0.5.0
+     */
+    private void patchAncestors(int x, int z, int[] child_pixels) {
+
+        int half = TileGenerator.TILE_SIZE / 2;
+        int min_zoom = this.min_zoom;
+
+        synchronized (this.patch_lock) {
+            for (int zoom = -1; zoom >= min_zoom; zoom--) {
+                int offset = ((z & 1) * half * TileGenerator.TILE_SIZE) + (x & 1) * half;
+                x >>= 1;
+                z >>= 1;
+
+                long key = TileKey.pack(zoom, x, z);
+                int[] current = this.pixel_cache.get(key);
+                int[] pixels = null;
+
+                if (current != null) {
+                    pixels = current.clone();
+                    downsample(child_pixels, pixels, offset, TileGenerator.TILE_SIZE);
+                }
+
+                if (pixels == null || !this.replaceCached(key, current, pixels)) {
+                    this.invalidateFrom(zoom, x, z);
+                    return;
+                }
+
+                child_pixels = pixels;
+            }
+        }
+    }
+
+    /**
+     * Replace the cached pixels of a tile,
+     * but only if they weren't replaced or removed meanwhile
+     *
+     * @since    0.5.0
+     */
+    private boolean replaceCached(long key, int[] expected, int[] pixels) {
+        synchronized (this.building) {
+            if (this.pixel_cache.get(key) != expected) {
+                return false;
+            }
+
+            this.pixel_cache.put(key, pixels);
+            return true;
+        }
+    }
+
+    /**
+     * Invalidate the given tile and all the zoomed-out tiles containing it
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    x   The tile X coordinate (at zoom level 0)
+     * @param    z   The tile Z coordinate (at zoom level 0)
+     */
+    public void invalidate(int x, int z) {
+        this.invalidateFrom(0, x, z);
+    }
+
+    /**
+     * Invalidate the given tile and all the zoomed-out tiles containing it
+     *
+     * @since    0.5.0
+     */
+    private void invalidateFrom(int zoom, int x, int z) {
+
+        int min_zoom = this.min_zoom;
+
+        synchronized (this.building) {
+            for (; zoom >= min_zoom; zoom--) {
+                long key = TileKey.pack(zoom, x, z);
+                this.pixel_cache.remove(key);
+
+                if (this.building.containsKey(key)) {
+                    this.stale.add(key);
+                }
+
+                x >>= 1;
+                z >>= 1;
+            }
+        }
+    }
+
+    /**
+     * Drop all the tiles
+     *
+     * @since    0.5.0
+     */
+    public void clear() {
+        synchronized (this.building) {
+            this.pixel_cache.clear();
+            this.stale.addAll(this.building.keySet());
+        }
+    }
+
+    /**
+     * Renders a single chunk into the pixels of a tile
+     *
+     * @since    0.5.0
+     */
+    @FunctionalInterface
+    private interface ChunkPatcher {
+        void renderChunk(int chunk_x, int chunk_z, int[] pixels, int offset);
+    }
+}
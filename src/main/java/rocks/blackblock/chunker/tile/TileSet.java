@@ -0,0 +1,569 @@
+package rocks.blackblock.chunker.tile;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.render.PngEncoder;
+import rocks.blackblock.chunker.render.RenderLayer;
+import rocks.blackblock.chunker.render.SurfaceLayer;
+import rocks.blackblock.chunker.world.Plane;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All the tiles of a single layer of a plane:
+ * the rendered pixels in memory & the encoded tiles in memory and on disk.
+ *
+ * Every tile has a version, derived from the region file timestamps
+ * of the chunks it covers and the (unsaved) changes made to them since startup.
+ * It can be computed without rendering anything.
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class TileSet {
+
+    // Check which changed tiles were saved meanwhile once this many are remembered
+    private static final int CHANGES_PRUNE_THRESHOLD = 16384;
+
+    private final Plane plane;
+    private final RenderLayer layer;
+    private final TilePyramid pyramid;
+    private final TileDiskStore disk_store;
+    private final EncodedTileCache memory_cache;
+
+    // The tiles that changed since their chunks were last saved, mapped to the generation of their last change
+    private final Long2LongOpenHashMap changes = new Long2LongOpenHashMap();
+
+    // The stamp the tiles in `changes` had the first time their version was computed after their last change
+    private final Long2LongOpenHashMap change_stamps = new Long2LongOpenHashMap();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean pruning_changes = new AtomicBoolean();
+    private volatile int prune_threshold = CHANGES_PRUNE_THRESHOLD;
+
+    /**
+     * Create the tile set of the surface of the given plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane to render
+     */
+    public TileSet(Plane plane) {
+        this(plane, SurfaceLayer.INSTANCE);
+    }
+
+    /**
+     * Create the tile set of the given layer of the given plane.
+     * Its tiles are stored on disk under the name of the layer.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane to render
+     * @param    layer   The layer to render
+     */
+    public TileSet(Plane plane, RenderLayer layer) {
+        this.plane = plane;
+        this.layer = layer;
+        this.pyramid = new TilePyramid(plane, layer);
+        this.disk_store = new TileDiskStore(plane.getFetcherSession().getFetcher(), layer.getName());
+        this.memory_cache = new EncodedTileCache();
+
+        plane.addChangeListener((changed_plane, changed_chunks) -> this.onChunksChanged(changed_chunks));
+    }
+
+    /**
+     * Get the plane of this tile set
+     *
+     * @since    0.5.0
+     */
+    public Plane getPlane() {
+        return this.plane;
+    }
+
+    /**
+     * Get the layer of this tile set
+     *
+     * @since    0.5.0
+     */
+    public RenderLayer getLayer() {
+        return this.layer;
+    }
+
+    /**
+     * Get the in-memory pixels of the tiles
+     *
+     * @since    0.5.0
+     */
+    public TilePyramid getPyramid() {
+        return this.pyramid;
+    }
+
+    /**
+     * Get the on-disk store of the encoded tiles
+     *
+     * @since    0.5.0
+     */
+    public TileDiskStore getDiskStore() {
+        return this.disk_store;
+    }
+
+    /**
+     * Get the in-memory cache of the encoded tiles
+     *
+     * @since    0.5.0
+     */
+    public EncodedTileCache getMemoryCache() {
+        return this.memory_cache;
+    }
+
+    /**
+     * Is the given tile available?
+     *
+     * @since    0.5.0
+     */
+    public boolean exists(int zoom, int x, int z) {
+        return zoom <= 0 && zoom >= this.pyramid.getMinZoom() && this.pyramid.exists(zoom, x, z);
+    }
+
+    /**
+     * Get the current version of the given tile.
+     * Get it before rendering, so changes made during the render aren't missed.
+     * Once the stamp of a changed tile changes, its chunks were saved after the change:
+     * the stamp alone then gives it a new version, so the change is forgotten.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     */
+    public long getVersion(int zoom, int x, int z) {
+
+        long key = TileKey.pack(zoom, x, z);
+        long previous_change;
+        long change;
+
+        synchronized (this.changes) {
+            previous_change = this.changes.get(key);
+        }
+
+        long stamp = this.disk_store.computeStamp(zoom, x, z);
+
+        synchronized (this.changes) {
+            change = this.changes.get(key);
+
+            // Only a stamp computed after the last change tells whether it was saved since
+            if (change != 0 && change == previous_change) {
+                if (!this.change_stamps.containsKey(key)) {
+                    this.change_stamps.put(key, stamp);
+                } else if (this.change_stamps.get(key) != stamp) {
+                    this.changes.remove(key);
+                    this.change_stamps.remove(key);
+                    change = 0;
+                }
+            }
+        }
+
+        // Unchanged tiles keep the same version across restarts
+        return HashCommon.murmurHash3(stamp + change * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Get the current HTTP entity tag of the given tile,
+     * without rendering it
+     *
+     * @since    0.5.0
+     *
+     * @return   The entity tag, or null if the tile does not exist
+     */
+    @Nullable
+    public String getETag(int zoom, int x, int z) {
+
+        if (!this.exists(zoom, x, z)) {
+            return null;
+        }
+
+        return EncodedTile.toETag(this.getVersion(zoom, x, z));
+    }
+
+    /**
+     * Does the client's copy of the given tile still match?
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom   The zoom level (0 or less)
+     * @param    x      The tile X coordinate
+     * @param    z      The tile Z coordinate
+     * @param    etag   The entity tag the client has
+     */
+    public boolean isNotModified(int zoom, int x, int z, @Nullable String etag) {
+
+        if (etag == null) {
+            return false;
+        }
+
+        return etag.equals(this.getETag(zoom, x, z));
+    }
+
+    /**
+     * Get the encoded tile from memory or disk if it is still valid,
+     * or else from the cached pixels, after which it is stored.
+     * Otherwise it is rendered from the loaded chunks only: that render is returned,
+     * but never stored, as the chunks that aren't loaded are left transparent.
+     * Tiles zoomed out further than {@link TilePyramid#MAX_SYNC_ZOOM_OUT} levels are not built here.
+     * Use {@link #getEncodedTileAsync(int, int, int, PngEncoder)} for complete tiles.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom      The zoom level (0 or less)
+     * @param    x         The tile X coordinate
+     * @param    z         The tile Z coordinate
+     * @param    encoder   The encoder to use for new tiles
+     *
+     * @return   The encoded tile, or null if the tile does not exist or could not be built
+     */
+    @Nullable
+    public EncodedTile getEncodedTile(int zoom, int x, int z, PngEncoder encoder) {
+
+        if (!this.exists(zoom, x, z)) {
+            return null;
+        }
+
+        long version = this.getVersion(zoom, x, z);
+        EncodedTile result = this.getStoredTile(zoom, x, z, version);
+
+        if (result != null) {
+            return result;
+        }
+
+        int[] pixels = this.pyramid.getCachedPixels(zoom, x, z);
+
+        if (pixels != null) {
+            return this.storeTile(zoom, x, z, version, pixels, encoder);
+        }
+
+        pixels = this.pyramid.getPixels(zoom, x, z);
+
+        if (pixels == null) {
+            return null;
+        }
+
+        return new EncodedTile(encoder.encode(pixels, TileGenerator.TILE_SIZE, TileGenerator.TILE_SIZE), version);
+    }
+
+    /**
+     * Get the encoded tile asynchronously from memory or disk if it is still valid,
+     * or else by loading its chunks, rendering & storing it.
+     * Everything happens on the render executor of the plane.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    zoom      The zoom level (0 or less)
+     * @param    x         The tile X coordinate
+     * @param    z         The tile Z coordinate
+     * @param    encoder   The encoder to use for new tiles
+     *
+     * @return   A future resolving to the encoded tile, or to null if the tile does not exist
+     */
+    public CompletableFuture<EncodedTile> getEncodedTileAsync(int zoom, int x, int z, PngEncoder encoder) {
+
+        Executor executor = this.plane.getRenderExecutor();
+
+        return CompletableFuture.supplyAsync(() -> {
+
+            if (!this.exists(zoom, x, z)) {
+                return null;
+            }
+
+            return this.getVersion(zoom, x, z);
+        }, executor).thenCompose(version -> {
+
+            if (version == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            EncodedTile stored = this.getStoredTile(zoom, x, z, version);
+
+            if (stored != null) {
+                return CompletableFuture.completedFuture(stored);
+            }
+
+            return this.pyramid.getPixelsAsync(zoom, x, z).thenApplyAsync(pixels -> this.storeTile(zoom, x, z, version, pixels, encoder), executor);
+        });
+    }
+
+    /**
+     * Get the encoded level-0 tiles of the given rectangle asynchronously.
+     * The tiles that aren't stored yet are rendered together.
+     * The rectangle can contain at most {@link TilePyramid#MAX_BATCH_TILES} tiles.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    min_x     The X coordinate of the western tiles
+     * @param    min_z     The Z coordinate of the northern tiles
+     * @param    max_x     The X coordinate of the eastern tiles
+     * @param    max_z     The Z coordinate of the southern tiles
+     * @param    encoder   The encoder to use for new tiles
+     *
+     * @return   A future resolving to the existing tiles, by packed tile key
+     */
+    public CompletableFuture<Long2ObjectMap<EncodedTile>> getEncodedTilesAsync(int min_x, int min_z, int max_x, int max_z, PngEncoder encoder) {
+
+        long tile_count = ((long) max_x - min_x + 1) * ((long) max_z - min_z + 1);
+
+        if (tile_count > TilePyramid.MAX_BATCH_TILES) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Can't get more than " + TilePyramid.MAX_BATCH_TILES + " tiles at once, got " + tile_count));
+        }
+
+        Executor executor = this.plane.getRenderExecutor();
+        Long2ObjectMap<EncodedTile> result = new Long2ObjectOpenHashMap<>();
+        Long2LongOpenHashMap missing = new Long2LongOpenHashMap();
+
+        return CompletableFuture.runAsync(() -> {
+            for (int z = min_z; z <= max_z; z++) {
+                for (int x = min_x; x <= max_x; x++) {
+
+                    if (!this.exists(0, x, z)) {
+                        continue;
+                    }
+
+                    long key = TileKey.pack(0, x, z);
+                    long version = this.getVersion(0, x, z);
+                    EncodedTile stored = this.getStoredTile(0, x, z, version);
+
+                    if (stored != null) {
+                        result.put(key, stored);
+                    } else {
+                        missing.put(key, version);
+                    }
+                }
+            }
+        }, executor).thenCompose(ignored -> {
+
+            if (missing.isEmpty()) {
+                return CompletableFuture.completedFuture(result);
+            }
+
+            return this.pyramid.getPixelsAsync(new LongArrayList(missing.keySet())).thenApplyAsync(pixels -> {
+                for (Long2LongMap.Entry entry : missing.long2LongEntrySet()) {
+                    long key = entry.getLongKey();
+                    EncodedTile tile = this.storeTile(0, TileKey.getX(key), TileKey.getZ(key), entry.getLongValue(), pixels.get(key), encoder);
+
+                    if (tile != null) {
+                        result.put(key, tile);
+                    }
+                }
+
+                return result;
+            }, executor);
+        });
+    }
+
+    /**
+     * Get the encoded tile from memory or disk, if it has the given version
+     *
+     * @since    0.5.0
+     */
+    @Nullable
+    private EncodedTile getStoredTile(int zoom, int x, int z, long version) {
+
+        long key = TileKey.pack(zoom, x, z);
+        EncodedTile result = this.memory_cache.get(key, version);
+
+        if (result != null) {
+            return result;
+        }
+
+        byte[] data = this.disk_store.read(zoom, x, z, version);
+
+        if (data == null) {
+            return null;
+        }
+
+        result = new EncodedTile(data, version);
+        this.memory_cache.put(key, result);
+
+        return result;
+    }
+
+    /**
+     * Encode the rendered pixels & store them in memory and on disk
+     *
+     * @since    0.5.0
+     */
+    @Nullable
+    private EncodedTile storeTile(int zoom, int x, int z, long version, @Nullable int[] pixels, PngEncoder encoder) {
+
+        if (pixels == null) {
+            return null;
+        }
+
+        byte[] data = encoder.encode(pixels, TileGenerator.TILE_SIZE, TileGenerator.TILE_SIZE);
+        this.disk_store.write(zoom, x, z, version, data);
+
+        EncodedTile result = new EncodedTile(data, version);
+        this.memory_cache.put(TileKey.pack(zoom, x, z), result);
+
+        return result;
+    }
+
+    /**
+     * Get the encoded tile
+     *
+     * @since    0.5.0
+     *
+     * @return   The PNG image, or null if the tile does not exist
+     */
+    @Nullable
+    public byte[] getTile(int zoom, int x, int z, PngEncoder encoder) {
+
+        EncodedTile tile = this.getEncodedTile(zoom, x, z, encoder);
+
+        if (tile == null) {
+            return null;
+        }
+
+        return tile.getData();
+    }
+
+    /**
+     * Invalidate the given tile at every zoom level
+     *
+     * @since    0.5.0
+     *
+     * @param    x   The tile X coordinate (at zoom level 0)
+     * @param    z   The tile Z coordinate (at zoom level 0)
+     */
+    public void invalidate(int x, int z) {
+        this.pyramid.invalidate(x, z);
+        this.markChanged(x, z);
+    }
+
+    /**
+     * Give the given tile (and every zoomed-out tile containing it) a new version,
+     * and drop their encoded images from memory
+     *
+     * @since    0.5.0
+     *
+     * @param    x   The tile X coordinate (at zoom level 0)
+     * @param    z   The tile Z coordinate (at zoom level 0)
+     */
+    private void markChanged(int x, int z) {
+
+        int min_zoom = this.pyramid.getMinZoom();
+        long current = this.generation.incrementAndGet();
+
+        synchronized (this.changes) {
+            for (int zoom = 0; zoom >= min_zoom; zoom--) {
+                long key = TileKey.pack(zoom, x, z);
+                this.changes.put(key, current);
+                this.change_stamps.remove(key);
+                this.memory_cache.remove(key);
+                x >>= 1;
+                z >>= 1;
+            }
+        }
+    }
+
+    /**
+     * Get the level-0 tiles affected by the given changed chunks.
+     * A chunk on the southern edge of a tile also shades the tile south of it.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    changed_chunks   The packed positions of the changed chunks
+     *
+     * @return   The tile coordinates, packed like chunk positions
+     */
+    public static LongSet getAffectedTiles(LongSet changed_chunks) {
+
+        LongSet tiles = new LongOpenHashSet();
+        LongIterator iterator = changed_chunks.iterator();
+
+        while (iterator.hasNext()) {
+            long packed_pos = iterator.nextLong();
+            int chunk_x = ChunkPos.getPackedX(packed_pos);
+            int chunk_z = ChunkPos.getPackedZ(packed_pos);
+
+            tiles.add(ChunkPos.toLong(chunk_x >> 4, chunk_z >> 4));
+            tiles.add(ChunkPos.toLong(chunk_x >> 4, (chunk_z + 1) >> 4));
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Give the tiles of the changed chunks a new version,
+     * and let the pyramid re-render just the changed chunks
+     *
+     * @since    0.5.0
+     */
+    private void onChunksChanged(LongSet changed_chunks) {
+
+        this.pyramid.markDirty(changed_chunks);
+
+        LongIterator iterator = getAffectedTiles(changed_chunks).iterator();
+
+        while (iterator.hasNext()) {
+            long tile = iterator.nextLong();
+            this.markChanged(ChunkPos.getPackedX(tile), ChunkPos.getPackedZ(tile));
+        }
+
+        this.pruneChangesIfNeeded();
+    }
+
+    /**
+     * Once many changed tiles are remembered, compute the version of all of them
+     * in the background, which forgets the ones that were saved since.
+     * Tiles that are requested do this by themselves.
+     *
+     * @since    0.5.0
+     */
+    private void pruneChangesIfNeeded() {
+
+        LongArrayList keys;
+
+        synchronized (this.changes) {
+            if (this.changes.size() < this.prune_threshold || !this.pruning_changes.compareAndSet(false, true)) {
+                return;
+            }
+
+            keys = new LongArrayList(this.changes.keySet());
+        }
+
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < keys.size(); i++) {
+                long key = keys.getLong(i);
+                this.getVersion(TileKey.getZoom(key), TileKey.getX(key), TileKey.getZ(key));
+            }
+        }, this.plane.getRenderExecutor()).whenComplete((ignored, error) -> {
+
+            // Don't check again before the remaining (unsaved) tiles doubled
+            synchronized (this.changes) {
+                this.prune_threshold = Math.max(CHANGES_PRUNE_THRESHOLD, this.changes.size() * 2);
+            }
+
+            this.pruning_changes.set(false);
+        });
+    }
+}
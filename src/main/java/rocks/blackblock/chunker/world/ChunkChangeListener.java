@@ -0,0 +1,22 @@
+package rocks.blackblock.chunker.world;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/**
+ * Listener for chunks that changed since the previous tick
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+@FunctionalInterface
+public interface ChunkChangeListener {
+
+    /**
+     * Called on the server thread at the end of a world tick,
+     * after the cached data of the changed chunks has been dropped
+     *
+     * @param    plane            The plane the chunks are on
+     * @param    changed_chunks   The packed positions of the changed chunks (read-only)
+     */
+    void onChunksChanged(Plane plane, LongSet changed_chunks);
+}
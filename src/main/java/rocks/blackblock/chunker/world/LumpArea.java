@@ -0,0 +1,195 @@
+package rocks.blackblock.chunker.world;
+
+import net.minecraft.util.math.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.Lump;
+
+import java.util.function.Consumer;
+
+/**
+ * A read-only view of a rectangle of lumps,
+ * as returned by {@link Plane#preloadArea(ChunkPos, ChunkPos)}
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class LumpArea {
+
+    private final Plane plane;
+    private final int min_x;
+    private final int min_z;
+    private final int width;
+    private final int depth;
+
+    // The lumps, stored row by row (Z-major)
+    private final Lump[] lumps;
+
+    /**
+     * Create a new, empty area
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane the lumps are on
+     * @param    min_x   The minimum chunk X coordinate (inclusive)
+     * @param    min_z   The minimum chunk Z coordinate (inclusive)
+     * @param    max_x   The maximum chunk X coordinate (inclusive)
+     * @param    max_z   The maximum chunk Z coordinate (inclusive)
+     */
+    LumpArea(Plane plane, int min_x, int min_z, int max_x, int max_z) {
+        this.plane = plane;
+        this.min_x = min_x;
+        this.min_z = min_z;
+        this.width = max_x - min_x + 1;
+        this.depth = max_z - min_z + 1;
+        this.lumps = new Lump[this.width * this.depth];
+    }
+
+    /**
+     * Set the lump at the given chunk coordinates
+     *
+     * @since    0.5.0
+     */
+    void set(int x, int z, Lump lump) {
+        this.lumps[(z - this.min_z) * this.width + (x - this.min_x)] = lump;
+    }
+
+    /**
+     * Get the plane these lumps are on
+     *
+     * @since    0.5.0
+     */
+    public Plane getPlane() {
+        return this.plane;
+    }
+
+    /**
+     * Get the minimum chunk X coordinate (inclusive)
+     *
+     * @since    0.5.0
+     */
+    public int getMinX() {
+        return this.min_x;
+    }
+
+    /**
+     * Get the minimum chunk Z coordinate (inclusive)
+     *
+     * @since    0.5.0
+     */
+    public int getMinZ() {
+        return this.min_z;
+    }
+
+    /**
+     * Get the maximum chunk X coordinate (inclusive)
+     *
+     * @since    0.5.0
+     */
+    public int getMaxX() {
+        return this.min_x + this.width - 1;
+    }
+
+    /**
+     * Get the maximum chunk Z coordinate (inclusive)
+     *
+     * @since    0.5.0
+     */
+    public int getMaxZ() {
+        return this.min_z + this.depth - 1;
+    }
+
+    /**
+     * Get the amount of chunks along the X axis
+     *
+     * @since    0.5.0
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Get the amount of chunks along the Z axis
+     *
+     * @since    0.5.0
+     */
+    public int getDepth() {
+        return this.depth;
+    }
+
+    /**
+     * Are the given chunk coordinates inside this area?
+     *
+     * @since    0.5.0
+     */
+    public boolean contains(int x, int z) {
+        return x >= this.min_x && z >= this.min_z && x < this.min_x + this.width && z < this.min_z + this.depth;
+    }
+
+    /**
+     * Get the lump at the given chunk coordinates.
+     * Returns null if the chunk does not exist or is outside this area.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    x   The chunk X coordinate
+     * @param    z   The chunk Z coordinate
+     */
+    @Nullable
+    public Lump getLump(int x, int z) {
+
+        if (!this.contains(x, z)) {
+            return null;
+        }
+
+        return this.lumps[(z - this.min_z) * this.width + (x - this.min_x)];
+    }
+
+    /**
+     * Get the lump at the given packed chunk position
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    packed_pos   The packed chunk position
+     */
+    @Nullable
+    public Lump getLump(long packed_pos) {
+        return this.getLump(ChunkPos.getPackedX(packed_pos), ChunkPos.getPackedZ(packed_pos));
+    }
+
+    /**
+     * Count the chunks that actually exist in this area
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public int getLumpCount() {
+        int result = 0;
+
+        for (Lump lump : this.lumps) {
+            if (lump != null) {
+                result++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Iterate over all the existing lumps in this area
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    consumer   The consumer to pass each lump to
+     */
+    public void forEach(Consumer<Lump> consumer) {
+        for (Lump lump : this.lumps) {
+            if (lump != null) {
+                consumer.accept(lump);
+            }
+        }
+    }
+}
@@ -1,33 +1,112 @@
 package rocks.blackblock.chunker.world;
 
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.dimension.DimensionType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import rocks.blackblock.bib.collection.LRUCache;
 import rocks.blackblock.chunker.Chunker;
+import rocks.blackblock.chunker.collection.LongLRUCache;
 import rocks.blackblock.chunker.chunk.ChunkFetcher;
+import rocks.blackblock.chunker.chunk.ChunkSpliterator;
+import rocks.blackblock.chunker.governor.RenderGovernor;
 import rocks.blackblock.chunker.chunk.Lump;
+import rocks.blackblock.chunker.chunk.SurfaceSummary;
+import rocks.blackblock.chunker.chunk.SurfaceSummaryStore;
+import rocks.blackblock.chunker.chunk.UnloadedChunkView;
+import rocks.blackblock.chunker.render.MapColorRenderer;
+import rocks.blackblock.chunker.render.PixelFormat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * A wrapper class for working with worlds
+ * A wrapper class for working with worlds.
+ * Use {@link #from(World)} to get the shared instance of a world,
+ * so the fetcher & caches are reused for as long as the world lives.
  *
  * @since   0.1.0
  */
 public class Plane {
 
+    // The default amount of lumps to keep in memory:
+    // enough for 3 tiles with their northern borders (272 chunks each)
+    public static final int DEFAULT_LUMP_CACHE_SIZE = 1024;
+
+    // The default amount of surface summaries to keep in memory (about 1 KB each)
+    public static final int DEFAULT_SUMMARY_CACHE_SIZE = 16384;
+
+    // The amount of change counters, every chunk shares one with the chunks hashing to the same index
+    private static final int GENERATION_STRIPES = 4096;
+
+    // The time (in ms) a changed chunk's stored summary stays unused, until its new save is surely noticed
+    private static final long STORED_SUMMARY_CLEAR_DELAY = 2000;
+
+    // The shared planes of all loaded worlds
+    private static final Map<ServerWorld, Plane> PLANES = new ConcurrentHashMap<>();
+
+    // The worlds whose plane was released, so it isn't created again by late callbacks
+    private static final Set<ServerWorld> RELEASED_WORLDS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     private ServerWorld world;
     private DimensionType dimension;
-    private ChunkFetcher.Session fetcher = null;
-    private LRUCache<ChunkPos, Lump> preload_cache = new LRUCache<>(128);
+    private volatile ChunkFetcher.Session fetcher = null;
+
+    // Has this plane been released?
+    private volatile boolean released = false;
+
+    // Preloaded lumps, keyed by their packed chunk position
+    private final LongLRUCache<Lump> preload_cache;
+
+    // Surface summaries, keyed by their packed chunk position
+    private final LongLRUCache<SurfaceSummary> summary_cache = new LongLRUCache<>(DEFAULT_SUMMARY_CACHE_SIZE);
+
+    // The optional on-disk store of surface summaries
+    @Nullable
+    private volatile SurfaceSummaryStore summary_store = null;
+
+    // Bumped whenever a chunk is invalidated, so fetches that started before it don't cache old data
+    private final AtomicIntegerArray generations = new AtomicIntegerArray(GENERATION_STRIPES);
+
+    // The changed chunks whose stored summaries are not to be used yet, with the sequence number of their last change
+    private final Long2IntOpenHashMap unsaved_summaries = new Long2IntOpenHashMap();
+    private int unsaved_sequence = 0;
+
+    // The chunks that changed during the current tick
+    private LongOpenHashSet pending_changes = new LongOpenHashSet();
+    private final Object pending_changes_lock = new Object();
+
+    // The listeners to notify of changed chunks
+    private final List<ChunkChangeListener> change_listeners = new CopyOnWriteArrayList<>();
+
+    // The executor to render on
+    private volatile Executor render_executor = RenderGovernor.getInstance().getRenderExecutor();
 
     /**
      * Creates a new Plane with the given World
@@ -37,17 +116,21 @@ public class Plane {
      * @since   0.1.0
      */
     public Plane(World world) {
+        this(world, DEFAULT_LUMP_CACHE_SIZE);
+    }
 
-        if (world instanceof ServerWorld) {
-            this.world = (ServerWorld) world;
-        } else if (Chunker.SERVER != null) {
-            for (ServerWorld server_world : Chunker.SERVER.getWorlds()) {
-                if (server_world.getRegistryKey().getValue().equals(world.getRegistryKey().getValue())) {
-                    this.world = server_world;
-                    break;
-                }
-            }
-        }
+    /**
+     * Creates a new Plane with the given World & lump cache size
+     *
+     * @param   world        The world to work with
+     * @param   cache_size   The amount of lumps to keep in memory
+     *
+     * @since   0.5.0
+     */
+    public Plane(World world, int cache_size) {
+
+        this.preload_cache = new LongLRUCache<>(cache_size);
+        this.world = Plane.getServerWorld(world);
 
         if (this.world == null) {
             return;
@@ -57,18 +140,29 @@ public class Plane {
     }
 
     /**
-     * Make sure the chunk fetcher has been made
+     * Get the chunk fetcher session of this plane,
+     * making it if needed. It is shared by all users of this plane.
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
      * @since    0.2.0
+     * @version  0.5.0
      */
-    private ChunkFetcher.Session getFetcherSession() {
+    public ChunkFetcher.Session getFetcherSession() {
+
+        ChunkFetcher.Session result = this.fetcher;
 
-        if (this.fetcher == null) {
-            this.fetcher = new ChunkFetcher(Chunker.SERVER, world).new Session();
+        if (result == null) {
+            synchronized (this) {
+                result = this.fetcher;
+
+                if (result == null) {
+                    result = new ChunkFetcher(this.world.getServer(), this.world).new Session();
+                    this.fetcher = result;
+                }
+            }
         }
 
-        return this.fetcher;
+        return result;
     }
 
     /**
@@ -79,8 +173,21 @@ public class Plane {
      * @since   0.1.0
      */
     public Plane(ServerWorld world) {
+        this(world, DEFAULT_LUMP_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new Plane with the given ServerWorld & lump cache size
+     *
+     * @param   world        The world instance to use
+     * @param   cache_size   The amount of lumps to keep in memory
+     *
+     * @since   0.5.0
+     */
+    public Plane(ServerWorld world, int cache_size) {
         this.world = world;
         this.dimension = world.getDimension();
+        this.preload_cache = new LongLRUCache<>(cache_size);
     }
 
     /**
@@ -117,108 +224,1113 @@ public class Plane {
     }
 
     /**
-     * Create a new plane with the given ServerWorld instance
+     * Get the shared plane of the given world.
+     * Client-side worlds are resolved to their server-side counterpart.
+     * Worlds that were released get a closed plane that isn't shared.
      *
      * @param   world   The world to use
      *
      * @since   0.1.0
      */
     public static Plane from(World world) {
-        return new Plane(world);
+
+        ServerWorld server_world = Plane.getServerWorld(world);
+
+        if (server_world == null) {
+            return new Plane(world);
+        }
+
+        if (RELEASED_WORLDS.contains(server_world)) {
+            return Plane.createReleased(server_world);
+        }
+
+        Plane plane = PLANES.computeIfAbsent(server_world, Plane::new);
+
+        // The world might have been released meanwhile
+        if (RELEASED_WORLDS.contains(server_world)) {
+            if (PLANES.remove(server_world, plane)) {
+                plane.close();
+            }
+
+            return Plane.createReleased(server_world);
+        }
+
+        return plane;
     }
 
     /**
-     * Get this Plane's underlying world instance
+     * Create a closed plane of a world that was released
      *
-     * @since   0.1.0
+     * @since    0.5.0
      */
-    public ServerWorld getWorld() {
-        return this.world;
+    private static Plane createReleased(ServerWorld world) {
+        Plane plane = new Plane(world);
+        plane.close();
+        return plane;
     }
 
     /**
-     * Get this plane's dimension
+     * Get the shared plane of the given world, but only if it already exists
      *
-     * @since   0.1.0
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   world   The world to look for
      */
-    public DimensionType getDimension() {
-        return this.dimension;
+    @Nullable
+    public static Plane getIfPresent(ServerWorld world) {
+        return PLANES.get(world);
     }
 
     /**
-     * Does this plane have a ceiling?
+     * Release the shared plane of the given world.
+     * Called when the world unloads.
      *
-     * @since   0.1.0
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   world   The world that is unloading
      */
-    public boolean hasCeiling() {
-        return this.dimension.hasCeiling();
+    public static void release(ServerWorld world) {
+
+        RELEASED_WORLDS.add(world);
+
+        Plane plane = PLANES.remove(world);
+
+        if (plane != null) {
+            plane.close();
+        }
     }
 
     /**
-     * Preload a lump
+     * Release all shared planes.
+     * Called when the server stops.
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
-     * @since    0.2.0
+     * @since    0.5.0
+     */
+    public static void releaseAll() {
+        for (ServerWorld world : new ArrayList<>(PLANES.keySet())) {
+            Plane.release(world);
+        }
+    }
+
+    /**
+     * Get the ServerWorld instance of the given world
      *
-     * @param   chunk_pos   The position of the chunk to preload
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   world   The world to resolve
      */
-    public CompletableFuture<Optional<Lump>> preloadLump(ChunkPos chunk_pos) {
+    @Nullable
+    private static ServerWorld getServerWorld(World world) {
 
-        if (this.preload_cache.containsKey(chunk_pos)) {
-            return CompletableFuture.completedFuture(Optional.of(this.preload_cache.get(chunk_pos)));
+        if (world instanceof ServerWorld server_world) {
+            return server_world;
         }
 
-        ChunkFetcher.Session session = this.getFetcherSession();
-        CompletableFuture<Optional<Chunk>> future = session.getChunkViewAsync(chunk_pos.x, chunk_pos.z);
+        if (Chunker.SERVER != null) {
+            for (ServerWorld server_world : Chunker.SERVER.getWorlds()) {
+                if (server_world.getRegistryKey().getValue().equals(world.getRegistryKey().getValue())) {
+                    return server_world;
+                }
+            }
+        }
 
-        return future.thenApplyAsync(optional_chunk -> optional_chunk.map(chunk -> {
+        return null;
+    }
 
-            Lump result = new Lump(chunk, this);
+    /**
+     * Drop all the caches of this plane
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public void close() {
+        this.released = true;
+        this.preload_cache.clear();
+        this.summary_cache.clear();
+        this.change_listeners.clear();
 
-            this.preload_cache.put(chunk_pos, result);
+        synchronized (this.pending_changes_lock) {
+            this.pending_changes.clear();
+        }
 
-            return result;
-        }));
+        synchronized (this.unsaved_summaries) {
+            this.unsaved_summaries.clear();
+        }
+
+        synchronized (this) {
+            this.fetcher = null;
+        }
     }
 
     /**
-     * Preload a lump
+     * Mark the given chunk of the given world as changed,
+     * if that world has a shared plane
      *
      * @author   Jelle De Loecker   <jelle@elevenways.be>
-     * @since    0.2.0
+     * @since    0.5.0
      *
-     * @param   x   The chunk's X position
-     * @param   z   The chunk's Z position
+     * @param   world        The world the chunk is in
+     * @param   packed_pos   The packed position of the chunk
      */
-    @NotNull
-    public CompletableFuture<Optional<Lump>> preloadLump(int x, int z) {
-        return this.preloadLump(new ChunkPos(x, z));
+    public static void markChanged(ServerWorld world, long packed_pos) {
+
+        Plane plane = PLANES.get(world);
+
+        if (plane != null) {
+            plane.markChanged(packed_pos);
+        }
     }
 
     /**
-     * Get a Lump chunk from this plane
+     * Mark the given chunk as changed.
+     * Changes are coalesced, and handled at the end of the world tick.
      *
-     * @param   chunk_pos
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
      *
-     * @since   0.1.0
+     * @param   packed_pos   The packed position of the chunk
      */
-    @Nullable
-    public Lump getLump(ChunkPos chunk_pos) {
+    public void markChanged(long packed_pos) {
+        synchronized (this.pending_changes_lock) {
+            this.pending_changes.add(packed_pos);
+        }
+    }
+
+    /**
+     * Drop the cached data of all the chunks that changed since the last flush,
+     * and notify the listeners. Called at the end of each world tick.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public void flushChanges() {
 
-        if (this.preload_cache.containsKey(chunk_pos)) {
-            return this.preload_cache.get(chunk_pos);
+        LongOpenHashSet changes;
+
+        synchronized (this.pending_changes_lock) {
+            if (this.pending_changes.isEmpty()) {
+                return;
+            }
+
+            changes = this.pending_changes;
+            this.pending_changes = new LongOpenHashSet();
         }
 
-        Chunk chunk = this.getFetcherSession().getChunkView(chunk_pos.x, chunk_pos.z);
+        var iterator = changes.iterator();
 
-        if (chunk == null) {
-            return null;
+        while (iterator.hasNext()) {
+            this.invalidate(iterator.nextLong());
         }
 
-        Lump result = new Lump(chunk, this);
-        result.setCoordinates(chunk_pos.x, chunk_pos.z);
+        SurfaceSummaryStore store = this.summary_store;
 
-        return result;
+        if (store != null) {
+            this.markStoredSummariesUnsaved(store, changes);
+        }
+
+        if (this.change_listeners.isEmpty()) {
+            return;
+        }
+
+        LongSet changed_chunks = LongSets.unmodifiable(changes);
+
+        for (ChunkChangeListener listener : this.change_listeners) {
+            try {
+                listener.onChunksChanged(this, changed_chunks);
+            } catch (Exception e) {
+                Chunker.LOGGER.error("Chunk change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Immediately drop the cached data of the given chunk,
+     * without notifying the listeners
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   packed_pos   The packed position of the chunk
+     */
+    public void invalidate(long packed_pos) {
+
+        // Bump the counter first, so a fetch caching its result right now notices
+        this.generations.incrementAndGet(getGenerationIndex(packed_pos));
+
+        this.preload_cache.remove(packed_pos);
+        this.summary_cache.remove(packed_pos);
+
+        ChunkFetcher.Session session = this.fetcher;
+
+        if (session != null) {
+            session.invalidate(packed_pos);
+        }
+    }
+
+    /**
+     * Get the change counter of the given chunk.
+     * It is shared with other chunks, so it may also change when they do.
+     *
+     * @since    0.5.0
+     */
+    private int getGeneration(long packed_pos) {
+        return this.generations.get(getGenerationIndex(packed_pos));
+    }
+
+    /**
+     * Get the index of the change counter of the given chunk
+     *
+     * @since    0.5.0
+     */
+    private static int getGenerationIndex(long packed_pos) {
+        return (int) HashCommon.mix(packed_pos) & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * Stop using the stored summaries of the given changed chunks.
+     * Their timestamps only change once the chunks are written to the region file,
+     * so until then their stored summaries would look valid:
+     * they are cleared after a delay, and only then used (and written) again.
+     *
+     * @since    0.5.0
+     *
+     * @param   store    The summary store
+     * @param   chunks   The packed positions of the changed chunks
+     */
+    private void markStoredSummariesUnsaved(SurfaceSummaryStore store, LongSet chunks) {
+
+        LongArrayList added = new LongArrayList();
+
+        synchronized (this.unsaved_summaries) {
+            int sequence = ++this.unsaved_sequence;
+            var iterator = chunks.iterator();
+
+            while (iterator.hasNext()) {
+                long packed_pos = iterator.nextLong();
+
+                // Chunks that are already waiting get the new sequence number, so they wait again
+                if (!this.unsaved_summaries.containsKey(packed_pos)) {
+                    added.add(packed_pos);
+                }
+
+                this.unsaved_summaries.put(packed_pos, sequence);
+            }
+        }
+
+        if (!added.isEmpty()) {
+            this.scheduleStoredSummaryClear(store, added);
+        }
+    }
+
+    /**
+     * Clear the stored summaries of the given changed chunks after a delay
+     *
+     * @since    0.5.0
+     */
+    private void scheduleStoredSummaryClear(SurfaceSummaryStore store, LongArrayList chunks) {
+        CompletableFuture.runAsync(() -> this.clearStoredSummaries(store, chunks), CompletableFuture.delayedExecutor(STORED_SUMMARY_CLEAR_DELAY, TimeUnit.MILLISECONDS, this.render_executor));
+    }
+
+    /**
+     * Clear the stored summaries of the given changed chunks,
+     * and use the store for them again unless they changed once more in the meantime
+     *
+     * @since    0.5.0
+     */
+    private void clearStoredSummaries(SurfaceSummaryStore store, LongArrayList chunks) {
+
+        if (this.released) {
+            return;
+        }
+
+        LongArrayList changed_again = new LongArrayList();
+
+        for (int i = 0; i < chunks.size(); i++) {
+            long packed_pos = chunks.getLong(i);
+            int sequence;
+
+            synchronized (this.unsaved_summaries) {
+                sequence = this.unsaved_summaries.get(packed_pos);
+            }
+
+            store.clear(ChunkPos.getPackedX(packed_pos), ChunkPos.getPackedZ(packed_pos));
+
+            synchronized (this.unsaved_summaries) {
+                if (this.unsaved_summaries.get(packed_pos) == sequence) {
+                    this.unsaved_summaries.remove(packed_pos);
+                } else {
+                    changed_again.add(packed_pos);
+                }
+            }
+        }
+
+        if (!changed_again.isEmpty()) {
+            this.scheduleStoredSummaryClear(store, changed_again);
+        }
+    }
+
+    /**
+     * Can the disk store be used for the summary of the given chunk?
+     * Loaded chunks may have unsaved changes, and recently changed chunks may not be written yet.
+     *
+     * @since    0.5.0
+     */
+    private boolean canUseStoredSummary(int x, int z) {
+
+        if (this.world.isChunkLoaded(x, z)) {
+            return false;
+        }
+
+        synchronized (this.unsaved_summaries) {
+            return !this.unsaved_summaries.containsKey(ChunkPos.toLong(x, z));
+        }
+    }
+
+    /**
+     * Cache a surface summary, unless its chunk was invalidated
+     * since it was made (or the plane was released)
+     *
+     * @since    0.5.0
+     *
+     * @param   packed_pos   The packed position of the chunk
+     * @param   summary      The summary
+     * @param   generation   The change counter of the chunk when loading it started
+     */
+    private void cacheSummary(long packed_pos, SurfaceSummary summary, int generation) {
+
+        if (this.released || this.getGeneration(packed_pos) != generation) {
+            return;
+        }
+
+        this.summary_cache.put(packed_pos, summary);
+
+        // It might have been invalidated right before the put
+        if (this.getGeneration(packed_pos) != generation) {
+            this.summary_cache.remove(packed_pos);
+        }
+    }
+
+    /**
+     * Cache a fetched lump, unless its chunk was invalidated
+     * since the fetch started (or the plane was released)
+     *
+     * @since    0.5.0
+     *
+     * @param   packed_pos   The packed position of the chunk
+     * @param   lump         The fetched lump
+     * @param   generation   The change counter of the chunk when the fetch started
+     */
+    private void cacheLump(long packed_pos, Lump lump, int generation) {
+
+        if (this.released || this.getGeneration(packed_pos) != generation) {
+            return;
+        }
+
+        this.preload_cache.put(packed_pos, lump);
+
+        // It might have been invalidated right before the put
+        if (this.getGeneration(packed_pos) != generation) {
+            this.preload_cache.remove(packed_pos);
+        }
+    }
+
+    /**
+     * Add a listener to be notified of changed chunks
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   listener   The listener to add
+     */
+    public void addChangeListener(ChunkChangeListener listener) {
+        this.change_listeners.add(listener);
+    }
+
+    /**
+     * Remove a previously added change listener
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   listener   The listener to remove
+     */
+    public void removeChangeListener(ChunkChangeListener listener) {
+        this.change_listeners.remove(listener);
+    }
+
+    /**
+     * Has this plane been released?
+     * Released planes still work, but their world is gone.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public boolean isReleased() {
+        return this.released;
+    }
+
+    /**
+     * Get this Plane's underlying world instance
+     *
+     * @since   0.1.0
+     */
+    public ServerWorld getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Get this plane's dimension
+     *
+     * @since   0.1.0
+     */
+    public DimensionType getDimension() {
+        return this.dimension;
+    }
+
+    /**
+     * Does this plane have a ceiling?
+     *
+     * @since   0.1.0
+     */
+    public boolean hasCeiling() {
+        return this.dimension.hasCeiling();
+    }
+
+    /**
+     * Get the maximum amount of lumps kept in memory
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public long getLumpCacheSize() {
+        return this.preload_cache.getMaxWeight();
+    }
+
+    /**
+     * Set the maximum amount of lumps kept in memory
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   cache_size   The amount of lumps to keep in memory
+     */
+    public void setLumpCacheSize(int cache_size) {
+        this.preload_cache.setMaxWeight(cache_size);
+    }
+
+    /**
+     * Get the maximum amount of surface summaries kept in memory
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    public long getSummaryCacheSize() {
+        return this.summary_cache.getMaxWeight();
+    }
+
+    /**
+     * Set the maximum amount of surface summaries kept in memory
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   cache_size   The amount of summaries
+     */
+    public void setSummaryCacheSize(int cache_size) {
+        this.summary_cache.setMaxWeight(cache_size);
+    }
+
+    /**
+     * Enable or disable storing the surface summaries of saved chunks on disk,
+     * so they survive restarts & memory cache evictions
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   enabled   True to use the disk store
+     */
+    public void setSummaryStoreEnabled(boolean enabled) {
+        this.summary_store = enabled ? new SurfaceSummaryStore(this.getFetcherSession().getFetcher()) : null;
+    }
+
+    /**
+     * Render loaded chunks from snapshots taken on the server thread,
+     * instead of reading the live chunks from render threads
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   enabled   True to use snapshots
+     *
+     * @see     ChunkFetcher.Session#setSnapshotLoadedChunks(boolean)
+     */
+    public void setSnapshotLoadedChunks(boolean enabled) {
+        this.getFetcherSession().setSnapshotLoadedChunks(enabled);
+    }
+
+    /**
+     * Get the executor renders are run on
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    @NotNull
+    public Executor getRenderExecutor() {
+        return this.render_executor;
+    }
+
+    /**
+     * Set the executor renders are run on.
+     * Defaults to the common fork-join pool, throttled by the {@link RenderGovernor}.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   executor   The executor to use
+     */
+    public void setRenderExecutor(@NotNull Executor executor) {
+        this.render_executor = executor;
+    }
+
+    /**
+     * Stream every complete chunk stored in the region files of this world, as lumps.
+     * Call {@link Stream#parallel()} to spread the work over the region files
+     * (and the parts of them), each part being read from front to back.
+     *
+     * The lumps are decoded from the saved data, so loaded chunks may have changed since,
+     * and they are not put in the lump cache.
+     * Close the stream when it is not consumed entirely, to close its region files.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     */
+    @NotNull
+    public Stream<Lump> streamLumps() {
+
+        ChunkFetcher.Session session = this.getFetcherSession();
+        ChunkSpliterator spliterator = new ChunkSpliterator(session, session.getFetcher().listRegions());
+
+        return StreamSupport.stream(spliterator, false)
+                .onClose(spliterator::close)
+                .map(chunk -> new Lump(chunk, this));
+    }
+
+    /**
+     * Preload a lump
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   packed_pos   The packed position of the chunk to preload
+     */
+    @NotNull
+    public CompletableFuture<Optional<Lump>> preloadLump(long packed_pos) {
+
+        Lump cached = this.preload_cache.get(packed_pos);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+
+        int generation = this.getGeneration(packed_pos);
+        ChunkFetcher.Session session = this.getFetcherSession();
+        CompletableFuture<Optional<Chunk>> future = session.getChunkViewAsync(ChunkPos.getPackedX(packed_pos), ChunkPos.getPackedZ(packed_pos));
+
+        return future.thenApplyAsync(optional_chunk -> optional_chunk.map(chunk -> {
+
+            Lump result = new Lump(chunk, this);
+            this.cacheLump(packed_pos, result, generation);
+
+            return result;
+        }));
+    }
+
+    /**
+     * Preload a lump
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.2.0
+     *
+     * @param   chunk_pos   The position of the chunk to preload
+     */
+    @NotNull
+    public CompletableFuture<Optional<Lump>> preloadLump(ChunkPos chunk_pos) {
+        return this.preloadLump(chunk_pos.toLong());
+    }
+
+    /**
+     * Preload a lump
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.2.0
+     *
+     * @param   x   The chunk's X position
+     * @param   z   The chunk's Z position
+     */
+    @NotNull
+    public CompletableFuture<Optional<Lump>> preloadLump(int x, int z) {
+        return this.preloadLump(ChunkPos.toLong(x, z));
+    }
+
+    /**
+     * Preload all the lumps in the given rectangle (both corners inclusive)
+     * as a single batch. Chunks already in the cache are not requested again,
+     * and the others are requested one region file at a time.
+     *
+     * To render a tile, include the chunk row north of it for shading.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   min_chunk   One corner of the rectangle
+     * @param   max_chunk   The opposite corner of the rectangle
+     *
+     * @return   A future that completes once every chunk has been loaded or found missing
+     */
+    @NotNull
+    public CompletableFuture<LumpArea> preloadArea(ChunkPos min_chunk, ChunkPos max_chunk) {
+        return this.preloadArea(min_chunk.x, min_chunk.z, max_chunk.x, max_chunk.z);
+    }
+
+    /**
+     * Preload all the lumps in the given rectangle (all coordinates inclusive)
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   x1   The chunk X coordinate of one corner
+     * @param   z1   The chunk Z coordinate of one corner
+     * @param   x2   The chunk X coordinate of the opposite corner
+     * @param   z2   The chunk Z coordinate of the opposite corner
+     */
+    @NotNull
+    public CompletableFuture<LumpArea> preloadArea(int x1, int z1, int x2, int z2) {
+
+        int min_x = Math.min(x1, x2);
+        int min_z = Math.min(z1, z2);
+        int max_x = Math.max(x1, x2);
+        int max_z = Math.max(z1, z2);
+
+        LumpArea area = new LumpArea(this, min_x, min_z, max_x, max_z);
+        LongArrayList missing = new LongArrayList();
+
+        // Walk the rectangle one region at a time,
+        // so the requests for the same region file are grouped together
+        for (int region_z = min_z >> 5; region_z <= max_z >> 5; region_z++) {
+            int start_z = Math.max(min_z, region_z << 5);
+            int end_z = Math.min(max_z, (region_z << 5) + 31);
+
+            for (int region_x = min_x >> 5; region_x <= max_x >> 5; region_x++) {
+                int start_x = Math.max(min_x, region_x << 5);
+                int end_x = Math.min(max_x, (region_x << 5) + 31);
+
+                for (int z = start_z; z <= end_z; z++) {
+                    for (int x = start_x; x <= end_x; x++) {
+                        long packed_pos = ChunkPos.toLong(x, z);
+                        Lump cached = this.preload_cache.get(packed_pos);
+
+                        if (cached != null) {
+                            area.set(x, z, cached);
+                        } else {
+                            missing.add(packed_pos);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(area);
+        }
+
+        CompletableFuture<LumpArea> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(missing.size());
+        ChunkFetcher.Session session = this.getFetcherSession();
+
+        for (int i = 0; i < missing.size(); i++) {
+            long packed_pos = missing.getLong(i);
+            int x = ChunkPos.getPackedX(packed_pos);
+            int z = ChunkPos.getPackedZ(packed_pos);
+            int generation = this.getGeneration(packed_pos);
+
+            session.getChunkViewAsync(x, z).whenComplete((optional_chunk, error) -> {
+
+                if (error != null) {
+                    Chunker.LOGGER.error("Failed to preload chunk [{}, {}]", x, z, error);
+                } else if (optional_chunk.isPresent()) {
+                    Lump lump = new Lump(optional_chunk.get(), this);
+                    this.cacheLump(packed_pos, lump, generation);
+                    area.set(x, z, lump);
+                }
+
+                // The decrement publishes the lump to whoever completes the future
+                if (remaining.decrementAndGet() == 0) {
+                    result.complete(area);
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the lumps in the given rectangle (all coordinates inclusive)
+     * that are loaded or preloaded right now, on the calling thread.
+     * Nothing is read from disk.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   x1   The chunk X coordinate of one corner
+     * @param   z1   The chunk Z coordinate of one corner
+     * @param   x2   The chunk X coordinate of the opposite corner
+     * @param   z2   The chunk Z coordinate of the opposite corner
+     */
+    @NotNull
+    public LumpArea getArea(int x1, int z1, int x2, int z2) {
+
+        int min_x = Math.min(x1, x2);
+        int min_z = Math.min(z1, z2);
+        int max_x = Math.max(x1, x2);
+        int max_z = Math.max(z1, z2);
+
+        LumpArea area = new LumpArea(this, min_x, min_z, max_x, max_z);
+
+        for (int z = min_z; z <= max_z; z++) {
+            for (int x = min_x; x <= max_x; x++) {
+                Lump lump = this.getLump(x, z);
+
+                if (lump != null) {
+                    area.set(x, z, lump);
+                }
+            }
+        }
+
+        return area;
+    }
+
+    /**
+     * Preload the surface summaries of all the chunks in the given rectangle (all coordinates inclusive).
+     * Summaries come from memory, then from the disk store (if enabled),
+     * and only then from decoding the chunk, after which they are kept for next time.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   x1   The chunk X coordinate of one corner
+     * @param   z1   The chunk Z coordinate of one corner
+     * @param   x2   The chunk X coordinate of the opposite corner
+     * @param   z2   The chunk Z coordinate of the opposite corner
+     */
+    @NotNull
+    public CompletableFuture<SummaryArea> preloadSummaryArea(int x1, int z1, int x2, int z2) {
+
+        int min_x = Math.min(x1, x2);
+        int min_z = Math.min(z1, z2);
+        int max_x = Math.max(x1, x2);
+        int max_z = Math.max(z1, z2);
+
+        SummaryArea area = new SummaryArea(this, min_x, min_z, max_x, max_z);
+        LongArrayList missing = new LongArrayList();
+
+        for (int z = min_z; z <= max_z; z++) {
+            for (int x = min_x; x <= max_x; x++) {
+                long packed_pos = ChunkPos.toLong(x, z);
+                SurfaceSummary cached = this.summary_cache.get(packed_pos);
+
+                if (cached != null) {
+                    area.set(x, z, cached);
+                } else {
+                    missing.add(packed_pos);
+                }
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(area);
+        }
+
+        CompletableFuture<SummaryArea> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(missing.size());
+
+        for (int i = 0; i < missing.size(); i++) {
+            long packed_pos = missing.getLong(i);
+            int x = ChunkPos.getPackedX(packed_pos);
+            int z = ChunkPos.getPackedZ(packed_pos);
+
+            this.loadSummaryAsync(x, z).whenComplete((summary, error) -> {
+
+                if (error != null) {
+                    Chunker.LOGGER.error("Failed to summarize chunk [{}, {}]", x, z, error);
+                } else if (summary != null) {
+                    area.set(x, z, summary);
+                }
+
+                // The decrement publishes the summary to whoever completes the future
+                if (remaining.decrementAndGet() == 0) {
+                    result.complete(area);
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the surface summary of the given chunk from the disk store,
+     * or else make it from the decoded chunk
+     *
+     * @since    0.5.0
+     */
+    private CompletableFuture<SurfaceSummary> loadSummaryAsync(int x, int z) {
+
+        long packed_pos = ChunkPos.toLong(x, z);
+        int generation = this.getGeneration(packed_pos);
+        SurfaceSummaryStore store = this.summary_store;
+        CompletableFuture<SurfaceSummary> stored;
+
+        if (store == null) {
+            stored = CompletableFuture.completedFuture(null);
+        } else {
+            stored = CompletableFuture.supplyAsync(() -> this.canUseStoredSummary(x, z) ? store.read(x, z) : null, this.render_executor);
+        }
+
+        return stored.thenCompose(summary -> {
+
+            if (summary != null) {
+                this.cacheSummary(packed_pos, summary, generation);
+                return CompletableFuture.completedFuture(summary);
+            }
+
+            // Get the timestamp before reading the chunk, so a newer save is never missed
+            int timestamp = store != null ? store.getTimestamp(x, z) : 0;
+
+            return this.preloadLump(packed_pos).thenApplyAsync(optional_lump -> {
+
+                Lump lump = optional_lump.orElse(null);
+
+                if (lump == null || !lump.getChunk().getStatus().isAtLeast(ChunkStatus.FULL)) {
+                    return null;
+                }
+
+                // The row north of it is only known if its summary is around
+                SurfaceSummary north = this.summary_cache.get(ChunkPos.toLong(x, z - 1));
+                int[] north_heights = null;
+
+                if (north != null) {
+                    north_heights = new int[16];
+                    north.getRowHeights(15, north_heights);
+                }
+
+                SurfaceSummary result = SurfaceSummary.of(lump, north_heights);
+
+                if (result == null) {
+                    return null;
+                }
+
+                this.cacheSummary(packed_pos, result, generation);
+
+                // Loaded chunks (and their snapshots) may have unsaved changes, so only summaries of saved data go to disk
+                if (store != null && !this.released && lump.getChunk() instanceof UnloadedChunkView view && view.isFromDisk() && this.getGeneration(packed_pos) == generation && this.canUseStoredSummary(x, z)) {
+                    store.write(x, z, timestamp, result);
+                }
+
+                return result;
+            }, this.render_executor);
+        });
+    }
+
+    /**
+     * Render the colors of the given chunk (in ABGR format) asynchronously.
+     * The chunk and the one north of it (for shading) are preloaded first,
+     * then the render runs on the render executor.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   chunk_x   The chunk's X position
+     * @param   chunk_z   The chunk's Z position
+     * @param   target    The buffer of at least 256 entries to render into
+     *
+     * @return   A future resolving to the given buffer, or to null if the chunk does not exist
+     */
+    @NotNull
+    public CompletableFuture<int[]> renderLumpAsync(int chunk_x, int chunk_z, int[] target) {
+        return this.renderLumpAsync(chunk_x, chunk_z, target, 0, 16, PixelFormat.ABGR);
+    }
+
+    /**
+     * Render the colors of the given chunk asynchronously
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   chunk_x   The chunk's X position
+     * @param   chunk_z   The chunk's Z position
+     * @param   target    The buffer to render into
+     * @param   offset    The index of the north-west pixel in the buffer
+     * @param   stride    The distance between 2 rows in the buffer
+     * @param   format    The pixel format to write
+     *
+     * @return   A future resolving to the given buffer, or to null if the chunk does not exist
+     */
+    @NotNull
+    public CompletableFuture<int[]> renderLumpAsync(int chunk_x, int chunk_z, int[] target, int offset, int stride, PixelFormat format) {
+        return this.preloadArea(chunk_x, chunk_z - 1, chunk_x, chunk_z).thenApplyAsync(area -> {
+
+            Lump lump = area.getLump(chunk_x, chunk_z);
+
+            if (lump == null) {
+                return null;
+            }
+
+            lump.getColors(area.getLump(chunk_x, chunk_z - 1), target, offset, stride, format);
+
+            return target;
+        }, this.render_executor);
+    }
+
+    /**
+     * Render the 128x128 colors of a vanilla filled map asynchronously,
+     * in the layout of its {@code MapState.colors}
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   center_x   The block X coordinate of the map's center
+     * @param   center_z   The block Z coordinate of the map's center
+     * @param   scale      The scale of the map (0 to 4)
+     *
+     * @return   A future resolving to the map colors
+     */
+    @NotNull
+    public CompletableFuture<byte[]> getFilledMapColorsAsync(int center_x, int center_z, int scale) {
+
+        if (scale < 0 || scale > 4) {
+            throw new IllegalArgumentException("The scale of a filled map should be between 0 and 4, got " + scale);
+        }
+
+        // This is where vanilla starts sampling, relative to the center
+        int block_size = 1 << scale;
+        int min_x = (center_x / block_size - 64) * block_size;
+        int min_z = (center_z / block_size - 64) * block_size;
+
+        return this.getMapColorsAsync(min_x, min_z, 128, 128, scale);
+    }
+
+    /**
+     * Render vanilla map colors ({@code MapColor.id * 4 + shade}) of any area asynchronously.
+     * The area is preloaded & rendered in bands of chunk rows,
+     * so even large areas never keep more than two bands of lumps around:
+     * the next band is preloaded while the current one is rendered.
+     * Like vanilla, the first row is shaded against the row north of the area.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param   min_x    The block X coordinate of the western edge
+     * @param   min_z    The block Z coordinate of the northern edge
+     * @param   width    The width of the image in pixels
+     * @param   height   The height of the image in pixels
+     * @param   scale    The scale: every pixel covers 2^scale blocks in each direction
+     *
+     * @return   A future resolving to the colors, row by row
+     */
+    @NotNull
+    public CompletableFuture<byte[]> getMapColorsAsync(int min_x, int min_z, int width, int height, int scale) {
+
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("The size of a map image should be at least 1x1, got " + width + "x" + height);
+        }
+
+        if (scale < 0 || scale > 16) {
+            throw new IllegalArgumentException("The scale of a map image should be between 0 and 16, got " + scale);
+        }
+
+        int block_size = 1 << scale;
+        int rows_per_band = Math.max(1, 16 >> scale);
+        int min_chunk_x = min_x >> 4;
+        int max_chunk_x = (min_x + width * block_size - 1) >> 4;
+
+        byte[] target = new byte[width * height];
+        double[] last_heights = new double[width];
+        Arrays.fill(last_heights, Double.NaN);
+
+        // The first band also covers the row north of the area, for the heights to shade the first row with
+        int first_band_rows = Math.min(rows_per_band, height) + 1;
+        int first_min_z = min_z - block_size;
+        CompletableFuture<LumpArea> area = this.preloadArea(min_chunk_x, first_min_z >> 4, max_chunk_x, (first_min_z + first_band_rows * block_size - 1) >> 4);
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+
+        for (int row = -1; row < height; ) {
+            int first_row = row;
+            int row_count = row < 0 ? first_band_rows : Math.min(rows_per_band, height - row);
+            int next_row = row + row_count;
+
+            // Every band needs the heights of the one before it, so they are rendered one at a time
+            CompletableFuture<LumpArea> current = area;
+            CompletableFuture<LumpArea> ready = result.thenCompose(ignored -> current);
+
+            // Preload the next band while this one is being rendered
+            if (next_row < height) {
+                int next_min_z = min_z + next_row * block_size;
+                int next_max_z = next_min_z + Math.min(rows_per_band, height - next_row) * block_size - 1;
+                area = ready.thenCompose(ignored -> this.preloadArea(min_chunk_x, next_min_z >> 4, max_chunk_x, next_max_z >> 4));
+            }
+
+            result = ready.thenAcceptAsync(band -> MapColorRenderer.render(band, min_x, min_z, width, first_row, row_count, scale, last_heights, target), this.render_executor);
+            row = next_row;
+        }
+
+        return result.thenApply(ignored -> target);
+    }
+
+    /**
+     * Get a Lump chunk from this plane.
+     * Will only return a Lump that's actively loaded or pre-loaded.
+     *
+     * @param   packed_pos   The packed position of the chunk
+     *
+     * @since   0.5.0
+     */
+    @Nullable
+    public Lump getLump(long packed_pos) {
+
+        Lump cached = this.preload_cache.get(packed_pos);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        int x = ChunkPos.getPackedX(packed_pos);
+        int z = ChunkPos.getPackedZ(packed_pos);
+
+        Chunk chunk = this.getFetcherSession().getChunkView(x, z);
+
+        if (chunk == null) {
+            return null;
+        }
+
+        Lump result = new Lump(chunk, this);
+        result.setCoordinates(x, z);
+
+        return result;
+    }
+
+    /**
+     * Get a Lump chunk from this plane
+     *
+     * @param   chunk_pos
+     *
+     * @since   0.1.0
+     */
+    @Nullable
+    public Lump getLump(ChunkPos chunk_pos) {
+        return this.getLump(chunk_pos.toLong());
     }
 
     /**
@@ -232,7 +1344,7 @@ public class Plane {
      */
     @Nullable
     public Lump getLump(int x, int z) {
-        return getLump(new ChunkPos(x, z));
+        return getLump(ChunkPos.toLong(x, z));
     }
 
     /**
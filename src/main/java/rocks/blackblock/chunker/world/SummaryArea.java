@@ -0,0 +1,91 @@
+package rocks.blackblock.chunker.world;
+
+import org.jetbrains.annotations.Nullable;
+import rocks.blackblock.chunker.chunk.SurfaceSummary;
+
+/**
+ * A read-only view of a rectangle of surface summaries,
+ * as returned by {@link Plane#preloadSummaryArea(int, int, int, int)}
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+public class SummaryArea {
+
+    private final Plane plane;
+    private final int min_x;
+    private final int min_z;
+    private final int width;
+    private final int depth;
+
+    // The summaries, stored row by row (Z-major)
+    private final SurfaceSummary[] summaries;
+
+    /**
+     * Create a new, empty area
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    plane   The plane the chunks are on
+     * @param    min_x   The minimum chunk X coordinate (inclusive)
+     * @param    min_z   The minimum chunk Z coordinate (inclusive)
+     * @param    max_x   The maximum chunk X coordinate (inclusive)
+     * @param    max_z   The maximum chunk Z coordinate (inclusive)
+     */
+    SummaryArea(Plane plane, int min_x, int min_z, int max_x, int max_z) {
+        this.plane = plane;
+        this.min_x = min_x;
+        this.min_z = min_z;
+        this.width = max_x - min_x + 1;
+        this.depth = max_z - min_z + 1;
+        this.summaries = new SurfaceSummary[this.width * this.depth];
+    }
+
+    /**
+     * Set the summary at the given chunk coordinates
+     *
+     * @since    0.5.0
+     */
+    void set(int x, int z, SurfaceSummary summary) {
+        this.summaries[(z - this.min_z) * this.width + (x - this.min_x)] = summary;
+    }
+
+    /**
+     * Get the plane these chunks are on
+     *
+     * @since    0.5.0
+     */
+    public Plane getPlane() {
+        return this.plane;
+    }
+
+    /**
+     * Are the given chunk coordinates inside this area?
+     *
+     * @since    0.5.0
+     */
+    public boolean contains(int x, int z) {
+        return x >= this.min_x && z >= this.min_z && x < this.min_x + this.width && z < this.min_z + this.depth;
+    }
+
+    /**
+     * Get the summary at the given chunk coordinates.
+     * Returns null if the chunk does not exist or is outside this area.
+     *
+     * @author   Jelle De Loecker   <jelle@elevenways.be>
+     * @since    0.5.0
+     *
+     * @param    x   The chunk X coordinate
+     * @param    z   The chunk Z coordinate
+     */
+    @Nullable
+    public SurfaceSummary getSummary(int x, int z) {
+
+        if (!this.contains(x, z)) {
+            return null;
+        }
+
+        return this.summaries[(z - this.min_z) * this.width + (x - this.min_x)];
+    }
+}
@@ -0,0 +1,247 @@
+package rocks.blackblock.chunker.http;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import rocks.blackblock.chunker.TileGenerator;
+import rocks.blackblock.chunker.render.RenderLayer;
+import rocks.blackblock.chunker.tile.EncodedTile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the tile server over real connections, against a generator with a single fixed tile
+ *
+ * @author   Jelle De Loecker   <jelle@elevenways.be>
+ * @since    0.5.0
+ */
+class TileHttpServerTest {
+
+    private static final String WORLD = "minecraft:overworld";
+    private static final String TILE_PATH = "/minecraft%3Aoverworld/0/1/2.png";
+    private static final byte[] TILE_DATA = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4};
+    private static final EncodedTile TILE = new EncodedTile(TILE_DATA, 0x1234);
+
+    private StubGenerator generator;
+    private TileHttpServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        this.generator = new StubGenerator();
+        this.server = new TileHttpServer(this.generator, 0);
+        this.server.start();
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @AfterEach
+    void stop() {
+        this.server.stop();
+    }
+
+    @Test
+    void listensOnLoopbackByDefault() {
+        assertTrue(this.server.getAddress().getAddress().isLoopbackAddress());
+    }
+
+    @Test
+    void servesTile() throws Exception {
+        HttpResponse<byte[]> response = this.send("GET", TILE_PATH, Map.of());
+
+        assertEquals(200, response.statusCode());
+        assertEquals("image/png", response.headers().firstValue("Content-Type").orElse(null));
+        assertEquals(TILE.getETag(), response.headers().firstValue("ETag").orElse(null));
+        assertArrayEquals(TILE_DATA, response.body());
+        assertEquals(1, this.generator.renders.get());
+    }
+
+    @Test
+    void answersMatchingETagWithNotModified() throws Exception {
+        HttpResponse<byte[]> response = this.send("GET", TILE_PATH, Map.of("If-None-Match", "W/" + TILE.getETag()));
+
+        assertEquals(304, response.statusCode());
+        assertEquals(TILE.getETag(), response.headers().firstValue("ETag").orElse(null));
+        assertEquals(0, response.body().length);
+
+        // Conditional requests are answered without rendering
+        assertEquals(0, this.generator.renders.get());
+    }
+
+    @Test
+    void servesTileWhenETagDiffers() throws Exception {
+        HttpResponse<byte[]> response = this.send("GET", TILE_PATH, Map.of("If-None-Match", "\"abc\""));
+
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(TILE_DATA, response.body());
+    }
+
+    @Test
+    void answersMissingTilesWithNotFound() throws Exception {
+        assertEquals(404, this.send("GET", "/minecraft%3Athe_nether/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/0/1.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/0/a/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/0/1/2.jpg", Map.of()).statusCode());
+    }
+
+    @Test
+    void answersUnservedLayersWithNotFound() throws Exception {
+        assertEquals(200, this.send("GET", "/minecraft%3Aoverworld/height/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/slice_64/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/slice_1_2/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/unknown/0/1/2.png", Map.of()).statusCode());
+        assertEquals(1, this.generator.renders.get());
+    }
+
+    @Test
+    void servesConfiguredLayers() throws Exception {
+        this.server.setLayers(List.of("slice_64"));
+
+        assertEquals(200, this.send("GET", "/minecraft%3Aoverworld/slice_64/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", "/minecraft%3Aoverworld/slice_65/0/1/2.png", Map.of()).statusCode());
+        assertEquals(404, this.send("GET", TILE_PATH, Map.of()).statusCode());
+    }
+
+    @Test
+    void rejectsOtherMethods() throws Exception {
+        HttpResponse<byte[]> response = this.send("POST", TILE_PATH, Map.of());
+
+        assertEquals(405, response.statusCode());
+        assertEquals("GET, HEAD", response.headers().firstValue("Allow").orElse(null));
+    }
+
+    @Test
+    void answersHeadWithoutBody() throws Exception {
+        HttpResponse<byte[]> response = this.send("HEAD", TILE_PATH, Map.of());
+
+        assertEquals(200, response.statusCode());
+        assertEquals(String.valueOf(TILE_DATA.length), response.headers().firstValue("Content-Length").orElse(null));
+        assertEquals(TILE.getETag(), response.headers().firstValue("ETag").orElse(null));
+        assertEquals(0, response.body().length);
+    }
+
+    @Test
+    void keepsConnectionsAlive() throws Exception {
+        try (Socket socket = new Socket(this.server.getAddress().getAddress(), this.server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            // Both requests go over the same connection
+            for (int i = 0; i < 2; i++) {
+                out.write(("GET " + TILE_PATH + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                Map<String, String> headers = new HashMap<>();
+                String status = readResponseHead(in, headers);
+
+                assertTrue(status.startsWith("HTTP/1.1 200"), status);
+                assertArrayEquals(TILE_DATA, in.readNBytes(Integer.parseInt(headers.get("content-length"))));
+            }
+        }
+
+        assertEquals(2, this.generator.renders.get());
+    }
+
+    /**
+     * Send a request & read the whole response
+     */
+    private HttpResponse<byte[]> send(String method, String path, Map<String, String> headers) throws Exception {
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + this.server.getPort() + path))
+                .method(method, HttpRequest.BodyPublishers.noBody());
+
+        headers.forEach(builder::header);
+
+        return this.client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Read the status line & the headers (with lowercase names) of a response
+     */
+    private static String readResponseHead(InputStream in, Map<String, String> headers) throws IOException {
+
+        String status = readLine(in);
+        String line;
+
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        return status;
+    }
+
+    /**
+     * Read a single CRLF-terminated line
+     */
+    private static String readLine(InputStream in) throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int current;
+
+        while ((current = in.read()) != -1 && current != '\n') {
+            if (current != '\r') {
+                line.write(current);
+            }
+        }
+
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A generator with a single tile in a single world,
+     * that counts how often it is asked for it
+     */
+    private static class StubGenerator extends TileGenerator {
+
+        private final AtomicInteger renders = new AtomicInteger();
+
+        private StubGenerator() {
+            super(null);
+        }
+
+        @Override
+        public String getTileETag(String worldName, RenderLayer layer, int x, int z, int zoom) {
+
+            if (!this.isTile(worldName, x, z, zoom)) {
+                return null;
+            }
+
+            return TILE.getETag();
+        }
+
+        @Override
+        public CompletableFuture<EncodedTile> getEncodedTileAsync(String worldName, RenderLayer layer, int x, int z, int zoom) {
+
+            if (!this.isTile(worldName, x, z, zoom)) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            this.renders.incrementAndGet();
+
+            return CompletableFuture.completedFuture(TILE);
+        }
+
+        private boolean isTile(String worldName, int x, int z, int zoom) {
+            return WORLD.equals(worldName) && zoom == 0 && x == 1 && z == 2;
+        }
+    }
+}